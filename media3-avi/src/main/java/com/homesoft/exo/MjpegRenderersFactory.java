@@ -3,23 +3,87 @@ package com.homesoft.exo;
 import android.content.Context;
 import android.os.Handler;
 
+import androidx.annotation.Nullable;
 import androidx.media3.exoplayer.DefaultRenderersFactory;
 import androidx.media3.exoplayer.Renderer;
 import androidx.media3.exoplayer.mediacodec.MediaCodecSelector;
 import androidx.media3.exoplayer.video.VideoRendererEventListener;
 
+import com.homesoft.exo.video.BitmapFactoryDecoder;
 import com.homesoft.exo.video.BitmapFactoryVideoRenderer;
+import com.homesoft.exo.video.MjpegDecodeScheduler;
 
 import java.util.ArrayList;
 
 public class MjpegRenderersFactory extends DefaultRenderersFactory {
+    private int mjpegBuffers = BitmapFactoryVideoRenderer.DEFAULT_BUFFERS;
+    private int mjpegThreads = BitmapFactoryVideoRenderer.DEFAULT_THREADS;
+    private int mjpegBitmapMode = BitmapFactoryDecoder.BITMAP_MODE_ARGB_8888;
+    @Nullable
+    private MjpegDecodeScheduler mjpegDecodeScheduler;
+    private int mjpegDecodePriority = MjpegDecodeScheduler.PRIORITY_DEFAULT;
+    private boolean mjpegLive;
+
     public MjpegRenderersFactory(Context context) {
         super(context);
     }
 
+    /**
+     * Set the number of MJPEG frames that can be queued or decoding at once.
+     * Should be at least the number of decode threads.
+     */
+    public MjpegRenderersFactory setMjpegBuffers(int buffers) {
+        mjpegBuffers = buffers;
+        return this;
+    }
+
+    /**
+     * Set the number of threads used to decode MJPEG frames in parallel.
+     */
+    public MjpegRenderersFactory setMjpegThreads(int threads) {
+        mjpegThreads = threads;
+        return this;
+    }
+
+    /**
+     * Set the preferred MJPEG bitmap mode.  Falls back to a supported mode on older devices.
+     * @param bitmapMode one of the BitmapFactoryDecoder.BITMAP_MODE_* constants
+     */
+    public MjpegRenderersFactory setMjpegBitmapMode(int bitmapMode) {
+        mjpegBitmapMode = bitmapMode;
+        return this;
+    }
+
+    /**
+     * Decode MJPEG on a scheduler shared with other players, i.e. for a wall of cameras.
+     * The scheduler also owns the shared Bitmap pool and its memory budget.
+     * @param scheduler shared scheduler or null for per player threads
+     * @param priority initial priority, see {@link BitmapFactoryVideoRenderer#setDecodePriority(int)}
+     */
+    public MjpegRenderersFactory setMjpegDecodeScheduler(@Nullable MjpegDecodeScheduler scheduler, int priority) {
+        mjpegDecodeScheduler = scheduler;
+        mjpegDecodePriority = priority;
+        return this;
+    }
+
+    /**
+     * Show the newest MJPEG frame as soon as it's decoded, for live streams from IP cameras.
+     * See {@link BitmapFactoryVideoRenderer#setLive(boolean)}
+     */
+    public MjpegRenderersFactory setMjpegLive(boolean live) {
+        mjpegLive = live;
+        return this;
+    }
+
     @Override
     protected void buildVideoRenderers(Context context, int extensionRendererMode, MediaCodecSelector mediaCodecSelector, boolean enableDecoderFallback, Handler eventHandler, VideoRendererEventListener eventListener, long allowedVideoJoiningTimeMs, ArrayList<Renderer> out) {
         super.buildVideoRenderers(context, extensionRendererMode, mediaCodecSelector, enableDecoderFallback, eventHandler, eventListener, allowedVideoJoiningTimeMs, out);
-        out.add(new BitmapFactoryVideoRenderer(allowedVideoJoiningTimeMs, eventHandler, eventListener, MAX_DROPPED_VIDEO_FRAME_COUNT_TO_NOTIFY));
+        final BitmapFactoryVideoRenderer renderer = new BitmapFactoryVideoRenderer(allowedVideoJoiningTimeMs, eventHandler, eventListener, MAX_DROPPED_VIDEO_FRAME_COUNT_TO_NOTIFY,
+                Math.max(mjpegBuffers, mjpegThreads), mjpegThreads);
+        renderer.setBitmapMode(mjpegBitmapMode);
+        renderer.setDecodeScheduler(mjpegDecodeScheduler);
+        renderer.setDecodePriority(mjpegDecodePriority);
+        renderer.setLive(mjpegLive);
+        out.add(renderer);
     }
 }
@@ -2,35 +2,62 @@ package com.homesoft.exo.extractor;
 
 import android.net.Uri;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.media3.common.Format;
+import androidx.media3.common.Tracks;
 import androidx.media3.extractor.DefaultExtractorsFactory;
 import androidx.media3.extractor.Extractor;
 import androidx.media3.extractor.ExtractorsFactory;
 import androidx.media3.extractor.mp3.Mp3Extractor;
 
 import com.homesoft.exo.extractor.avi.AviExtractor;
+import com.homesoft.exo.extractor.avi.AviIndexCache;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
 
 public class AviExtractorsFactory implements ExtractorsFactory {
     private final DefaultExtractorsFactory defaultExtractorsFactory = new DefaultExtractorsFactory();
+    private boolean growing;
+    private boolean progressiveStart;
+    private boolean indexCache = true;
+    /**
+     * Uris of the extractors created, to apply the track selection to
+     */
+    private final WeakHashMap<AviExtractor, String> aviExtractors = new WeakHashMap<>();
+    @Nullable
+    private String selectedUri;
+    private final BitSet disabledTracks = new BitSet();
+
+    /**
+     * Play AVIs that are still being recorded, see {@link AviExtractor#setGrowing(boolean)}.
+     * Wrap the DataSource.Factory of the player in a {@link GrowingDataSource.Factory}, which
+     * paces the polling for new chunks.
+     */
+    public AviExtractorsFactory setGrowing(boolean growing) {
+        this.growing = growing;
+        return this;
+    }
 
     @Override
     public Extractor[] createExtractors() {
-        return patchExtractors(defaultExtractorsFactory.createExtractors());
+        return patchExtractors(defaultExtractorsFactory.createExtractors(), null);
     }
 
     @Override
     public Extractor[] createExtractors(Uri uri, Map<String, List<String>> responseHeaders) {
-        return patchExtractors(defaultExtractorsFactory.createExtractors());
+        return patchExtractors(defaultExtractorsFactory.createExtractors(), uri);
     }
 
     /**
      * Hack to work-around DefaultExtractorsFactory being final
      */
-    private Extractor[] patchExtractors(Extractor[] extractors) {
+    private Extractor[] patchExtractors(Extractor[] extractors, @Nullable Uri uri) {
         final ArrayList<Extractor> list = new ArrayList<>(Arrays.asList(extractors));
         final int aviIndex = findExtractor(list, androidx.media3.extractor.avi.AviExtractor.class);
         if (aviIndex != -1) {
@@ -40,13 +67,92 @@ public class AviExtractorsFactory implements ExtractorsFactory {
         if (mp3Index != -1) {
             //Mp3Extractor falsely sniff()s AVI files, so insert the AviExtractor before it
             // trhak.avi
-            list.add(mp3Index, new AviExtractor());
+            list.add(mp3Index, createAviExtractor(uri));
         } else {
-            list.add(new AviExtractor());
+            list.add(createAviExtractor(uri));
         }
         return list.toArray(new Extractor[0]);
     }
 
+    /**
+     * Start playing before the idx1 is loaded, see {@link AviExtractor#setProgressiveStart(boolean)}
+     */
+    public AviExtractorsFactory setProgressiveStart(boolean progressiveStart) {
+        this.progressiveStart = progressiveStart;
+        return this;
+    }
+
+    /**
+     * Reuse the index of media played before, see {@link AviIndexCache}.  Enabled by default,
+     * the cache is shared by all the factories and {@link AviPreparser}.
+     */
+    public AviExtractorsFactory setIndexCache(boolean indexCache) {
+        this.indexCache = indexCache;
+        return this;
+    }
+
+    /**
+     * Skip the chunks of the tracks the player isn't rendering, see
+     * {@link AviExtractor#setTrackEnabled(int, boolean)}.  Usually called from
+     * Player.Listener.onTracksChanged(Tracks) with the uri of the current media item.
+     * Also applies to extractors created for the uri later, i.e. after a retry.
+     */
+    public synchronized void setSelectedTracks(@NonNull Uri uri, @NonNull Tracks tracks) {
+        selectedUri = uri.toString();
+        disabledTracks.clear();
+        for (Tracks.Group group : tracks.getGroups()) {
+            for (int t = 0; t < group.length; t++) {
+                final int id = getTrackId(group.getTrackFormat(t));
+                if (id >= 0 && !group.isTrackSelected(t)) {
+                    disabledTracks.set(id);
+                }
+            }
+        }
+        for (Map.Entry<AviExtractor, String> entry : aviExtractors.entrySet()) {
+            if (selectedUri.equals(entry.getValue())) {
+                applySelectedTracks(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * @return the stream id from the Format id or -1 if it isn't one of ours
+     */
+    private static int getTrackId(@NonNull Format format) {
+        if (format.id == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(format.id);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void applySelectedTracks(@NonNull AviExtractor aviExtractor) {
+        // Stream ids are two ASCII digits
+        for (int id = 0; id < 100; id++) {
+            aviExtractor.setTrackEnabled(id, !disabledTracks.get(id));
+        }
+    }
+
+    private synchronized AviExtractor createAviExtractor(@Nullable Uri uri) {
+        final AviExtractor aviExtractor = new AviExtractor();
+        aviExtractor.setGrowing(growing);
+        aviExtractor.setProgressiveStart(progressiveStart);
+        if (uri != null) {
+            final String key = uri.toString();
+            if (indexCache) {
+                aviExtractor.setIndexCache(AviIndexCache.getInstance(), key);
+            }
+            aviExtractors.put(aviExtractor, key);
+            if (key.equals(selectedUri)) {
+                applySelectedTracks(aviExtractor);
+            }
+        }
+        return aviExtractor;
+    }
+
     private static int findExtractor(List<Extractor> list, Class<? extends Extractor> extractorClass) {
         for (int i=0;i<list.size();i++) {
             if (extractorClass.isInstance(list.get(i))) {
@@ -0,0 +1,196 @@
+package com.homesoft.exo.extractor;
+
+import android.net.Uri;
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.MediaItem;
+import androidx.media3.common.Player;
+import androidx.media3.common.Timeline;
+import androidx.media3.common.util.Log;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DataSourceUtil;
+import androidx.media3.datasource.DataSpec;
+import androidx.media3.extractor.DefaultExtractorInput;
+import androidx.media3.extractor.DiscardingTrackOutput;
+import androidx.media3.extractor.Extractor;
+import androidx.media3.extractor.ExtractorInput;
+import androidx.media3.extractor.ExtractorOutput;
+import androidx.media3.extractor.PositionHolder;
+import androidx.media3.extractor.SeekMap;
+import androidx.media3.extractor.TrackOutput;
+
+import com.homesoft.exo.extractor.avi.AviExtractor;
+import com.homesoft.exo.extractor.avi.AviIndexCache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Parses the header and index of the upcoming media items on a background thread, so the
+ * {@link AviExtractor}s created by {@link AviExtractorsFactory} for them start with their seek
+ * tables in the {@link AviIndexCache}.
+ * Use the same DataSource.Factory as the player (i.e. a CacheDataSource.Factory) so the bytes
+ * read are shared too.
+ */
+public class AviPreparser {
+    private static final String TAG = "AviPreparser";
+    public static final int DEFAULT_MAX_ITEMS = 2;
+
+    private final DataSource.Factory dataSourceFactory;
+    private final ExecutorService executorService = Executors.newSingleThreadExecutor(runnable ->
+            new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, TAG));
+    private final ArrayList<Future<?>> futures = new ArrayList<>();
+    private int maxItems = DEFAULT_MAX_ITEMS;
+
+    public AviPreparser(@NonNull DataSource.Factory dataSourceFactory) {
+        this.dataSourceFactory = dataSourceFactory;
+    }
+
+    /**
+     * Set the number of items after the current one parsed by {@link #preparseNext(Player)}
+     */
+    public AviPreparser setMaxItems(int maxItems) {
+        this.maxItems = maxItems;
+        return this;
+    }
+
+    /**
+     * Parse the next items of the player's playlist, usually from
+     * {@link Player.Listener#onMediaItemTransition(MediaItem, int)}.
+     * Must be called on the application thread of the player.
+     */
+    public void preparseNext(@NonNull Player player) {
+        final ArrayList<Uri> uris = new ArrayList<>(maxItems);
+        final Timeline timeline = player.getCurrentTimeline();
+        final Timeline.Window window = new Timeline.Window();
+        int windowIndex = player.getCurrentMediaItemIndex();
+        while (uris.size() < maxItems && !timeline.isEmpty()) {
+            windowIndex = timeline.getNextWindowIndex(windowIndex, player.getRepeatMode(),
+                    player.getShuffleModeEnabled());
+            if (windowIndex == C.INDEX_UNSET || windowIndex == player.getCurrentMediaItemIndex()) {
+                break;
+            }
+            final MediaItem.LocalConfiguration localConfiguration =
+                    timeline.getWindow(windowIndex, window).mediaItem.localConfiguration;
+            if (localConfiguration != null) {
+                uris.add(localConfiguration.uri);
+            }
+        }
+        preparse(uris);
+    }
+
+    /**
+     * Parse the uris in order, replacing any that are still pending
+     */
+    public synchronized void preparse(@NonNull List<Uri> uris) {
+        cancel();
+        for (final Uri uri : uris) {
+            futures.add(executorService.submit(() -> {
+                try {
+                    preparse(uri);
+                } catch (IOException | RuntimeException e) {
+                    Log.w(TAG, "Preparse failed " + uri, e);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Cancel the pending items
+     */
+    public synchronized void cancel() {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+        futures.clear();
+    }
+
+    public synchronized void release() {
+        cancel();
+        executorService.shutdownNow();
+    }
+
+    /**
+     * Read the uri until the SeekMap is published, see {@link AviExtractor#setIndexCache}
+     */
+    private void preparse(@NonNull Uri uri) throws IOException {
+        final DataSource dataSource = dataSourceFactory.createDataSource();
+        final AviExtractor aviExtractor = new AviExtractor();
+        final PreparseOutput output = new PreparseOutput();
+        final PositionHolder positionHolder = new PositionHolder();
+        aviExtractor.init(output);
+        long position = 0L;
+        boolean sniffed = false;
+        int result = Extractor.RESULT_CONTINUE;
+        try {
+            while (output.seekMap == null && result != Extractor.RESULT_END_OF_INPUT &&
+                    !Thread.currentThread().isInterrupted()) {
+                try {
+                    long length = dataSource.open(new DataSpec.Builder().setUri(uri)
+                            .setPosition(position).build());
+                    if (length != C.LENGTH_UNSET) {
+                        length += position;
+                    }
+                    final ExtractorInput input =
+                            new DefaultExtractorInput(dataSource, position, length);
+                    if (!sniffed) {
+                        if (!aviExtractor.sniff(input)) {
+                            return;
+                        }
+                        sniffed = true;
+                        input.resetPeekPosition();
+                        // Same key as the extractor created by the player
+                        final Uri dataSourceUri = dataSource.getUri();
+                        aviExtractor.setIndexCache(AviIndexCache.getInstance(),
+                                (dataSourceUri == null ? uri : dataSourceUri).toString());
+                    }
+                    result = Extractor.RESULT_CONTINUE;
+                    while (result == Extractor.RESULT_CONTINUE && output.seekMap == null &&
+                            !Thread.currentThread().isInterrupted()) {
+                        result = aviExtractor.read(input, positionHolder);
+                    }
+                    if (result == Extractor.RESULT_SEEK) {
+                        position = positionHolder.position;
+                    }
+                } finally {
+                    DataSourceUtil.closeQuietly(dataSource);
+                }
+            }
+        } finally {
+            aviExtractor.release();
+        }
+    }
+
+    /**
+     * Only the SeekMap is of interest, the samples are discarded
+     */
+    private static class PreparseOutput implements ExtractorOutput {
+        @Nullable
+        SeekMap seekMap;
+
+        @NonNull
+        @Override
+        public TrackOutput track(int id, int type) {
+            return new DiscardingTrackOutput();
+        }
+
+        @Override
+        public void endTracks() {
+        }
+
+        @Override
+        public void seekMap(@NonNull SeekMap seekMap) {
+            this.seekMap = seekMap;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.homesoft.exo.extractor;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DataSpec;
+import androidx.media3.datasource.TransferListener;
+
+import com.homesoft.exo.extractor.avi.AviExtractor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Throttles the polling of a file that is still being recorded.
+ * A growing {@link AviExtractor} reopens the input at its position when it reaches the end of
+ * the written data.  A reopen at the same position as the last one found nothing new, so it
+ * waits until the poll interval has passed since then.
+ * See {@link AviExtractorsFactory#setGrowing(boolean)}
+ */
+public class GrowingDataSource implements DataSource {
+    public static final long DEFAULT_POLL_MS = 250L;
+
+    private final DataSource upstream;
+    private final long pollMs;
+    @Nullable
+    private Uri lastUri;
+    private long lastPosition = C.POSITION_UNSET;
+    private long lastOpenMs;
+
+    public GrowingDataSource(@NonNull DataSource upstream, long pollMs) {
+        this.upstream = upstream;
+        this.pollMs = pollMs;
+    }
+
+    @Override
+    public void addTransferListener(@NonNull TransferListener transferListener) {
+        upstream.addTransferListener(transferListener);
+    }
+
+    @Override
+    public long open(@NonNull DataSpec dataSpec) throws IOException {
+        if (dataSpec.uri.equals(lastUri) && dataSpec.position == lastPosition) {
+            final long waitMs = lastOpenMs + pollMs - SystemClock.elapsedRealtime();
+            if (waitMs > 0) {
+                try {
+                    Thread.sleep(waitMs);
+                } catch (InterruptedException e) {
+                    // The load was canceled
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+        lastUri = dataSpec.uri;
+        lastPosition = dataSpec.position;
+        lastOpenMs = SystemClock.elapsedRealtime();
+        return upstream.open(dataSpec);
+    }
+
+    @Override
+    public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+        return upstream.read(buffer, offset, length);
+    }
+
+    @Nullable
+    @Override
+    public Uri getUri() {
+        return upstream.getUri();
+    }
+
+    @NonNull
+    @Override
+    public Map<String, List<String>> getResponseHeaders() {
+        return upstream.getResponseHeaders();
+    }
+
+    @Override
+    public void close() throws IOException {
+        upstream.close();
+    }
+
+    public static class Factory implements DataSource.Factory {
+        private final DataSource.Factory upstreamFactory;
+        private long pollMs = DEFAULT_POLL_MS;
+
+        public Factory(@NonNull DataSource.Factory upstreamFactory) {
+            this.upstreamFactory = upstreamFactory;
+        }
+
+        /**
+         * Set the minimum time between reopens of the input that found nothing new
+         */
+        public Factory setPollMs(long pollMs) {
+            this.pollMs = pollMs;
+            return this;
+        }
+
+        @NonNull
+        @Override
+        public GrowingDataSource createDataSource() {
+            return new GrowingDataSource(upstreamFactory.createDataSource(), pollMs);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homesoft.exo.extractor.avi;
+
+import androidx.annotation.NonNull;
+
+import androidx.media3.common.C;
+import androidx.media3.common.Format;
+import androidx.media3.common.MimeTypes;
+import androidx.media3.extractor.Ac3Util;
+import androidx.media3.extractor.TrackOutput;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits AC3 (and E-AC3) streams on the sync frame boundary
+ */
+public class Ac3StreamHandler extends SyncFrameStreamHandler {
+  // Enough to cover bsid
+  private static final int HEADER_SIZE = 6;
+  private static final int BSID_EAC3_MIN = 11;
+
+  private final Format.Builder formatBuilder;
+  // Ac3Util expects the header at index 0
+  private final byte[] header = new byte[HEADER_SIZE];
+  private final ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+  private boolean formatChecked;
+
+  Ac3StreamHandler(int id, long durationUs, @NonNull TrackOutput trackOutput,
+                   int samplesPerSecond, @NonNull Format.Builder formatBuilder) {
+    super(id, durationUs, trackOutput, samplesPerSecond, HEADER_SIZE,
+        Ac3Util.AC3_SYNCFRAME_AUDIO_SAMPLE_COUNT);
+    this.formatBuilder = formatBuilder;
+  }
+
+  @Override
+  boolean parseHeader(@NonNull byte[] data, int offset) {
+    if (data[offset] != 0x0b || data[offset + 1] != 0x77) {
+      return false;
+    }
+    System.arraycopy(data, offset, header, 0, HEADER_SIZE);
+    final int size = Ac3Util.parseAc3SyncframeSize(header);
+    if (size == C.LENGTH_UNSET || size < HEADER_SIZE) {
+      return false;
+    }
+    frameSize = size;
+    frameSamples = Ac3Util.parseAc3SyncframeAudioSampleCount(headerBuffer);
+    if (!formatChecked) {
+      formatChecked = true;
+      // Some muxers use the AC3 format tag for E-AC3
+      if ((header[5] & 0xff) >> 3 >= BSID_EAC3_MIN) {
+        trackOutput.format(formatBuilder.setSampleMimeType(MimeTypes.AUDIO_E_AC3).build());
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homesoft.exo.extractor.avi;
+
+import androidx.annotation.NonNull;
+
+import androidx.media3.common.Format;
+import androidx.media3.common.util.Log;
+import androidx.media3.extractor.AacUtil;
+import androidx.media3.extractor.TrackOutput;
+
+import java.io.IOException;
+import java.util.Collections;
+
+/**
+ * Splits AAC streams with ADTS framing on the frame boundary.
+ * The ADTS header is stripped and the AudioSpecificConfig is built from the first header.
+ * Frames with more than one raw data block are dropped, the decoder expects one block per
+ * sample and without the (optional) CRC the block boundaries are only known to an AAC parser.
+ */
+public class AdtsStreamHandler extends SyncFrameStreamHandler {
+  private static final String TAG = "AdtsStreamHandler";
+  // Header with CRC
+  private static final int HEADER_SIZE = 9;
+  private static final int HEADER_SIZE_NO_CRC = 7;
+  private static final int SAMPLES_PER_RAW_BLOCK = 1024;
+  private static final int SAMPLE_RATE_INDEX_MAX = 12;
+
+  private final Format.Builder formatBuilder;
+  private boolean formatSent;
+  private boolean multipleBlocksLogged;
+
+  AdtsStreamHandler(int id, long durationUs, @NonNull TrackOutput trackOutput,
+                    int samplesPerSecond, @NonNull Format.Builder formatBuilder) {
+    super(id, durationUs, trackOutput, samplesPerSecond, HEADER_SIZE, SAMPLES_PER_RAW_BLOCK);
+    this.formatBuilder = formatBuilder;
+  }
+
+  @Override
+  boolean parseHeader(@NonNull byte[] data, int offset) throws IOException {
+    // syncword 0xFFF, layer must be 0
+    if ((data[offset] & 0xff) != 0xff || (data[offset + 1] & 0xf6) != 0xf0) {
+      return false;
+    }
+    final int sampleRateIndex = (data[offset + 2] >> 2) & 0xf;
+    if (sampleRateIndex > SAMPLE_RATE_INDEX_MAX) {
+      return false;
+    }
+    final int headerSize = (data[offset + 1] & 1) == 1 ? HEADER_SIZE_NO_CRC : HEADER_SIZE;
+    final int size = (data[offset + 3] & 0x3) << 11 | (data[offset + 4] & 0xff) << 3 |
+        (data[offset + 5] & 0xe0) >> 5;
+    if (size <= headerSize) {
+      return false;
+    }
+    frameSize = size;
+    frameSkip = headerSize;
+    final int rawBlocks = (data[offset + 6] & 0x3) + 1;
+    frameSamples = SAMPLES_PER_RAW_BLOCK * rawBlocks;
+    if (rawBlocks > 1) {
+      frameDrop = true;
+      if (!multipleBlocksLogged) {
+        multipleBlocksLogged = true;
+        Log.w(TAG, "ADTS frames with multiple raw data blocks are not supported, dropping");
+      }
+    }
+    if (!formatSent) {
+      formatSent = true;
+      final int audioObjectType = ((data[offset + 2] >> 6) & 0x3) + 1;
+      final int channelConfig = (data[offset + 2] & 0x1) << 2 | (data[offset + 3] >> 6) & 0x3;
+      final byte[] audioSpecificConfig = AacUtil.buildAudioSpecificConfig(audioObjectType,
+          sampleRateIndex, channelConfig);
+      final AacUtil.Config config = AacUtil.parseAudioSpecificConfig(audioSpecificConfig);
+      trackOutput.format(formatBuilder
+          .setCodecs(config.codecs)
+          .setInitializationData(Collections.singletonList(audioSpecificConfig))
+          .build());
+    }
+    return true;
+  }
+}
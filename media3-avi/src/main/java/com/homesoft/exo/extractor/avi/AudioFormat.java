@@ -17,6 +17,7 @@ package com.homesoft.exo.extractor.avi;
 
 import android.util.SparseArray;
 
+import androidx.annotation.Nullable;
 import androidx.media3.common.MimeTypes;
 
 import java.nio.ByteBuffer;
@@ -27,12 +28,24 @@ import java.nio.ByteBuffer;
 public class AudioFormat {
   public static final String AUDIO_WMA = MimeTypes.BASE_TYPE_AUDIO + "/x-ms-wma";
 
+  static final int WAVE_FORMAT_PCM=0x1;
+  static final int WAVE_FORMAT_ADPCM=0x2;
+  static final int WAVE_FORMAT_ALAW=0x6;
+  static final int WAVE_FORMAT_MULAW=0x7;
+  static final int WAVE_FORMAT_IMA_ADPCM=0x11;
   private static final int WAVE_FORMAT_MPEGLAYER3=0x55;
+  static final int WAVE_FORMAT_MPEG_ADTS_AAC=0x1600;
   private static final SparseArray<String> FORMAT_MAP = new SparseArray<>();
   static {
-    FORMAT_MAP.put(0x1, MimeTypes.AUDIO_RAW);    // WAVE_FORMAT_PCM
+    FORMAT_MAP.put(WAVE_FORMAT_PCM, MimeTypes.AUDIO_RAW);
+    // These are decoded to PCM by the PcmDecoderStreamHandler
+    FORMAT_MAP.put(WAVE_FORMAT_ADPCM, MimeTypes.AUDIO_RAW);
+    FORMAT_MAP.put(WAVE_FORMAT_ALAW, MimeTypes.AUDIO_RAW);
+    FORMAT_MAP.put(WAVE_FORMAT_MULAW, MimeTypes.AUDIO_RAW);
+    FORMAT_MAP.put(WAVE_FORMAT_IMA_ADPCM, MimeTypes.AUDIO_RAW);
     FORMAT_MAP.put(WAVE_FORMAT_MPEGLAYER3, MimeTypes.AUDIO_MPEG);
     FORMAT_MAP.put(0xff, MimeTypes.AUDIO_AAC);   // WAVE_FORMAT_AAC
+    FORMAT_MAP.put(WAVE_FORMAT_MPEG_ADTS_AAC, MimeTypes.AUDIO_AAC);
     FORMAT_MAP.put(0x161, AUDIO_WMA);  // WAVE_FORMAT_WMAUDIO2
     FORMAT_MAP.put(0x2000, MimeTypes.AUDIO_AC3); // WAVE_FORMAT_DVM - AC3
     FORMAT_MAP.put(0x2001, MimeTypes.AUDIO_DTS); // WAVE_FORMAT_DTS2
@@ -86,6 +99,26 @@ public class AudioFormat {
   }
 
 
+  /**
+   * Only valid for ADPCMWAVEFORMAT
+   * @return the coefficient pairs or null if not present
+   */
+  @Nullable
+  public short[] getAdpcmCoefficients() {
+    if (byteBuffer.capacity() < 22 || getCbSize() < 4) {
+      return null;
+    }
+    final int numCoef = byteBuffer.getShort(20) & AviExtractor.USHORT_MASK;
+    if (numCoef == 0 || 22 + numCoef * 4 > byteBuffer.capacity()) {
+      return null;
+    }
+    final short[] coefficients = new short[numCoef * 2];
+    for (int i=0;i<coefficients.length;i++) {
+      coefficients[i] = byteBuffer.getShort(22 + i * 2);
+    }
+    return coefficients;
+  }
+
   public byte[] getCodecData() {
     final int size = getCbSize();
     final ByteBuffer temp = byteBuffer.duplicate();
@@ -13,6 +13,14 @@ public class AudioStreamHandler extends StreamHandler {
      * Current time in the stream
      */
     protected long timeUs;
+    /**
+     * dwSampleSize of the stream header, 0 if each chunk is a sample
+     */
+    private int clockSampleSize;
+    /**
+     * Samples since the start, while timed by the chunk clock
+     */
+    private long clockSamples;
 
     private long calcTimeUs(long streamPosition) {
         return durationUs * streamPosition / chunkIndex.getSize();
@@ -23,7 +31,26 @@ public class AudioStreamHandler extends StreamHandler {
     }
 
     protected void advanceTime(int sampleSize) {
-        timeUs += calcTimeUs(sampleSize);
+        advanceClock(sampleSize);
+    }
+
+    /**
+     * Advance by the chunk bytes, subclasses that time by frame override {@link #advanceTime(int)}
+     */
+    @Override
+    void advanceClock(int sampleSize) {
+        if (chunkClock) {
+            clockSamples += clockSampleSize == 0 ? 1 : sampleSize / clockSampleSize;
+            timeUs = getClockTimeUs(clockSamples);
+        } else {
+            timeUs += calcTimeUs(sampleSize);
+        }
+    }
+
+    @Override
+    void setChunkClock(@NonNull StreamHeaderBox streamHeader) {
+        super.setChunkClock(streamHeader);
+        clockSampleSize = streamHeader.getSampleSize();
     }
 
     @Override
@@ -37,6 +64,7 @@ public class AudioStreamHandler extends StreamHandler {
     }
 
     private void setSeekFrames(int[] seekFrameIndices) {
+        chunkClock = false;
         setSeekPointSize(seekFrameIndices.length);
         final int chunks = chunkIndex.getCount();
 
@@ -67,6 +95,19 @@ public class AudioStreamHandler extends StreamHandler {
         setSeekFrames(chunkIndex.getIndices(positions));
     }
 
+    @NonNull
+    @Override
+    AviIndexCache.StreamTable getStreamTable() {
+        return new AviIndexCache.StreamTable(durationUs, chunkIndex.getCount(),
+                chunkIndex.getSize(), chunkClock, positions, null, times, false, 0L);
+    }
+
+    @Override
+    void setStreamTable(@NonNull AviIndexCache.StreamTable streamTable) {
+        super.setStreamTable(streamTable);
+        times = streamTable.times == null ? new long[0] : streamTable.times;
+    }
+
     void setDurationUs(long durationUs) {
         this.durationUs = durationUs;
     }
@@ -78,10 +119,42 @@ public class AudioStreamHandler extends StreamHandler {
 
     @Override
     public void seekPosition(long position) {
+        if (times.length == 0) {
+            // No seek points, only the start is reachable
+            timeUs = 0L;
+            clockSamples = 0L;
+            return;
+        }
         final int seekIndex = getSeekIndex(position);
         timeUs = times[seekIndex];
     }
 
+    @Override
+    long getSamples(@NonNull ChunkIndex chunkIndex, int chunks) {
+        if (clockSampleSize == 0) {
+            return chunks;
+        }
+        long bytes = 0L;
+        for (int c = 0; c < chunks; c++) {
+            bytes += chunkIndex.getChunkSize(c);
+        }
+        return bytes / clockSampleSize;
+    }
+
+    @Override
+    long getIndexedSamples() {
+        return clockSampleSize == 0 ? super.getIndexedSamples() :
+                chunkIndex.getSize() / clockSampleSize;
+    }
+
+    @Override
+    void seekClock(long samples) {
+        if (chunkClock) {
+            clockSamples = samples;
+            timeUs = getClockTimeUs(samples);
+        }
+    }
+
     @Override
     protected void setSeekPointSize(int seekPointCount) {
         super.setSeekPointSize(seekPointCount);
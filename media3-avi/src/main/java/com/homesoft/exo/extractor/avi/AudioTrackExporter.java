@@ -0,0 +1,363 @@
+package com.homesoft.exo.extractor.avi;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.media3.common.C;
+import androidx.media3.common.DataReader;
+import androidx.media3.common.Format;
+import androidx.media3.common.MimeTypes;
+import androidx.media3.common.util.ParsableByteArray;
+import androidx.media3.extractor.DefaultExtractorInput;
+import androidx.media3.extractor.ExtractorInput;
+import androidx.media3.extractor.TrackOutput;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Copies an audio stream of an AVI to a standalone file without decoding it.
+ * - PCM, ADPCM and G.711 are written as WAV, the WAVEFORMATEX comes straight from the strf
+ * - MP3, AC3 and DTS are re-aligned to the frame boundaries by the same StreamHandlers used
+ * for playback, so partial frames and junk between chunks are dropped
+ * - AAC is written as ADTS
+ */
+public class AudioTrackExporter implements Closeable {
+    private static final int RIFF = AviExtractor.RIFF;
+    private static final int WAVE = 0x45564157; // WAVE
+    private static final int FMT_ = 0x20746d66; // fmt<space>
+    private static final int DATA = 0x61746164; // data
+    private static final int ADTS_HEADER_SIZE = 7;
+
+    private static final int TYPE_WAV = 0;
+    private static final int TYPE_SYNC_FRAME = 1;
+    private static final int TYPE_ADTS = 2;
+    private static final int TYPE_AAC = 3;
+
+    private final AviIndex.Stream stream;
+    private final AudioFormat audioFormat;
+    private final int type;
+    @NonNull
+    private final String fileExtension;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel fileChannel;
+
+    public AudioTrackExporter(@NonNull File file) throws IOException {
+        this(AviIndex.read(file), file, -1);
+    }
+
+    /**
+     * @param streamIndex index of the stream in the {@link AviIndex} or -1 for the first audio stream
+     * @throws IllegalArgumentException if the stream isn't audio or the codec isn't supported
+     */
+    public AudioTrackExporter(@NonNull AviIndex aviIndex, @NonNull File file, int streamIndex) throws IOException {
+        final AviIndex.Stream stream = streamIndex < 0 ?
+                aviIndex.getFirstStream(C.TRACK_TYPE_AUDIO) : aviIndex.getStream(streamIndex);
+        if (stream == null || stream.getTrackType() != C.TRACK_TYPE_AUDIO) {
+            throw new IllegalArgumentException("No audio stream");
+        }
+        this.stream = stream;
+        audioFormat = stream.getStreamFormat().getAudioFormat();
+        final String mimeType = audioFormat.getMimeType();
+        if (MimeTypes.AUDIO_RAW.equals(mimeType)) {
+            type = TYPE_WAV;
+            fileExtension = "wav";
+        } else if (MimeTypes.AUDIO_MPEG.equals(mimeType)) {
+            type = TYPE_SYNC_FRAME;
+            fileExtension = "mp3";
+        } else if (MimeTypes.AUDIO_AC3.equals(mimeType)) {
+            type = TYPE_SYNC_FRAME;
+            fileExtension = "ac3";
+        } else if (MimeTypes.AUDIO_DTS.equals(mimeType)) {
+            type = TYPE_SYNC_FRAME;
+            fileExtension = "dts";
+        } else if (MimeTypes.AUDIO_AAC.equals(mimeType)) {
+            // Same rules as AviExtractor
+            type = audioFormat.getFormatTag() == AudioFormat.WAVE_FORMAT_MPEG_ADTS_AAC ||
+                    audioFormat.getCbSize() == 0 ? TYPE_ADTS : TYPE_AAC;
+            fileExtension = "aac";
+        } else {
+            throw new IllegalArgumentException("Unsupported audio: " + mimeType);
+        }
+        randomAccessFile = new RandomAccessFile(file, "r");
+        fileChannel = randomAccessFile.getChannel();
+    }
+
+    /**
+     * @return the extension of the output file (no dot)
+     */
+    @NonNull
+    public String getFileExtension() {
+        return fileExtension;
+    }
+
+    /**
+     * Write the audio stream
+     * @return bytes written
+     */
+    public long export(@NonNull WritableByteChannel out) throws IOException {
+        switch (type) {
+            case TYPE_WAV:
+                return exportWav(out);
+            case TYPE_SYNC_FRAME:
+                return exportSyncFrames(out);
+            case TYPE_AAC:
+                return exportAac(out);
+            default:
+                // ADTS is self framing, so the chunks can just be joined
+                return transferChunks(out);
+        }
+    }
+
+    public long export(@NonNull File file) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            return export(out.getChannel());
+        }
+    }
+
+    /**
+     * Build a WAV header, the fmt chunk is the strf
+     */
+    @VisibleForTesting
+    static ByteBuffer getWavHeader(@NonNull ByteBuffer waveFormat, long dataSize) {
+        final int fmtSize = waveFormat.remaining();
+        final int fmtPad = fmtSize & 1;
+        final ByteBuffer header = AviExtractor.allocate(12 + 8 + fmtSize + fmtPad + 8);
+        final long riffSize = header.capacity() - 8 + dataSize + (dataSize & 1);
+        header.putInt(RIFF);
+        header.putInt((int)Math.min(riffSize, AviExtractor.UINT_MASK));
+        header.putInt(WAVE);
+        header.putInt(FMT_);
+        header.putInt(fmtSize);
+        header.put(waveFormat.duplicate());
+        if (fmtPad != 0) {
+            header.put((byte)0);
+        }
+        header.putInt(DATA);
+        header.putInt((int)Math.min(dataSize, AviExtractor.UINT_MASK));
+        header.flip();
+        return header;
+    }
+
+    private long exportWav(@NonNull WritableByteChannel out) throws IOException {
+        final long dataSize = stream.getChunkIndex().getSize();
+        final ByteBuffer header = getWavHeader(stream.getStreamFormat().getByteBuffer(), dataSize);
+        final long headerSize = header.remaining();
+        write(header, out);
+        long bytes = headerSize + transferChunks(out);
+        if ((dataSize & 1) == 1) {
+            write(ByteBuffer.allocate(1), out);
+            bytes++;
+        }
+        return bytes;
+    }
+
+    /**
+     * Prefix each chunk (an AAC access unit) with an ADTS header built from the AudioSpecificConfig
+     */
+    private long exportAac(@NonNull WritableByteChannel out) throws IOException {
+        final byte[] asc = audioFormat.getCodecData();
+        if (asc.length < 2) {
+            throw new IOException("Invalid AudioSpecificConfig");
+        }
+        final int audioObjectType = (asc[0] & 0xff) >> 3;
+        final int sampleRateIndex = ((asc[0] & 0x7) << 1) | ((asc[1] & 0xff) >> 7);
+        final int channelConfig = (asc[1] >> 3) & 0xf;
+        if (audioObjectType == 0 || audioObjectType > 4 || sampleRateIndex > 12) {
+            throw new IOException("AAC can't be written as ADTS");
+        }
+        final ChunkIndex chunkIndex = stream.getChunkIndex();
+        final ByteBuffer header = ByteBuffer.allocate(ADTS_HEADER_SIZE);
+        long bytes = 0;
+        for (int i = 0; i < chunkIndex.getCount(); i++) {
+            final int size = chunkIndex.getChunkSize(i);
+            if (size == 0) {
+                continue;
+            }
+            setAdtsHeader(header, audioObjectType, sampleRateIndex, channelConfig, size);
+            write(header, out);
+            transfer(stream.getDataPosition(i), size, out);
+            bytes += ADTS_HEADER_SIZE + size;
+        }
+        return bytes;
+    }
+
+    @VisibleForTesting
+    static void setAdtsHeader(@NonNull ByteBuffer header, int audioObjectType, int sampleRateIndex,
+                              int channelConfig, int size) {
+        final int frameLength = ADTS_HEADER_SIZE + size;
+        header.clear();
+        header.put((byte)0xff);
+        // MPEG-4, layer 0, no CRC
+        header.put((byte)0xf1);
+        header.put((byte)(((audioObjectType - 1) << 6) | (sampleRateIndex << 2) | (channelConfig >> 2)));
+        header.put((byte)(((channelConfig & 0x3) << 6) | (frameLength >> 11)));
+        header.put((byte)((frameLength >> 3) & 0xff));
+        // Buffer fullness 0x7ff (VBR)
+        header.put((byte)(((frameLength & 0x7) << 5) | 0x1f));
+        header.put((byte)0xfc);
+        header.flip();
+    }
+
+    private long exportSyncFrames(@NonNull WritableByteChannel out) throws IOException {
+        final ChannelTrackOutput trackOutput = new ChannelTrackOutput(out);
+        final Format.Builder builder = stream.getFormat().buildUpon();
+        final int sampleRate = audioFormat.getSamplesPerSecond();
+        final long durationUs = stream.getDurationUs();
+        final String mimeType = audioFormat.getMimeType();
+        final SyncFrameStreamHandler streamHandler;
+        if (MimeTypes.AUDIO_MPEG.equals(mimeType)) {
+            streamHandler = new MpegAudioStreamHandler(stream.getId(), durationUs, trackOutput, sampleRate);
+        } else if (MimeTypes.AUDIO_AC3.equals(mimeType)) {
+            streamHandler = new Ac3StreamHandler(stream.getId(), durationUs, trackOutput, sampleRate, builder);
+        } else {
+            streamHandler = new DtsStreamHandler(stream.getId(), durationUs, trackOutput, sampleRate);
+        }
+        final ChunkReader chunkReader = new ChunkReader();
+        final ExtractorInput input = new DefaultExtractorInput(chunkReader, 0, C.LENGTH_UNSET);
+        final ChunkIndex chunkIndex = stream.getChunkIndex();
+        for (int i = 0; i < chunkIndex.getCount(); i++) {
+            final long position = stream.getDataPosition(i);
+            final int size = chunkIndex.getChunkSize(i);
+            chunkReader.set(position, size);
+            streamHandler.setRead(position, size);
+            while (!streamHandler.read(input)) {
+                if (chunkReader.remaining == 0) {
+                    // Stream handler is waiting for more data than the chunk has
+                    break;
+                }
+            }
+        }
+        return trackOutput.bytes;
+    }
+
+    private long transferChunks(@NonNull WritableByteChannel out) throws IOException {
+        final ChunkIndex chunkIndex = stream.getChunkIndex();
+        final int count = chunkIndex.getCount();
+        long bytes = 0;
+        int i = 0;
+        while (i < count) {
+            // Join runs of contiguous chunks into one transfer
+            final long position = stream.getDataPosition(i);
+            long size = chunkIndex.getChunkSize(i);
+            i++;
+            while (i < count && stream.getDataPosition(i) == position + size) {
+                size += chunkIndex.getChunkSize(i);
+                i++;
+            }
+            transfer(position, size, out);
+            bytes += size;
+        }
+        return bytes;
+    }
+
+    private void transfer(long position, long count, @NonNull WritableByteChannel out) throws IOException {
+        while (count > 0) {
+            final long bytes = fileChannel.transferTo(position, count, out);
+            if (bytes <= 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += bytes;
+            count -= bytes;
+        }
+    }
+
+    private static void write(@NonNull ByteBuffer byteBuffer, @NonNull WritableByteChannel out) throws IOException {
+        while (byteBuffer.hasRemaining()) {
+            out.write(byteBuffer);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        randomAccessFile.close();
+    }
+
+    /**
+     * Reads one chunk from the file
+     */
+    private class ChunkReader implements DataReader {
+        private long position;
+        private int remaining;
+
+        void set(long position, int size) {
+            this.position = position;
+            remaining = size;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+            if (remaining == 0) {
+                return C.RESULT_END_OF_INPUT;
+            }
+            final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, Math.min(length, remaining));
+            final int read = fileChannel.read(byteBuffer, position);
+            if (read < 0) {
+                return C.RESULT_END_OF_INPUT;
+            }
+            position += read;
+            remaining -= read;
+            return read;
+        }
+    }
+
+    /**
+     * Writes the sample data straight to the channel
+     */
+    private static class ChannelTrackOutput implements TrackOutput {
+        private final WritableByteChannel out;
+        private final byte[] buffer = new byte[16 * 1024];
+        private final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        long bytes;
+
+        ChannelTrackOutput(@NonNull WritableByteChannel out) {
+            this.out = out;
+        }
+
+        @Override
+        public void format(@NonNull Format format) {
+        }
+
+        @Override
+        public int sampleData(@NonNull DataReader input, int length, boolean allowEndOfInput,
+                              @SampleDataPart int sampleDataPart) throws IOException {
+            final int read = input.read(buffer, 0, Math.min(length, buffer.length));
+            if (read == C.RESULT_END_OF_INPUT) {
+                if (allowEndOfInput) {
+                    return C.RESULT_END_OF_INPUT;
+                }
+                throw new EOFException();
+            }
+            byteBuffer.clear();
+            byteBuffer.limit(read);
+            write(byteBuffer, out);
+            bytes += read;
+            return read;
+        }
+
+        @Override
+        public void sampleData(@NonNull ParsableByteArray data, int length,
+                               @SampleDataPart int sampleDataPart) {
+            // Only used for the frame header, TrackOutput doesn't allow an IOException here
+            try {
+                write(ByteBuffer.wrap(data.getData(), data.getPosition(), length), out);
+                bytes += length;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            data.skipBytes(length);
+        }
+
+        @Override
+        public void sampleMetadata(long timeUs, @C.BufferFlags int flags, int size, int offset,
+                                   @Nullable CryptoData cryptoData) {
+        }
+    }
+}
@@ -36,6 +36,7 @@ import java.nio.ByteOrder;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Deque;
 import java.util.List;
@@ -43,6 +44,16 @@ import java.util.List;
 /**
  * Extractor based on the official MicroSoft spec
  * https://docs.microsoft.com/en-us/windows/win32/directshow/avi-riff-file-reference
+ *
+ * A RIFF size of 0 or 0xFFFFFFFF (IP cameras) is played as a live stream: the RIFF and movi are
+ * unbounded, an unseekable SeekMap is published after the hdrl and the chunks are timed by the
+ * stream headers.  For low latency use a small ExoPlayer buffer and the MJPEG renderer live mode.
+ *
+ * A file that is still being recorded can be played and seeked with {@link #setGrowing(boolean)}.
+ * Remote files can start playing before the idx1 is loaded with {@link #setProgressiveStart(boolean)}.
+ *
+ * Large OpenDML files keep only the super indexes (indx) resident.  The standard indexes (ix##)
+ * are loaded into an LRU cache of {@link IndexPages} when a seek or playback reaches them.
  */
 public class AviExtractor implements Extractor {
   //Minimum time between keyframes in the AviSeekMap
@@ -50,6 +61,10 @@ public class AviExtractor implements Extractor {
   static final long UINT_MASK = 0xffffffffL;
   static final int USHORT_MASK = 0xffff;
   private static final int RELOAD_MINIMUM_SEEK_DISTANCE = 256 * 1024;
+  //Played from the movi before the idx1 at the end is loaded
+  private static final long PROGRESSIVE_START_US = 10_000_000L;
+  //Fewer standard indexes than this are all loaded before playing
+  private static final int PAGED_INDEX_MIN_PAGES = 16;
 
   static long getUInt(@NonNull ByteBuffer byteBuffer) {
     return byteBuffer.getInt() & UINT_MASK;
@@ -78,13 +93,42 @@ public class AviExtractor implements Extractor {
     final int upperChar = chunkId & 0xff;
     if (Character.isDigit(upperChar)) {
       final int lowerChar = (chunkId >> 8) & 0xff;
-      if (Character.isDigit(upperChar)) {
+      if (Character.isDigit(lowerChar)) {
         return (lowerChar & 0xf) + ((upperChar & 0xf) * 10);
       }
     }
     return -1;
   }
 
+  /**
+   * Add the entries of an OpenDML standard index (ix##) to the ChunkIndex
+   * @param byteBuffer the ix## payload
+   */
+  static void readStandardIndex(@NonNull ByteBuffer byteBuffer, @NonNull ChunkIndex chunkIndex) {
+    byteBuffer.position(byteBuffer.position() + 2); //Skip longs per entry
+    final byte indexSubType = byteBuffer.get();
+    if (indexSubType != 0) {
+      throw new IllegalArgumentException("Expected IndexSubType 0 got " + indexSubType);
+    }
+    final byte indexType = byteBuffer.get();
+    if (indexType != IndexBox.AVI_INDEX_OF_CHUNKS) {
+      throw new IllegalArgumentException("Expected IndexType 1 got " + indexType);
+    }
+    final int entriesInUse = byteBuffer.getInt();
+    byteBuffer.getInt(); // ChunkId
+    //baseOffset does not include the chunk header, so -8 to be compatible with IDX1
+    final long baseOffset = byteBuffer.getLong() - 8;
+    byteBuffer.position(byteBuffer.position() + 4); // Skip reserved
+
+    for (int i=0;i<entriesInUse;i++) {
+      final int offset = byteBuffer.getInt();
+      final int size = byteBuffer.getInt();
+      final int size31 = size & 0x7f_ff_ff_ff;
+      chunkIndex.add(baseOffset + (offset & AviExtractor.UINT_MASK), size31,
+              size == size31);
+    }
+  }
+
   static final String TAG = "AviExtractor";
   @VisibleForTesting
   static final int PEEK_BYTES = 28;
@@ -104,6 +148,16 @@ public class AviExtractor implements Extractor {
   static final int JUNK = 0x4b4e554a; // JUNK
   static final int REC_ = 0x20636572; // rec<space>
 
+  /**
+   * Notified when the chunk indexes are complete, before the SeekMap is built
+   */
+  interface IndexListener {
+    /**
+     * @return true to stop, the SeekMap isn't built and the ChunkIndexes aren't released
+     */
+    boolean onIndex(@NonNull AviExtractor aviExtractor);
+  }
+
   @VisibleForTesting
   final Deque<IReader> readerStack = new ArrayDeque<>(4);
   @VisibleForTesting
@@ -119,8 +173,66 @@ public class AviExtractor implements Extractor {
    * ChunkHandlers by StreamId
    */
   private StreamHandler[] streamHandlers = new StreamHandler[0];
+  /**
+   * Stream lists (strl) by StreamId
+   */
+  private ListBox[] streamLists = new ListBox[0];
+  @Nullable
+  private AviHeaderBox aviHeader;
+  @Nullable
+  private IndexListener indexListener;
   @VisibleForTesting
   SeekMap seekMap;
+  /**
+   * The RIFF has no size, chunks are read as they arrive
+   */
+  private boolean live;
+  /**
+   * The file is still being written, see {@link #setGrowing(boolean)}
+   */
+  private boolean growing;
+  @Nullable
+  private GrowingIndexBox growingIndexBox;
+  /**
+   * Reopen the input at the current position, to pick up the data written since it was opened
+   */
+  private boolean reopen;
+  /**
+   * Play from the movi before the idx1 is loaded, see {@link #setProgressiveStart(boolean)}
+   */
+  private boolean progressiveStart;
+  /**
+   * The movi being played until the idx1 is loaded
+   */
+  @Nullable
+  private MoviBox progressiveMoviBox;
+  /**
+   * The OpenDML indexes, when the ix## are loaded on demand
+   */
+  @Nullable
+  private IndexPages indexPages;
+  /**
+   * Page of the seek stream with the key frames of the chunks being read
+   */
+  private int keyFramePage;
+  /**
+   * Position of the last chunk in the key frame page
+   */
+  private long keyFramePageEnd;
+  @VisibleForTesting
+  int pagedIndexMinPages = PAGED_INDEX_MIN_PAGES;
+  /**
+   * Seek tables of earlier extractions, see {@link #setIndexCache(AviIndexCache, String)}
+   */
+  @Nullable
+  private AviIndexCache indexCache;
+  @Nullable
+  private String indexCacheUri;
+  private long inputLength = C.LENGTH_UNSET;
+  /**
+   * Track (stream) ids whose chunks are skipped, see {@link #setTrackEnabled(int, boolean)}
+   */
+  private final BitSet disabledTracks = new BitSet();
 
   @Override
   public boolean sniff(@NonNull ExtractorInput input) throws IOException {
@@ -133,6 +245,9 @@ public class AviExtractor implements Extractor {
    * Build and set the SeekMap based on the indices
    */
   private void buildSeekMap() {
+    if (indexListener != null && indexListener.onIndex(this)) {
+      return;
+    }
     long maxStreamDurationUs = 0;
     for (final StreamHandler streamHandler : streamHandlers) {
       if (streamHandler instanceof AudioStreamHandler) {
@@ -159,14 +274,120 @@ public class AviExtractor implements Extractor {
       }
     }
     // The AviHeader value can have rounding errors, so use the max stream duration if it's larger
-    setSeekMap(new AviSeekMap(Math.max(maxStreamDurationUs, durationUs),
-            seekStreamHandler, moviList.get(0).getStart()));
+    final long seekMapDurationUs = Math.max(maxStreamDurationUs, durationUs);
+    putIndexCache(seekMapDurationUs);
+    setSeekMap(new AviSeekMap(seekMapDurationUs, seekStreamHandler, moviList.get(0).getStart()));
+  }
+
+  /**
+   * Share the seek tables with later extractions of the same input, i.e. a prepare after
+   * a playlist repeat or a retry.  On a hit the SeekMap is published straight after the hdrl,
+   * without reading the index.
+   * Must be called before the hdrl is read
+   * @param indexCache usually {@link AviIndexCache#getInstance()}, null to disable
+   * @param uri of the input, the cache is keyed by it and the length
+   */
+  public void setIndexCache(@Nullable AviIndexCache indexCache, @Nullable String uri) {
+    this.indexCache = indexCache;
+    this.indexCacheUri = uri;
+  }
+
+  /**
+   * Disable a track the player isn't rendering, i.e. an unselected audio language.
+   * Its chunks are skipped without passing them to the TrackOutput, but its clock still advances,
+   * so enabling it again continues in sync from the next chunk.
+   * May be called from any thread.
+   * @param id of the track, the stream id, which is also the Format id
+   */
+  public void setTrackEnabled(int id, boolean enabled) {
+    synchronized (disabledTracks) {
+      disabledTracks.set(id, !enabled);
+      for (StreamHandler streamHandler : streamHandlers) {
+        if (streamHandler.getId() == id) {
+          streamHandler.setEnabled(enabled);
+        }
+      }
+    }
+  }
+
+  public boolean isTrackEnabled(int id) {
+    synchronized (disabledTracks) {
+      return !disabledTracks.get(id);
+    }
+  }
+
+  @Nullable
+  private String getIndexCacheKey() {
+    if (indexCache == null || indexCacheUri == null || inputLength == C.LENGTH_UNSET ||
+        live || growing || indexListener != null) {
+      return null;
+    }
+    return AviIndexCache.getKey(indexCacheUri, inputLength);
+  }
+
+  private void putIndexCache(long seekMapDurationUs) {
+    final String key = getIndexCacheKey();
+    if (key == null) {
+      return;
+    }
+    final int movis = moviList.size();
+    final long[] moviStarts = new long[movis];
+    final int[] moviSizes = new int[movis];
+    for (int m = 0; m < movis; m++) {
+      final MoviBox moviBox = moviList.get(m);
+      if (moviBox.isUnbounded()) {
+        return;
+      }
+      moviStarts[m] = moviBox.getStart();
+      moviSizes[m] = (int)moviBox.getSize();
+    }
+    final AviIndexCache.StreamTable[] streamTables =
+        new AviIndexCache.StreamTable[streamHandlers.length];
+    for (int s = 0; s < streamHandlers.length; s++) {
+      streamTables[s] = streamHandlers[s].getStreamTable();
+    }
+    indexCache.put(key, new AviIndexCache.Entry(seekMapDurationUs, moviStarts, moviSizes,
+        streamTables));
+  }
+
+  /**
+   * Restore the seek tables of an earlier extraction and publish the SeekMap
+   * @return false if the input isn't in the cache
+   */
+  private boolean restoreIndexCache() {
+    final String key = getIndexCacheKey();
+    final StreamHandler seekStreamHandler = getSeekStreamHandler();
+    if (key == null || seekStreamHandler == null) {
+      return false;
+    }
+    final AviIndexCache.Entry entry = indexCache.get(key);
+    if (entry == null || entry.streamTables.length != streamHandlers.length) {
+      return false;
+    }
+    moviList.clear();
+    for (int m = 0; m < entry.moviStarts.length; m++) {
+      addMovi(new MoviBox(entry.moviStarts[m], entry.moviSizes[m]));
+    }
+    for (int s = 0; s < streamHandlers.length; s++) {
+      streamHandlers[s].setStreamTable(entry.streamTables[s]);
+    }
+    setSeekMap(new AviSeekMap(entry.durationUs, seekStreamHandler, getFirstChunkPosition()));
+    return true;
   }
 
   @VisibleForTesting
   void setSeekMap(SeekMap seekMap) {
     this.seekMap = seekMap;
     output.seekMap(seekMap);
+    if (progressiveMoviBox != null) {
+      // The start of the movi was already sent, continue from there
+      readerStack.clear();
+      if (!progressiveMoviBox.isComplete()) {
+        readerStack.add(progressiveMoviBox);
+      }
+      progressiveMoviBox = null;
+      return;
+    }
     //Parsing complete, load movi(s)
     seek(0L, 0L);
   }
@@ -175,6 +396,259 @@ public class AviExtractor implements Extractor {
     return durationUs;
   }
 
+  /**
+   * @return true if this is an endless stream, i.e. from an IP camera
+   */
+  public boolean isLive() {
+    return live;
+  }
+
+  /**
+   * Play a file that is still being recorded, i.e. timeshift of a DVR recording.
+   * The RIFF sizes and indexes are ignored.  Instead, the movi chunks are indexed as they are
+   * written and the SeekMap/duration are republished each time the index reaches the end of the
+   * file.  At the end, the input is reopened for new chunks, so the extraction never ends.
+   * Play through a {@link com.homesoft.exo.extractor.GrowingDataSource} to pace the reopens.
+   * Must be called before {@link #init(ExtractorOutput)}
+   */
+  public void setGrowing(boolean growing) {
+    this.growing = growing;
+  }
+
+  public boolean isGrowing() {
+    return growing;
+  }
+
+  /**
+   * Start playing from the movi with stream header timestamps, while the legacy idx1 at the end
+   * of the file loads.  On HTTP the first frames arrive with the first response instead of after
+   * a range request for the index.  The SeekMap is unseekable until the idx1 is loaded.
+   * Must be called before {@link #init(ExtractorOutput)}
+   */
+  public void setProgressiveStart(boolean progressiveStart) {
+    this.progressiveStart = progressiveStart;
+  }
+
+  /**
+   * @return true if every stream can be timed without the index
+   */
+  private boolean canStartProgressive() {
+    if (!progressiveStart || indexListener != null || aviHeader == null ||
+        !aviHeader.hasIndex() || aviHeader.mustUseIndex() || streamHandlers.length == 0) {
+      return false;
+    }
+    for (StreamHandler streamHandler : streamHandlers) {
+      if (!streamHandler.chunkClock) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return true if the ix## can be loaded on demand, instead of all before playing
+   */
+  private boolean canPageIndex() {
+    final List<IndexBox> indexBoxList = getIndexBoxList();
+    if (indexBoxList.isEmpty() || indexListener != null || getSeekStreamHandler() == null) {
+      return false;
+    }
+    int pages = 0;
+    for (IndexBox indexBox : indexBoxList) {
+      pages += indexBox.getEntriesInUse();
+    }
+    if (pages < pagedIndexMinPages) {
+      return false;
+    }
+    for (StreamHandler streamHandler : streamHandlers) {
+      if (!streamHandler.chunkClock) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Publish the SeekMap from the super indexes, without reading the rest of the file
+   * @param moviStart start of the first movi
+   */
+  private void startPagedIndex(long moviStart) {
+    indexPages = new IndexPages(streamHandlers);
+    moviList.clear();
+    addMovi(new MoviBox(moviStart));
+    final StreamHandler seekStreamHandler = getSeekStreamHandler();
+    final int seekStreamId = seekStreamHandler.getId();
+    final int pageCount = indexPages.getPageCount(seekStreamId);
+    final long[] offsets = new long[pageCount];
+    final long[] timesUs = new long[pageCount];
+    for (int p = 0; p < pageCount; p++) {
+      offsets[p] = indexPages.getOffset(seekStreamId, p);
+      timesUs[p] = seekStreamHandler.getClockTimeUs(indexPages.getStartSamples(seekStreamId, p));
+    }
+    final long indexDurationUs =
+        seekStreamHandler.getClockTimeUs(indexPages.getTotalSamples(seekStreamId));
+    setSeekMap(new PagedSeekMap(Math.max(durationUs, indexDurationUs), offsets, timesUs));
+  }
+
+  /**
+   * @return the resident page, or null after queueing it to load and retry the seek
+   */
+  @Nullable
+  private ChunkIndex getIndexPage(int streamId, int page, long timeUs) {
+    final long offset = indexPages.getOffset(streamId, page);
+    final ChunkIndex chunkIndex = indexPages.get(offset);
+    if (chunkIndex == null) {
+      push(new IndexPageReader(offset, () -> seekPaged(timeUs)));
+    }
+    return chunkIndex;
+  }
+
+  /**
+   * Find the page of the stream with the position and count the samples before it
+   * @param page first guess, the page with the same ordinal in the seek stream
+   * @return the stream clock at the position, or -1 if a page is being loaded
+   */
+  private long getSamplesBefore(int streamId, long position, int page, long timeUs) {
+    final int pageCount = indexPages.getPageCount(streamId);
+    if (pageCount == 0) {
+      return 0L;
+    }
+    page = Math.min(page, pageCount - 1);
+    boolean forward = false;
+    while (true) {
+      final ChunkIndex chunkIndex = getIndexPage(streamId, page, timeUs);
+      if (chunkIndex == null) {
+        return -1L;
+      }
+      final int count = chunkIndex.getCount();
+      if (count > 0) {
+        if (!forward && page > 0 && position < chunkIndex.getChunkPosition(0)) {
+          page--;
+          continue;
+        } else if (page + 1 < pageCount && position > chunkIndex.getChunkPosition(count - 1)) {
+          page++;
+          forward = true;
+          continue;
+        }
+      }
+      return indexPages.getStartSamples(streamId, page) + streamHandlers[streamId].getSamples(
+          chunkIndex, chunkIndex.getChunksBefore(position));
+    }
+  }
+
+  /**
+   * Continue from the seek stream key frame at or before the time and set the stream clocks.
+   * Missing pages are loaded first, then the seek is retried.
+   */
+  private void seekPaged(long timeUs) {
+    readerStack.clear();
+    final StreamHandler seekStreamHandler = getSeekStreamHandler();
+    final int seekStreamId = seekStreamHandler.getId();
+    final long seekSamples = seekStreamHandler.getClockSamples(timeUs);
+    final int page = indexPages.getPage(seekStreamId, seekSamples);
+    final long[] samples = new long[streamHandlers.length];
+    final long keyPosition;
+    if (indexPages.getPageCount(seekStreamId) == 0) {
+      keyPosition = 0L;
+      keyFramePageEnd = Long.MAX_VALUE;
+    } else {
+      final ChunkIndex seekPage = getIndexPage(seekStreamId, page, timeUs);
+      if (seekPage == null) {
+        return;
+      }
+      final int count = seekPage.getCount();
+      final long pageSamples = seekSamples - indexPages.getStartSamples(seekStreamId, page);
+      final int keyIndex = count == 0 ? -1 :
+          seekPage.getKeyFrameIndex((int)Math.min(pageSamples, count - 1));
+      if (keyIndex < 0) {
+        // No key frame before the time in the page, start at the page
+        keyPosition = count == 0 ? 0L : seekPage.getChunkPosition(0);
+        samples[seekStreamId] = indexPages.getStartSamples(seekStreamId, page);
+      } else {
+        keyPosition = seekPage.getChunkPosition(keyIndex);
+        samples[seekStreamId] = indexPages.getStartSamples(seekStreamId, page) + keyIndex;
+      }
+      for (int s = 0; s < streamHandlers.length; s++) {
+        if (s != seekStreamId) {
+          samples[s] = getSamplesBefore(s, keyPosition, page, timeUs);
+          if (samples[s] < 0) {
+            return;
+          }
+        }
+      }
+      setKeyFramePage(page, seekPage);
+    }
+    final MoviBox moviBox = moviList.get(0);
+    moviBox.setPosition(keyPosition);
+    readerStack.add(moviBox);
+    for (int s = 0; s < streamHandlers.length; s++) {
+      streamHandlers[s].seekPosition(moviBox.getPosition());
+      streamHandlers[s].seekClock(samples[s]);
+    }
+  }
+
+  /**
+   * Use the key frames of the seek stream page
+   */
+  private void setKeyFramePage(int page, @NonNull ChunkIndex chunkIndex) {
+    keyFramePage = page;
+    final int count = chunkIndex.getCount();
+    if (page + 1 == indexPages.getPageCount(getSeekStreamHandler().getId())) {
+      keyFramePageEnd = Long.MAX_VALUE;
+    } else {
+      keyFramePageEnd = count == 0 ? -1L : chunkIndex.getChunkPosition(count - 1);
+    }
+    final StreamHandler seekStreamHandler = getSeekStreamHandler();
+    if (seekStreamHandler instanceof VideoStreamHandler) {
+      ((VideoStreamHandler) seekStreamHandler).setKeyFramePositions(
+          chunkIndex.getKeyFramePositions());
+    }
+  }
+
+  /**
+   * Move to the next key frame page
+   * @return false if the page is being loaded
+   */
+  private boolean nextKeyFramePage() {
+    final int page = keyFramePage + 1;
+    final long offset = indexPages.getOffset(getSeekStreamHandler().getId(), page);
+    final ChunkIndex chunkIndex = indexPages.get(offset);
+    if (chunkIndex == null) {
+      push(new IndexPageReader(offset, () -> setKeyFramePage(page, indexPages.get(offset))));
+      return false;
+    }
+    setKeyFramePage(page, chunkIndex);
+    return true;
+  }
+
+  @Nullable
+  @VisibleForTesting
+  IndexPages getIndexPages() {
+    return indexPages;
+  }
+
+  void setIndexListener(@Nullable IndexListener indexListener) {
+    this.indexListener = indexListener;
+  }
+
+  @NonNull
+  StreamHandler[] getStreamHandlers() {
+    return streamHandlers;
+  }
+
+  /**
+   * @return the stream list (strl) of the StreamHandler with the id
+   */
+  @NonNull
+  ListBox getStreamList(int streamId) {
+    return streamLists[streamId];
+  }
+
+  @Nullable
+  AviHeaderBox getAviHeader() {
+    return aviHeader;
+  }
+
   @Override
   public void init(@NonNull ExtractorOutput output) {
     this.output = output;
@@ -226,11 +700,21 @@ public class AviExtractor implements Extractor {
       } else {
         streamHandler = new VideoStreamHandler(streamId, durationUs, trackOutput);
       }
+      if (streamHandler instanceof NalStreamHandler) {
+        ((VideoStreamHandler) streamHandler).setDeltaMimeType(mimeType);
+      }
       trackOutput.format(builder.build());
     } else if (streamHeader.isAudio()) {
       final AudioFormat audioFormat = streamFormat.getAudioFormat();
-      final TrackOutput trackOutput = output.track(streamId, C.TRACK_TYPE_AUDIO);
       final String mimeType = audioFormat.getMimeType();
+      final PcmDecoder pcmDecoder = PcmDecoder.create(audioFormat);
+      if (pcmDecoder == null && MimeTypes.AUDIO_RAW.equals(mimeType) &&
+          audioFormat.getFormatTag() != AudioFormat.WAVE_FORMAT_PCM) {
+        // Only the PcmDecoderStreamHandler turns these into PCM
+        Log.w(TAG, "Unsupported audio format: " + audioFormat);
+        return null;
+      }
+      final TrackOutput trackOutput = output.track(streamId, C.TRACK_TYPE_AUDIO);
       builder.setSampleMimeType(mimeType);
       builder.setChannelCount(audioFormat.getChannels());
       builder.setSampleRate(audioFormat.getSamplesPerSecond());
@@ -238,7 +722,12 @@ public class AviExtractor implements Extractor {
       if (bytesPerSecond != 0) {
         builder.setAverageBitrate(bytesPerSecond * 8);
       }
-      if (MimeTypes.AUDIO_RAW.equals(mimeType)) {
+      if (pcmDecoder != null) {
+        // The suggested buffer size is for the compressed data
+        builder.setMaxInputSize(Format.NO_VALUE);
+        builder.setAverageBitrate(audioFormat.getSamplesPerSecond() * audioFormat.getChannels() * 16);
+        builder.setPcmEncoding(C.ENCODING_PCM_16BIT);
+      } else if (MimeTypes.AUDIO_RAW.equals(mimeType)) {
         final short bps = audioFormat.getBitsPerSample();
         if (bps == 8) {
           builder.setPcmEncoding(C.ENCODING_PCM_8BIT);
@@ -246,14 +735,30 @@ public class AviExtractor implements Extractor {
           builder.setPcmEncoding(C.ENCODING_PCM_16BIT);
         }
       }
+      final boolean adts = MimeTypes.AUDIO_AAC.equals(mimeType) &&
+          (audioFormat.getFormatTag() == AudioFormat.WAVE_FORMAT_MPEG_ADTS_AAC ||
+              audioFormat.getCbSize() == 0);
       if ((MimeTypes.AUDIO_AAC.equals(mimeType) || AudioFormat.AUDIO_WMA.equals(mimeType))
-              && audioFormat.getCbSize() > 0) {
+              && !adts && audioFormat.getCbSize() > 0) {
         builder.setInitializationData(Collections.singletonList(audioFormat.getCodecData()));
       }
       trackOutput.format(builder.build());
-      if (MimeTypes.AUDIO_MPEG.equals(mimeType)) {
+      if (pcmDecoder != null) {
+        streamHandler = new PcmDecoderStreamHandler(streamId, durationUs, trackOutput,
+            pcmDecoder);
+      } else if (MimeTypes.AUDIO_MPEG.equals(mimeType)) {
         streamHandler = new MpegAudioStreamHandler(streamId, durationUs, trackOutput,
             audioFormat.getSamplesPerSecond());
+      } else if (MimeTypes.AUDIO_AC3.equals(mimeType)) {
+        streamHandler = new Ac3StreamHandler(streamId, durationUs, trackOutput,
+            audioFormat.getSamplesPerSecond(), builder);
+      } else if (MimeTypes.AUDIO_DTS.equals(mimeType)) {
+        streamHandler = new DtsStreamHandler(streamId, durationUs, trackOutput,
+            audioFormat.getSamplesPerSecond());
+      } else if (adts) {
+        //No AudioSpecificConfig, so the frames must carry ADTS headers
+        streamHandler = new AdtsStreamHandler(streamId, durationUs, trackOutput,
+            audioFormat.getSamplesPerSecond(), builder);
       } else {
         streamHandler = new AudioStreamHandler(streamId, durationUs,
             trackOutput);
@@ -262,6 +767,7 @@ public class AviExtractor implements Extractor {
       streamHandler = null;
     }
     if (streamHandler != null) {
+      streamHandler.setChunkClock(streamHeader);
       final IndexBox indexBox = streamList.getChild(IndexBox.class);
       if (indexBox != null && indexBox.getIndexType() == IndexBox.AVI_INDEX_OF_INDEXES) {
         streamHandler.setIndexBox(indexBox);
@@ -354,6 +860,7 @@ public class AviExtractor implements Extractor {
     if (aviHeader == null) {
       throw new IllegalArgumentException("Expected AviHeader in header ListBox");
     }
+    this.aviHeader = aviHeader;
     long totalFrames = aviHeader.getTotalFrames();
     for (Box box : headerListBox.getChildren()) {
       if (box instanceof ListBox) {
@@ -365,6 +872,8 @@ public class AviExtractor implements Extractor {
           if (streamHandler != null) {
             streamHandlers = Arrays.copyOf(streamHandlers, streamId + 1);
             streamHandlers[streamId] = streamHandler;
+            streamLists = Arrays.copyOf(streamLists, streamId + 1);
+            streamLists[streamId] = streamListBox;
           }
         } else if (listBox.getType() == ListBox.TYPE_ODML) {
           final ExtendedAviHeader extendedAviHeader = listBox.getChild(ExtendedAviHeader.class);
@@ -375,6 +884,11 @@ public class AviExtractor implements Extractor {
       }
     }
     durationUs = totalFrames * aviHeader.getMicroSecPerFrame();
+    synchronized (disabledTracks) {
+      for (StreamHandler streamHandler : streamHandlers) {
+        streamHandler.setEnabled(!disabledTracks.get(streamHandler.getId()));
+      }
+    }
     output.endTracks();
   }
 
@@ -410,6 +924,11 @@ public class AviExtractor implements Extractor {
         ((Runnable) reader).run();
       }
     }
+    if (reopen) {
+      reopen = false;
+      positionHolder.position = input.getPosition();
+      return RESULT_SEEK;
+    }
     return RESULT_CONTINUE;
   }
 
@@ -417,10 +936,37 @@ public class AviExtractor implements Extractor {
   public void seek(long position, long timeUs) {
     //i("Seek pos=" + position +", us="+timeUs);
     if (seekMap == null) {
+      if (progressiveMoviBox != null) {
+        // Playing before the index, restart the movi
+        readerStack.remove(progressiveMoviBox);
+        progressiveMoviBox.setPosition(0L);
+        readerStack.push(progressiveMoviBox);
+        for (@NonNull StreamHandler streamHandler : streamHandlers) {
+          streamHandler.seekPosition(0L);
+        }
+      }
       //Until we have the seekMap assume we are still parsing
       return;
     }
     readerStack.clear();
+    reopen = false;
+    if (growingIndexBox != null) {
+      growingIndexBox.seek(position);
+      return;
+    }
+    if (indexPages != null) {
+      seekPaged(timeUs);
+      return;
+    }
+    if (live) {
+      // A live stream restarts from the header
+      moviList.clear();
+      readerStack.add(new RootReader());
+      for (@NonNull StreamHandler streamHandler : streamHandlers) {
+        streamHandler.seekPosition(0L);
+      }
+      return;
+    }
     for (MoviBox moviBox : moviList) {
       if (moviBox.setPosition(position)) {
         readerStack.add(moviBox);
@@ -436,6 +982,7 @@ public class AviExtractor implements Extractor {
     readerStack.clear();
     moviList.clear();
     streamHandlers = new StreamHandler[0];
+    streamLists = new ListBox[0];
   }
 
   @VisibleForTesting
@@ -502,6 +1049,7 @@ public class AviExtractor implements Extractor {
     public boolean read(@NonNull ExtractorInput input) throws IOException {
       if (size == Long.MIN_VALUE) {
         size = input.getLength();
+        inputLength = size;
       }
       if (isComplete()) {
         return true;
@@ -513,12 +1061,25 @@ public class AviExtractor implements Extractor {
         return true;
       }
       if (chunkId != RIFF) {
+        if (riffReader != null) {
+          // Usually chunks written after the last index flush of an unfinished recording
+          w("Ignoring data after RIFF @" + position);
+          size = position;
+          return true;
+        }
         throw new IOException("Expected RIFF");
       }
       final int type = headerPeeker.getType();
       if ((type & AVIX_MASK) != AVIX) {
         throw new IOException("Expected AVI?");
       }
+      final int riffSize = headerPeeker.getSize();
+      if (riffReader == null && (growing || riffSize == 0 || riffSize == -1)) {
+        live = !growing;
+        riffReader = new RiffReader(position + PARENT_HEADER_SIZE, type);
+        push(riffReader);
+        return false;
+      }
       riffReader = new RiffReader(position + PARENT_HEADER_SIZE, headerPeeker.getSize() - 4, type);
       push(riffReader);
       return advancePosition(CHUNK_HEADER_SIZE + headerPeeker.getSize());
@@ -534,6 +1095,9 @@ public class AviExtractor implements Extractor {
           list.addAll(indexBox.getPositions());
         }
         readerStack.push(new IdxxBox(list));
+      } else if (progressiveMoviBox != null) {
+        w("Missing idx1");
+        setSeekMap(new SeekMap.Unseekable(durationUs));
       }
     }
   }
@@ -545,6 +1109,14 @@ public class AviExtractor implements Extractor {
       this.riffType = type;
     }
 
+    /**
+     * Live RIFF, with no end
+     */
+    RiffReader(long start, int type) {
+      super(start);
+      this.riffType = type;
+    }
+
     @Override
     public boolean read(@NonNull ExtractorInput input) throws IOException {
       final int chunkId = headerPeeker.peak(input, CHUNK_HEADER_SIZE);
@@ -553,12 +1125,39 @@ public class AviExtractor implements Extractor {
         case ListBox.LIST:
           final int type = headerPeeker.peakType(input);
           if (type == MOVI) {
+            if (growing) {
+              // Index the chunks as they are written, the SeekMap is published at the end
+              final MoviBox moviBox = new MoviBox(position + PARENT_HEADER_SIZE);
+              addMovi(moviBox);
+              growingIndexBox = new GrowingIndexBox(moviBox.getStart());
+              push(growingIndexBox);
+              position += PARENT_HEADER_SIZE;
+              return false;
+            } else if (live) {
+              // Read the chunks as they arrive
+              final MoviBox moviBox = new MoviBox(position + PARENT_HEADER_SIZE);
+              addMovi(moviBox);
+              push(moviBox);
+              position += PARENT_HEADER_SIZE;
+              return false;
+            }
             addMovi(new MoviBox(position + PARENT_HEADER_SIZE, size - 4));
+            if (riffType == AVI_ && canPageIndex()) {
+              // Only the super indexes are needed up front, the rest is read on demand
+              startPagedIndex(position + PARENT_HEADER_SIZE);
+              return true;
+            }
             if (riffType == AVIX || getIndexBoxList().size() > 0) {
               //If we have OpenDML Indexes exit early and skip the IDX1 Index
               position = getEnd();
               return true;
             }
+            if (canStartProgressive()) {
+              // Play the start of the movi, then continue to the idx1
+              progressiveMoviBox = moviList.get(0);
+              output.seekMap(new SeekMap.Unseekable(durationUs));
+              push(progressiveMoviBox);
+            }
           } else if (type == ListBox.TYPE_HDRL){
             readerStack.push(new HeaderListBox(position + PARENT_HEADER_SIZE, size - 4, readerStack));
           }
@@ -580,6 +1179,13 @@ public class AviExtractor implements Extractor {
       super(start, size);
     }
 
+    /**
+     * Movi with no end, any RIFF-AVIX that follow are read straight through
+     */
+    MoviBox(long start) {
+      super(start);
+    }
+
     /**
      * Prepares the MoviBox to be added to the readerQueue
      * @param position will be set to {@link #getStart()}
@@ -595,16 +1201,51 @@ public class AviExtractor implements Extractor {
 
     @Override
     public boolean read(@NonNull ExtractorInput input) throws IOException {
-      final int chunkId = headerPeeker.peak(input, CHUNK_HEADER_SIZE);
+      if (growingIndexBox != null && position >= growingIndexBox.getPosition()) {
+        // Caught up with the index, wait for it to extend
+        push(growingIndexBox);
+        return false;
+      }
+      if (this == progressiveMoviBox &&
+          getSeekStreamHandler().getTimeUs() >= PROGRESSIVE_START_US) {
+        // Enough to start playing, load the idx1
+        return true;
+      }
+      final int chunkId;
+      if (isUnbounded()) {
+        if (!headerPeeker.peakSafe(input, CHUNK_HEADER_SIZE)) {
+          // The stream ended
+          readerStack.clear();
+          return true;
+        }
+        chunkId = headerPeeker.getChunkId();
+      } else {
+        chunkId = headerPeeker.peak(input, CHUNK_HEADER_SIZE);
+      }
       final StreamHandler streamHandler = getStreamHandler(chunkId);
       if (streamHandler != null) {
-        streamHandler.setRead(position + CHUNK_HEADER_SIZE, headerPeeker.getSize());
-        push(streamHandler);
+        while (indexPages != null && position > keyFramePageEnd &&
+            streamHandler == getSeekStreamHandler()) {
+          // Reached the next page of the seek stream, the key frames are there
+          if (!nextKeyFramePage()) {
+            return false;
+          }
+        }
+        if (streamHandler.isEnabled()) {
+          streamHandler.setRead(position + CHUNK_HEADER_SIZE, headerPeeker.getSize());
+          push(streamHandler);
+        } else {
+          // Disabled track, the chunk is skipped over by read()
+          streamHandler.skipChunk(headerPeeker.getSize());
+        }
       } else if (chunkId == ListBox.LIST) {
         final int type = headerPeeker.peakType(input);
-        if (type == REC_) {
+        if (type == REC_ || (isUnbounded() && type == MOVI)) {
           return advancePosition(PARENT_HEADER_SIZE);
         }
+      } else if (chunkId == RIFF && isUnbounded()) {
+        // Some cameras continue with RIFF-AVIX, read straight into it
+        return advancePosition(PARENT_HEADER_SIZE);
       }
       return advancePosition();
     }
@@ -629,33 +1270,12 @@ public class AviExtractor implements Extractor {
       headerPeeker.peak(input, BoxReader.CHUNK_HEADER_SIZE);
       ByteBuffer byteBuffer = BoxReader.getByteBuffer(input, headerPeeker.getSize());
       deque.pop();
-      byteBuffer.position(byteBuffer.position() + 2); //Skip longs per entry
-      final byte indexSubType = byteBuffer.get();
-      if (indexSubType != 0) {
-        throw new IllegalArgumentException("Expected IndexSubType 0 got " + indexSubType);
-      }
-      final byte indexType = byteBuffer.get();
-      if (indexType != IndexBox.AVI_INDEX_OF_CHUNKS) {
-        throw new IllegalArgumentException("Expected IndexType 1 got " + indexType);
-      }
-      final int entriesInUse = byteBuffer.getInt();
-      final int chunkId = byteBuffer.getInt();
+      final int chunkId = byteBuffer.getInt(8);
       final StreamHandler streamHandler = getStreamHandler(chunkId);
       if (streamHandler == null) {
         w("No StreamHandler for " + AviExtractor.toString(chunkId));
       } else {
-        final ChunkIndex chunkIndex = streamHandler.getChunkIndex();
-        //baseOffset does not include the chunk header, so -8 to be compatible with IDX1
-        final long baseOffset = byteBuffer.getLong() - 8;
-        byteBuffer.position(byteBuffer.position() + 4); // Skip reserved
-
-        for (int i=0;i<entriesInUse;i++) {
-          final int offset = byteBuffer.getInt();
-          final int size = byteBuffer.getInt();
-          final int size31 = size & 0x7f_ff_ff_ff;
-          chunkIndex.add(baseOffset + (offset & AviExtractor.UINT_MASK), size31,
-                  size == size31);
-        }
+        readStandardIndex(byteBuffer, streamHandler.getChunkIndex());
       }
       if (!deque.isEmpty()) {
         return false;
@@ -670,6 +1290,215 @@ public class AviExtractor implements Extractor {
     }
   }
 
+  /**
+   * Loads a standard index (ix##) page into the {@link IndexPages}, then runs the continuation
+   */
+  class IndexPageReader implements IReader, Runnable {
+    private final long position;
+    private final Runnable onLoad;
+
+    IndexPageReader(long position, @NonNull Runnable onLoad) {
+      this.position = position;
+      this.onLoad = onLoad;
+    }
+
+    @Override
+    public long getPosition() {
+      return position;
+    }
+
+    @Override
+    public boolean read(@NonNull ExtractorInput input) throws IOException {
+      final BoxReader.HeaderPeeker headerPeeker = new BoxReader.HeaderPeeker();
+      headerPeeker.peak(input, BoxReader.CHUNK_HEADER_SIZE);
+      final ByteBuffer byteBuffer = BoxReader.getByteBuffer(input, headerPeeker.getSize());
+      final ChunkIndex chunkIndex = new ChunkIndex();
+      readStandardIndex(byteBuffer, chunkIndex);
+      indexPages.put(position, chunkIndex);
+      return true;
+    }
+
+    @Override
+    public void run() {
+      onLoad.run();
+    }
+
+    @Override
+    public String toString() {
+      return "IndexPageReader{position=" + position + "}";
+    }
+  }
+
+  /**
+   * Indexes the chunks of a growing file, from the movi to the end of the written data.
+   * Each seek point holds the clock of every stream, so a seek only has to restore the clocks.
+   */
+  class GrowingIndexBox extends BoxReader {
+    @Nullable
+    private final StreamHandler seekStreamHandler;
+    /**
+     * Video mime types with delta frames by stream id, null if every chunk is a key frame
+     */
+    private final String[] deltaMimeTypes;
+    private final ByteBuffer keyFrameBuffer = allocate(AviIndexRepair.KEY_FRAME_PEEK);
+    private long[] positions = new long[16];
+    private long[] timesUs = new long[16];
+    /**
+     * Stream clocks (in samples) of the seek points, seekIndex * streams + streamId
+     */
+    private long[] clocks;
+    private int count;
+    private long publishedPosition;
+
+    GrowingIndexBox(long start) {
+      super(start);
+      publishedPosition = start;
+      seekStreamHandler = getSeekStreamHandler();
+      deltaMimeTypes = new String[streamHandlers.length];
+      for (int s = 0; s < streamHandlers.length; s++) {
+        if (streamHandlers[s] instanceof VideoStreamHandler) {
+          deltaMimeTypes[s] = ((VideoStreamHandler) streamHandlers[s]).getDeltaMimeType();
+        }
+      }
+      clocks = new long[positions.length * streamHandlers.length];
+    }
+
+    /**
+     * @return true if the bytes after the position have been written
+     */
+    private boolean isWritten(@NonNull ExtractorInput input, long bytes) {
+      final long length = input.getLength();
+      return length == C.LENGTH_UNSET || position + bytes <= length;
+    }
+
+    private boolean isKeyFrame(@NonNull ExtractorInput input, @NonNull StreamHandler streamHandler,
+        int size) throws IOException {
+      if (!(streamHandler instanceof VideoStreamHandler)) {
+        return true;
+      } else if (size <= 0) {
+        return false;
+      }
+      final String mimeType = deltaMimeTypes[streamHandler.getId()];
+      if (mimeType == null) {
+        return true;
+      }
+      final int peek = Math.min(size, keyFrameBuffer.capacity());
+      input.advancePeekPosition(CHUNK_HEADER_SIZE);
+      input.peekFully(keyFrameBuffer.array(), 0, peek);
+      input.resetPeekPosition();
+      keyFrameBuffer.clear();
+      keyFrameBuffer.limit(peek);
+      return AviIndexRepair.isKeyFrame(mimeType, keyFrameBuffer);
+    }
+
+    private void maybeAddSeekPoint() {
+      final long timeUs = seekStreamHandler.getClockTimeUs(seekStreamHandler.getIndexedSamples());
+      if (count > 0 && timeUs - timesUs[count - 1] < MIN_KEY_FRAME_RATE_US) {
+        return;
+      }
+      final int streams = streamHandlers.length;
+      if (count == positions.length) {
+        // Copies, so the published SeekMaps are never modified
+        positions = Arrays.copyOf(positions, count * 2);
+        timesUs = Arrays.copyOf(timesUs, count * 2);
+        clocks = Arrays.copyOf(clocks, count * 2 * streams);
+      }
+      if (timeUs == 0L) {
+        // Start at the movi like the AviSeekMap, every stream clock is 0
+        positions[count] = getStart();
+      } else {
+        positions[count] = position;
+        for (int s = 0; s < streams; s++) {
+          clocks[count * streams + s] = streamHandlers[s].getIndexedSamples();
+        }
+      }
+      timesUs[count] = timeUs;
+      count++;
+    }
+
+    private void publish() {
+      final long durationUs = seekStreamHandler == null || !seekStreamHandler.chunkClock ?
+          C.TIME_UNSET : seekStreamHandler.getClockTimeUs(seekStreamHandler.getIndexedSamples());
+      final SeekMap growingSeekMap = count == 0 ? new SeekMap.Unseekable(durationUs, getStart()) :
+          new GrowingSeekMap(durationUs, positions, timesUs, count);
+      if (seekMap == null) {
+        setSeekMap(growingSeekMap);
+      } else {
+        seekMap = growingSeekMap;
+        output.seekMap(growingSeekMap);
+      }
+    }
+
+    /**
+     * Reached the end of the written data
+     * @return true if new chunks were indexed
+     */
+    private boolean onEnd() throws IOException {
+      if (position != publishedPosition) {
+        publishedPosition = position;
+        publish();
+        return true;
+      }
+      // Nothing new, reopen the input for the new length.
+      // The DataSource paces the polling, see GrowingDataSource
+      reopen = true;
+      return false;
+    }
+
+    @Override
+    public boolean read(@NonNull ExtractorInput input) throws IOException {
+      if (!isWritten(input, CHUNK_HEADER_SIZE) ||
+          !headerPeeker.peakSafe(input, CHUNK_HEADER_SIZE)) {
+        return onEnd();
+      }
+      final int chunkId = headerPeeker.getChunkId();
+      final int size = headerPeeker.getSize();
+      if (chunkId == RIFF || chunkId == ListBox.LIST) {
+        if (!isWritten(input, PARENT_HEADER_SIZE)) {
+          return onEnd();
+        }
+        final int type = headerPeeker.peakType(input);
+        if (chunkId == RIFF || type == MOVI || type == REC_) {
+          // The sizes aren't final, so read into them
+          advancePosition(PARENT_HEADER_SIZE);
+          return false;
+        }
+      }
+      if (!isWritten(input, CHUNK_HEADER_SIZE + (size & UINT_MASK) + (size & 1))) {
+        return onEnd();
+      }
+      final StreamHandler streamHandler = getStreamHandler(chunkId);
+      if (streamHandler != null) {
+        final boolean key = isKeyFrame(input, streamHandler, size);
+        if (key && streamHandler == seekStreamHandler && streamHandler.chunkClock) {
+          maybeAddSeekPoint();
+        }
+        streamHandler.getChunkIndex().add(position, size, key);
+      }
+      advancePosition();
+      return false;
+    }
+
+    /**
+     * Queue the movi from the seek point at or before the position and restore the stream clocks
+     */
+    void seek(long seekPosition) {
+      int seekIndex = Arrays.binarySearch(positions, 0, count, seekPosition);
+      if (seekIndex < 0) {
+        seekIndex = -seekIndex - 2;
+      }
+      final MoviBox moviBox = moviList.get(0);
+      moviBox.setPosition(seekIndex < 0 ? 0L : positions[seekIndex]);
+      readerStack.add(moviBox);
+      final int streams = streamHandlers.length;
+      for (int s = 0; s < streams; s++) {
+        final StreamHandler streamHandler = streamHandlers[s];
+        streamHandler.seekPosition(moviBox.getPosition());
+        streamHandler.seekClock(seekIndex < 0 ? 0L : clocks[seekIndex * streams + s]);
+      }
+    }
+  }
+
   class HeaderListBox extends ListBox implements Runnable {
     public HeaderListBox(long position, int size, @NonNull Deque<IReader> readerStack) {
       super(position, size, ListBox.TYPE_HDRL, readerStack);
@@ -677,7 +1506,17 @@ public class AviExtractor implements Extractor {
 
     @Override
     public void run() {
-      createStreamHandlers(this);
+      if (streamHandlers.length == 0) {
+        createStreamHandlers(this);
+        if (restoreIndexCache()) {
+          return;
+        }
+      }
+      if (live) {
+        // No index, publish the SeekMap now, so the chunks can play as they arrive
+        seekMap = new SeekMap.Unseekable(C.TIME_UNSET);
+        output.seekMap(seekMap);
+      }
     }
   }
 }
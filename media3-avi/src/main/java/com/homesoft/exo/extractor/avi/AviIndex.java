@@ -0,0 +1,351 @@
+package com.homesoft.exo.extractor.avi;
+
+import android.net.Uri;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.DataReader;
+import androidx.media3.common.Format;
+import androidx.media3.common.util.ParsableByteArray;
+import androidx.media3.common.util.Util;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DataSourceUtil;
+import androidx.media3.datasource.DataSpec;
+import androidx.media3.datasource.FileDataSource;
+import androidx.media3.extractor.DefaultExtractorInput;
+import androidx.media3.extractor.Extractor;
+import androidx.media3.extractor.ExtractorInput;
+import androidx.media3.extractor.ExtractorOutput;
+import androidx.media3.extractor.PositionHolder;
+import androidx.media3.extractor.SeekMap;
+import androidx.media3.extractor.TrackOutput;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The parsed headers and index of an AVI file, for tools that copy chunks without decoding them.
+ * Unlike {@link AviExtractor}, the {@link ChunkIndex} of every stream is kept.
+ * In this class position is absolute file position of the chunk header
+ */
+public class AviIndex {
+    @NonNull
+    private final AviHeaderBox aviHeader;
+    @NonNull
+    private final Stream[] streams;
+    private final long durationUs;
+    private final long firstChunkPosition;
+    private final long length;
+
+    AviIndex(@NonNull AviHeaderBox aviHeader, @NonNull Stream[] streams, long durationUs,
+             long firstChunkPosition, long length) {
+        this.aviHeader = aviHeader;
+        this.streams = streams;
+        this.durationUs = durationUs;
+        this.firstChunkPosition = firstChunkPosition;
+        this.length = length;
+    }
+
+    @NonNull
+    public static AviIndex read(@NonNull File file) throws IOException {
+        return read(new FileDataSource(), new DataSpec(Uri.fromFile(file)));
+    }
+
+    /**
+     * Parse the headers and the index (idx1 or OpenDML)
+     * @throws IOException on read error or if the file doesn't have an index
+     */
+    @NonNull
+    public static AviIndex read(@NonNull DataSource dataSource, @NonNull DataSpec dataSpec) throws IOException {
+        final AviExtractor aviExtractor = new AviExtractor();
+        final IndexOutput indexOutput = new IndexOutput();
+        aviExtractor.init(indexOutput);
+        aviExtractor.setIndexListener(indexOutput);
+        final PositionHolder positionHolder = new PositionHolder();
+        long position = 0L;
+        try {
+            while (true) {
+                final long bytes = dataSource.open(dataSpec.subrange(position));
+                final long length = bytes == C.LENGTH_UNSET ? C.LENGTH_UNSET : position + bytes;
+                final ExtractorInput input = new DefaultExtractorInput(dataSource, position, length);
+                int result;
+                do {
+                    result = aviExtractor.read(input, positionHolder);
+                } while (result == Extractor.RESULT_CONTINUE && indexOutput.aviIndex == null);
+                dataSource.close();
+                if (indexOutput.aviIndex != null) {
+                    return indexOutput.aviIndex.withLength(length);
+                } else if (result == Extractor.RESULT_SEEK) {
+                    position = positionHolder.position;
+                } else {
+                    throw new IOException("AVI has no index");
+                }
+            }
+        } finally {
+            DataSourceUtil.closeQuietly(dataSource);
+        }
+    }
+
+    @NonNull
+    private AviIndex withLength(long length) {
+        return new AviIndex(aviHeader, streams, durationUs, firstChunkPosition, length);
+    }
+
+    @NonNull
+    public AviHeaderBox getAviHeader() {
+        return aviHeader;
+    }
+
+    public int getStreamCount() {
+        return streams.length;
+    }
+
+    @NonNull
+    public Stream getStream(int index) {
+        return streams[index];
+    }
+
+    /**
+     * @return the first stream of the type or null
+     * @param trackType {@link C#TRACK_TYPE_VIDEO} or {@link C#TRACK_TYPE_AUDIO}
+     */
+    @Nullable
+    public Stream getFirstStream(@C.TrackType int trackType) {
+        for (Stream stream : streams) {
+            if (stream.trackType == trackType) {
+                return stream;
+            }
+        }
+        return null;
+    }
+
+    public long getDurationUs() {
+        return durationUs;
+    }
+
+    /**
+     * @return position of the first chunk in the (first) movi
+     */
+    public long getFirstChunkPosition() {
+        return firstChunkPosition;
+    }
+
+    /**
+     * @return file length or {@link C#LENGTH_UNSET}
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public static class Stream {
+        private final int id;
+        final int chunkId;
+        private final @C.TrackType int trackType;
+        @NonNull
+        private final Format format;
+        @NonNull
+        private final StreamHeaderBox streamHeader;
+        @NonNull
+        private final StreamFormatBox streamFormat;
+        @NonNull
+        private final ChunkIndex chunkIndex;
+        private final long durationUs;
+
+        Stream(int id, int chunkId, @C.TrackType int trackType, @NonNull Format format,
+               @NonNull StreamHeaderBox streamHeader, @NonNull StreamFormatBox streamFormat,
+               @NonNull ChunkIndex chunkIndex, long durationUs) {
+            this.id = id;
+            this.chunkId = chunkId;
+            this.trackType = trackType;
+            this.format = format;
+            this.streamHeader = streamHeader;
+            this.streamFormat = streamFormat;
+            this.chunkIndex = chunkIndex;
+            this.durationUs = durationUs;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public @C.TrackType int getTrackType() {
+            return trackType;
+        }
+
+        /**
+         * @return the Format as sent by the {@link AviExtractor}
+         */
+        @NonNull
+        public Format getFormat() {
+            return format;
+        }
+
+        @NonNull
+        public StreamHeaderBox getStreamHeader() {
+            return streamHeader;
+        }
+
+        @NonNull
+        public StreamFormatBox getStreamFormat() {
+            return streamFormat;
+        }
+
+        @NonNull
+        public ChunkIndex getChunkIndex() {
+            return chunkIndex;
+        }
+
+        public long getDurationUs() {
+            return durationUs;
+        }
+
+        /**
+         * @return position of the chunk payload (after the chunk header)
+         */
+        public long getDataPosition(int index) {
+            return chunkIndex.getChunkPosition(index) + BoxReader.CHUNK_HEADER_SIZE;
+        }
+
+        /**
+         * Time of a chunk, only valid for constant rate streams (i.e. video)
+         */
+        public long getChunkTimeUs(int index) {
+            return durationUs * index / chunkIndex.getCount();
+        }
+
+        /**
+         * @return the chunk at or before timeUs, only valid for constant rate streams (i.e. video)
+         */
+        public int getChunkIndex(long timeUs) {
+            final int count = chunkIndex.getCount();
+            if (count == 0 || durationUs <= 0) {
+                return 0;
+            }
+            return (int)Math.max(0, Math.min(count - 1, timeUs * count / durationUs));
+        }
+
+        /**
+         * Start times of all the chunks, timed the way {@link AviExtractor} times an indexed
+         * stream: video by chunk, audio by byte
+         * @return the times, followed by the duration
+         */
+        @NonNull
+        public long[] getChunkTimesUs() {
+            final int count = chunkIndex.getCount();
+            final long[] timesUs = new long[count + 1];
+            final long size = chunkIndex.getSize();
+            long bytes = 0L;
+            for (int i = 0; i < count; i++) {
+                if (trackType == C.TRACK_TYPE_AUDIO && size > 0) {
+                    timesUs[i] = Util.scaleLargeTimestamp(bytes, durationUs, size);
+                    bytes += chunkIndex.getChunkSize(i);
+                } else {
+                    timesUs[i] = getChunkTimeUs(i);
+                }
+            }
+            timesUs[count] = durationUs;
+            return timesUs;
+        }
+
+        @Override
+        public String toString() {
+            return "Stream{id=" + id + ", format=" + format + ", chunks=" + chunkIndex.getCount() + "}";
+        }
+    }
+
+    /**
+     * Captures the Formats and the chunk indexes, the sample data is discarded
+     */
+    private static class IndexOutput implements ExtractorOutput, AviExtractor.IndexListener {
+        private final SparseArray<FormatTrackOutput> trackOutputs = new SparseArray<>();
+        @Nullable
+        private AviIndex aviIndex;
+
+        @NonNull
+        @Override
+        public TrackOutput track(int id, int type) {
+            final FormatTrackOutput trackOutput = new FormatTrackOutput(type);
+            trackOutputs.put(id, trackOutput);
+            return trackOutput;
+        }
+
+        @Override
+        public void endTracks() {
+        }
+
+        @Override
+        public void seekMap(@NonNull SeekMap seekMap) {
+        }
+
+        @Override
+        public boolean onIndex(@NonNull AviExtractor aviExtractor) {
+            final AviHeaderBox aviHeader = aviExtractor.getAviHeader();
+            if (aviHeader == null) {
+                return false;
+            }
+            final StreamHandler[] streamHandlers = aviExtractor.getStreamHandlers();
+            final Stream[] streams = new Stream[streamHandlers.length];
+            for (int i = 0; i < streamHandlers.length; i++) {
+                final StreamHandler streamHandler = streamHandlers[i];
+                final int id = streamHandler.getId();
+                final FormatTrackOutput trackOutput = trackOutputs.get(id);
+                final ListBox streamList = aviExtractor.getStreamList(i);
+                final StreamHeaderBox streamHeader = streamList.getChild(StreamHeaderBox.class);
+                final StreamFormatBox streamFormat = streamList.getChild(StreamFormatBox.class);
+                if (trackOutput == null || trackOutput.format == null || streamHeader == null ||
+                        streamFormat == null) {
+                    return false;
+                }
+                streams[i] = new Stream(id, streamHandler.chunkId, trackOutput.trackType,
+                        trackOutput.format, streamHeader, streamFormat, streamHandler.getChunkIndex(),
+                        streamHandler.getDurationUs());
+            }
+            aviIndex = new AviIndex(aviHeader, streams, aviExtractor.getDuration(),
+                    aviExtractor.getFirstChunkPosition(), C.LENGTH_UNSET);
+            return true;
+        }
+    }
+
+    private static class FormatTrackOutput implements TrackOutput {
+        private final @C.TrackType int trackType;
+        @Nullable
+        private Format format;
+        private final byte[] scratch = new byte[4096];
+
+        FormatTrackOutput(@C.TrackType int trackType) {
+            this.trackType = trackType;
+        }
+
+        @Override
+        public void format(@NonNull Format format) {
+            this.format = format;
+        }
+
+        @Override
+        public int sampleData(@NonNull DataReader input, int length, boolean allowEndOfInput,
+                              @SampleDataPart int sampleDataPart) throws IOException {
+            final int read = input.read(scratch, 0, Math.min(length, scratch.length));
+            if (read == C.RESULT_END_OF_INPUT) {
+                if (allowEndOfInput) {
+                    return C.RESULT_END_OF_INPUT;
+                }
+                throw new EOFException();
+            }
+            return read;
+        }
+
+        @Override
+        public void sampleData(@NonNull ParsableByteArray data, int length,
+                               @SampleDataPart int sampleDataPart) {
+            data.skipBytes(length);
+        }
+
+        @Override
+        public void sampleMetadata(long timeUs, @C.BufferFlags int flags, int size, int offset,
+                                   @Nullable CryptoData cryptoData) {
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.homesoft.exo.extractor.avi;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Process wide LRU cache of the seek tables built from AVI indexes, bounded by memory.
+ * ExoPlayer creates a new {@link AviExtractor} for every prepare, retry and repeat, with the
+ * cache a second extraction of the same media publishes its SeekMap straight after the hdrl.
+ * Entries are keyed by the uri and length of the input and are never modified once added.
+ */
+public class AviIndexCache {
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+    private static final AviIndexCache INSTANCE = new AviIndexCache(DEFAULT_MAX_BYTES);
+
+    /**
+     * The seek table of a stream, see {@link StreamHandler#getStreamTable()}
+     */
+    static class StreamTable {
+        final long durationUs;
+        final int chunkCount;
+        final long chunkSize;
+        /**
+         * Still timed by the stream header clock, i.e. a secondary video stream
+         */
+        final boolean chunkClock;
+        @NonNull
+        final long[] positions;
+        /**
+         * Video chunk index of each seek point
+         */
+        @Nullable
+        final int[] indices;
+        /**
+         * Audio time of each seek point
+         */
+        @Nullable
+        final long[] times;
+        final boolean allKeyFrames;
+        final long frameUs;
+
+        StreamTable(long durationUs, int chunkCount, long chunkSize, boolean chunkClock,
+                    @NonNull long[] positions, @Nullable int[] indices, @Nullable long[] times,
+                    boolean allKeyFrames, long frameUs) {
+            this.durationUs = durationUs;
+            this.chunkCount = chunkCount;
+            this.chunkSize = chunkSize;
+            this.chunkClock = chunkClock;
+            this.positions = positions;
+            this.indices = indices;
+            this.times = times;
+            this.allKeyFrames = allKeyFrames;
+            this.frameUs = frameUs;
+        }
+
+        long getBytes() {
+            return ENTRY_OVERHEAD_BYTES + positions.length * 8L +
+                    (indices == null ? 0 : indices.length * 4L) +
+                    (times == null ? 0 : times.length * 8L);
+        }
+    }
+
+    /**
+     * Everything needed to play the file without reading the index again
+     */
+    static class Entry {
+        final long durationUs;
+        @NonNull
+        final long[] moviStarts;
+        @NonNull
+        final int[] moviSizes;
+        @NonNull
+        final StreamTable[] streamTables;
+        final long bytes;
+
+        Entry(long durationUs, @NonNull long[] moviStarts, @NonNull int[] moviSizes,
+              @NonNull StreamTable[] streamTables) {
+            this.durationUs = durationUs;
+            this.moviStarts = moviStarts;
+            this.moviSizes = moviSizes;
+            this.streamTables = streamTables;
+            long bytes = ENTRY_OVERHEAD_BYTES + moviStarts.length * 12L;
+            for (StreamTable streamTable : streamTables) {
+                bytes += streamTable.getBytes();
+            }
+            this.bytes = bytes;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private long bytes;
+    private int hitCount;
+    private int missCount;
+
+    /**
+     * The cache shared by all the {@link AviExtractor}s
+     */
+    @NonNull
+    public static AviIndexCache getInstance() {
+        return INSTANCE;
+    }
+
+    AviIndexCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    @NonNull
+    static String getKey(@NonNull String uri, long length) {
+        return uri + '#' + length;
+    }
+
+    @Nullable
+    synchronized Entry get(@NonNull String key) {
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            missCount++;
+        } else {
+            hitCount++;
+        }
+        return entry;
+    }
+
+    synchronized void put(@NonNull String key, @NonNull Entry entry) {
+        if (entry.bytes > maxBytes) {
+            return;
+        }
+        final Entry old = entries.put(key, entry);
+        if (old != null) {
+            bytes -= old.bytes;
+        }
+        bytes += entry.bytes;
+        trim();
+    }
+
+    private void trim() {
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            bytes -= iterator.next().bytes;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Set the memory bound, evicting the least recently used entries if needed
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    /**
+     * @return the estimated memory used by the entries
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Remove the entries and reset the stats
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0L;
+        hitCount = 0;
+        missCount = 0;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return "AviIndexCache{entries=" + entries.size() + ", bytes=" + bytes +
+                ", hits=" + hitCount + ", misses=" + missCount + "}";
+    }
+}
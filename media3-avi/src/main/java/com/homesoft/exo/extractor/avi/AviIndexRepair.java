@@ -0,0 +1,559 @@
+package com.homesoft.exo.extractor.avi;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.media3.common.MimeTypes;
+import androidx.media3.common.util.Log;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Rebuilds the index of an AVI in place, e.g. after the recorder crashed before writing it.
+ * The movi lists are scanned chunk by chunk with large reads, one task per RIFF.
+ * A single RIFF AVI gets an idx1.  OpenDML AVIs (every strl has an indx) get ix## chunks at the
+ * end of the last movi and their indx filled in.
+ * The declared size of the last RIFF isn't trusted: a recorder that flushed its index keeps
+ * writing chunks past it, so the chunks are followed until the first invalid header or EOF.
+ * Anything after the last complete chunk is truncated, then the RIFF/movi sizes, the frame
+ * counts and AVIF_HASINDEX are updated.
+ */
+public class AviIndexRepair {
+    private static final String TAG = "AviIndexRepair";
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+    /**
+     * Payload bytes checked for a key frame
+     */
+    static final int KEY_FRAME_PEEK = 512;
+    private static final int MAX_HEADER_LIST_SIZE = 1024 * 1024;
+    private static final int NAL_UNIT_TYPE_NON_IDR = 1;
+    private static final int NAL_UNIT_TYPE_IDR = 5;
+    private static final int NAL_UNIT_TYPE_SPS = 7;
+    private static final int VOP_START_CODE = 0xb6;
+    private static final int PALETTE_CHANGE = ('p' << 16) | ('c' << 24);
+    private static final int TYPE_MASK = 0xffff0000;
+
+    /**
+     * Is the chunk the start of a key frame
+     * @param mimeType of the video stream, null for audio
+     * @param data the start of the chunk payload
+     */
+    @VisibleForTesting
+    static boolean isKeyFrame(@Nullable String mimeType, @NonNull ByteBuffer data) {
+        final int limit = data.limit();
+        if (MimeTypes.VIDEO_H264.equals(mimeType)) {
+            for (int i = data.position(); i + 3 < limit; i++) {
+                if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                    final int nalUnitType = data.get(i + 3) & 0x1f;
+                    if (nalUnitType == NAL_UNIT_TYPE_IDR || nalUnitType == NAL_UNIT_TYPE_SPS) {
+                        return true;
+                    } else if (nalUnitType == NAL_UNIT_TYPE_NON_IDR) {
+                        return false;
+                    }
+                }
+            }
+            return false;
+        } else if (MimeTypes.VIDEO_MP4V.equals(mimeType)) {
+            for (int i = data.position(); i + 4 < limit; i++) {
+                if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1 &&
+                        (data.get(i + 3) & 0xff) == VOP_START_CODE) {
+                    // vop_coding_type 0 = I-VOP
+                    return (data.get(i + 4) & 0xc0) == 0;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private static void readFully(@NonNull FileChannel fileChannel, @NonNull ByteBuffer byteBuffer,
+                                  long position) throws IOException {
+        while (byteBuffer.hasRemaining()) {
+            final int read = fileChannel.read(byteBuffer, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+        byteBuffer.flip();
+    }
+
+    @NonNull
+    private static ByteBuffer slice(@NonNull ByteBuffer byteBuffer, int offset, int size) {
+        final ByteBuffer duplicate = byteBuffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + size);
+        return duplicate.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static class Stream {
+        @Nullable
+        StreamHeaderBox streamHeader;
+        long streamHeaderPosition;
+        @Nullable
+        String mimeType;
+        /**
+         * Position of the indx chunk or -1
+         */
+        long indexPosition = -1L;
+        int indexSize;
+        int chunkId;
+    }
+
+    private static class Riff {
+        final long start;
+        long moviStart = -1L;
+        long moviEnd;
+        /**
+         * End of the last complete chunk
+         */
+        long validEnd;
+        final AviWriter.Entries entries = new AviWriter.Entries();
+        /**
+         * The chunk ids found by stream
+         */
+        int[] chunkIds;
+
+        Riff(long start) {
+            this.start = start;
+        }
+    }
+
+    private final File file;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private final ArrayList<Stream> streams = new ArrayList<>();
+    @Nullable
+    private Stream currentStream;
+    private long aviHeaderPosition = -1L;
+    private long extendedAviHeaderPosition = -1L;
+
+    public AviIndexRepair(@NonNull File file) {
+        this.file = file;
+    }
+
+    /**
+     * @param threads max threads used to scan the RIFFs
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Rebuild the index
+     * @return the number of chunks indexed
+     * @throws IOException on read/write error or if the file can't be repaired
+     */
+    public int repair() throws IOException {
+        streams.clear();
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            final FileChannel fileChannel = randomAccessFile.getChannel();
+            final ArrayList<Riff> riffs = readRiffs(fileChannel);
+            if (aviHeaderPosition < 0 || streams.isEmpty()) {
+                throw new IOException("Missing hdrl");
+            }
+            scan(fileChannel, riffs);
+            return writeIndex(fileChannel, riffs);
+        }
+    }
+
+    /**
+     * Walk the RIFFs, parsing the hdrl and finding the movi lists
+     */
+    @NonNull
+    private ArrayList<Riff> readRiffs(@NonNull FileChannel fileChannel) throws IOException {
+        final long length = fileChannel.size();
+        final ByteBuffer header = AviExtractor.allocate(BoxReader.PARENT_HEADER_SIZE);
+        final ArrayList<Riff> riffs = new ArrayList<>();
+        long position = 0L;
+        while (position + BoxReader.PARENT_HEADER_SIZE <= length) {
+            header.clear();
+            readFully(fileChannel, header, position);
+            if (header.getInt(0) != AviExtractor.RIFF ||
+                    (header.getInt(8) & AviExtractor.AVIX_MASK) != AviExtractor.AVIX) {
+                if (riffs.isEmpty()) {
+                    throw new IOException("Expected RIFF AVI");
+                }
+                Log.w(TAG, "Ignoring data after RIFF at " + position);
+                break;
+            }
+            long riffEnd = position + BoxReader.CHUNK_HEADER_SIZE + (header.getInt(4) & AviExtractor.UINT_MASK);
+            if (riffEnd <= position + BoxReader.PARENT_HEADER_SIZE || riffEnd > length) {
+                // The size wasn't written
+                riffEnd = length;
+            }
+            final Riff riff = new Riff(position);
+            long child = position + BoxReader.PARENT_HEADER_SIZE;
+            while (child + BoxReader.PARENT_HEADER_SIZE <= riffEnd) {
+                header.clear();
+                readFully(fileChannel, header, child);
+                final int size = header.getInt(4);
+                long childEnd = child + BoxReader.CHUNK_HEADER_SIZE + (size & AviExtractor.UINT_MASK);
+                if (header.getInt(0) == ListBox.LIST) {
+                    final int type = header.getInt(8);
+                    if (type == AviExtractor.MOVI) {
+                        riff.moviStart = child;
+                        riff.moviEnd = size == 0 || childEnd > riffEnd ? riffEnd : childEnd;
+                        break;
+                    } else if (type == ListBox.TYPE_HDRL && riffs.isEmpty()) {
+                        if (size > MAX_HEADER_LIST_SIZE || childEnd > riffEnd) {
+                            throw new IOException("Bad hdrl size " + size);
+                        }
+                        readHeaderList(fileChannel, child, size);
+                    }
+                }
+                child = childEnd + (childEnd & 1);
+            }
+            if (riff.moviStart < 0) {
+                if (riffs.isEmpty()) {
+                    throw new IOException("Missing movi");
+                }
+                break;
+            }
+            riffs.add(riff);
+            position = riffEnd + (riffEnd & 1);
+            if (riff.moviEnd == riffEnd && position + BoxReader.CHUNK_HEADER_SIZE <= length) {
+                header.clear();
+                header.limit((int) Math.min(BoxReader.PARENT_HEADER_SIZE, length - position));
+                readFully(fileChannel, header, position);
+                if (header.limit() < BoxReader.PARENT_HEADER_SIZE || header.getInt(0) != AviExtractor.RIFF ||
+                        (header.getInt(8) & AviExtractor.AVIX_MASK) != AviExtractor.AVIX) {
+                    // The sizes are from a flush, the chunks written after it follow
+                    final long chunksEnd = skipChunks(fileChannel, position, length);
+                    if (chunksEnd > position) {
+                        riff.moviEnd = chunksEnd;
+                        position = chunksEnd + (chunksEnd & 1);
+                    }
+                }
+            }
+        }
+        return riffs;
+    }
+
+    /**
+     * @return true for the chunks expected in a movi: stream data, ix## and JUNK
+     */
+    private boolean isMoviChunk(int chunkId) {
+        if (chunkId == AviExtractor.JUNK ||
+                (chunkId & 0xffff) == (AviWriter.getIndexChunkId(0) & 0xffff)) {
+            return true;
+        }
+        final int streamIndex = AviExtractor.getStreamId(chunkId);
+        return streamIndex >= 0 && streamIndex < streams.size();
+    }
+
+    /**
+     * Follow the chunk headers past the declared end of a movi
+     * @return the end of the last complete chunk before the first invalid header or EOF
+     */
+    private long skipChunks(@NonNull FileChannel fileChannel, long position, long length) throws IOException {
+        final ByteBuffer header = AviExtractor.allocate(BoxReader.PARENT_HEADER_SIZE);
+        while (position + BoxReader.CHUNK_HEADER_SIZE <= length) {
+            header.clear();
+            header.limit((int) Math.min(BoxReader.PARENT_HEADER_SIZE, length - position));
+            readFully(fileChannel, header, position);
+            final int chunkId = header.getInt(0);
+            final int size = header.getInt(4);
+            if (chunkId == ListBox.LIST && size >= 4 && header.limit() == BoxReader.PARENT_HEADER_SIZE &&
+                    header.getInt(BoxReader.CHUNK_HEADER_SIZE) == AviExtractor.REC_) {
+                position += BoxReader.PARENT_HEADER_SIZE;
+                continue;
+            }
+            final long chunkEnd = position + BoxReader.CHUNK_HEADER_SIZE + (size & AviExtractor.UINT_MASK);
+            if (size < 0 || chunkEnd > length || !isMoviChunk(chunkId)) {
+                break;
+            }
+            position = Math.min(chunkEnd + (chunkEnd & 1), length);
+        }
+        return position;
+    }
+
+    private void readHeaderList(@NonNull FileChannel fileChannel, long position, int size) throws IOException {
+        final ByteBuffer headerList = AviExtractor.allocate(BoxReader.CHUNK_HEADER_SIZE + size);
+        readFully(fileChannel, headerList, position);
+        readList(headerList, position, BoxReader.PARENT_HEADER_SIZE, headerList.limit());
+    }
+
+    /**
+     * Record the hdrl boxes and their file positions
+     * @param base file position of headerList[0]
+     */
+    private void readList(@NonNull ByteBuffer headerList, long base, int offset, int end) {
+        while (offset + BoxReader.CHUNK_HEADER_SIZE <= end) {
+            final int chunkId = headerList.getInt(offset);
+            final int size = headerList.getInt(offset + 4);
+            final int dataOffset = offset + BoxReader.CHUNK_HEADER_SIZE;
+            if (size < 0 || dataOffset + size > end) {
+                Log.w(TAG, "Bad hdrl box " + AviExtractor.toString(chunkId));
+                return;
+            }
+            switch (chunkId) {
+                case AviHeaderBox.AVIH:
+                    aviHeaderPosition = base + dataOffset;
+                    break;
+                case ListBox.LIST: {
+                    final int type = headerList.getInt(dataOffset);
+                    if (type == ListBox.TYPE_STRL) {
+                        currentStream = new Stream();
+                        streams.add(currentStream);
+                    }
+                    if (type == ListBox.TYPE_STRL || type == ListBox.TYPE_ODML) {
+                        readList(headerList, base, dataOffset + 4, dataOffset + size);
+                    }
+                    break;
+                }
+                case StreamHeaderBox.STRH:
+                    if (currentStream != null) {
+                        currentStream.streamHeader = new StreamHeaderBox(slice(headerList, dataOffset, size));
+                        currentStream.streamHeaderPosition = base + dataOffset;
+                    }
+                    break;
+                case StreamFormatBox.STRF:
+                    if (currentStream != null && currentStream.streamHeader != null &&
+                            currentStream.streamHeader.isVideo()) {
+                        currentStream.mimeType = new StreamFormatBox(slice(headerList, dataOffset, size))
+                                .getVideoFormat().getMimeType();
+                    }
+                    break;
+                case IndexBox.INDX:
+                    if (currentStream != null) {
+                        currentStream.indexPosition = base + offset;
+                        currentStream.indexSize = size;
+                    }
+                    break;
+                case ExtendedAviHeader.DMLH:
+                    extendedAviHeaderPosition = base + dataOffset;
+                    break;
+            }
+            offset = dataOffset + size + (size & 1);
+        }
+    }
+
+    /**
+     * Scan the movi lists, in parallel if there is more than one
+     */
+    private void scan(@NonNull FileChannel fileChannel, @NonNull ArrayList<Riff> riffs) throws IOException {
+        final int threadCount = Math.min(threads, riffs.size());
+        if (threadCount <= 1) {
+            for (Riff riff : riffs) {
+                scan(fileChannel, riff);
+            }
+            return;
+        }
+        final ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+        try {
+            final ArrayList<Future<Void>> futures = new ArrayList<>(riffs.size());
+            for (final Riff riff : riffs) {
+                futures.add(executorService.submit(() -> {
+                    scan(fileChannel, riff);
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Scan the chunks of one movi until the end or the first bad chunk
+     */
+    private void scan(@NonNull FileChannel fileChannel, @NonNull Riff riff) throws IOException {
+        final ByteBuffer buffer = AviExtractor.allocate(READ_BUFFER_SIZE);
+        buffer.limit(0);
+        long bufferStart = 0L;
+        riff.chunkIds = new int[streams.size()];
+        final long end = riff.moviEnd;
+        long position = riff.moviStart + BoxReader.PARENT_HEADER_SIZE;
+        riff.validEnd = position;
+        while (position + BoxReader.CHUNK_HEADER_SIZE <= end) {
+            final int need = (int) Math.min(BoxReader.CHUNK_HEADER_SIZE + KEY_FRAME_PEEK, end - position);
+            if (position < bufferStart || position + need > bufferStart + buffer.limit()) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                readFully(fileChannel, buffer, position);
+                bufferStart = position;
+            }
+            final int offset = (int) (position - bufferStart);
+            final int chunkId = buffer.getInt(offset);
+            final int size = buffer.getInt(offset + 4);
+            final long chunkEnd = position + BoxReader.CHUNK_HEADER_SIZE + (size & AviExtractor.UINT_MASK);
+            if (chunkId == ListBox.LIST && size >= 4 && need >= BoxReader.PARENT_HEADER_SIZE &&
+                    buffer.getInt(offset + BoxReader.CHUNK_HEADER_SIZE) == AviExtractor.REC_) {
+                position += BoxReader.PARENT_HEADER_SIZE;
+                continue;
+            }
+            if (size < 0 || chunkEnd > end) {
+                Log.w(TAG, "Truncated chunk at " + position);
+                break;
+            }
+            if (chunkId != ListBox.LIST && chunkId != AviExtractor.JUNK &&
+                    (chunkId & 0xffff) != (AviWriter.getIndexChunkId(0) & 0xffff)) {
+                if (!isMoviChunk(chunkId)) {
+                    Log.w(TAG, "Unexpected chunk " + AviExtractor.toString(chunkId) + " at " + position);
+                    break;
+                }
+                final int streamIndex = AviExtractor.getStreamId(chunkId);
+                if ((chunkId & TYPE_MASK) != PALETTE_CHANGE) {
+                    final Stream stream = streams.get(streamIndex);
+                    final boolean key;
+                    if (stream.streamHeader != null && stream.streamHeader.isVideo()) {
+                        final int peek = (int) Math.min(size, buffer.limit() - offset - BoxReader.CHUNK_HEADER_SIZE);
+                        key = size > 0 && isKeyFrame(stream.mimeType,
+                                slice(buffer, offset + BoxReader.CHUNK_HEADER_SIZE, peek));
+                    } else {
+                        key = true;
+                    }
+                    riff.entries.add(streamIndex, position, size, key);
+                    if (riff.chunkIds[streamIndex] == 0) {
+                        riff.chunkIds[streamIndex] = chunkId;
+                    }
+                }
+            }
+            position = chunkEnd + (chunkEnd & 1);
+            riff.validEnd = Math.min(position, end);
+        }
+    }
+
+    private int getChunkId(int streamIndex, @NonNull ArrayList<Riff> riffs) {
+        for (Riff riff : riffs) {
+            if (riff.chunkIds[streamIndex] != 0) {
+                return riff.chunkIds[streamIndex];
+            }
+        }
+        final StreamHeaderBox streamHeader = streams.get(streamIndex).streamHeader;
+        return StreamHandler.getChunkIdLower(streamIndex) | (streamHeader != null &&
+                streamHeader.isAudio() ? StreamHandler.TYPE_AUDIO : StreamHandler.TYPE_VIDEO);
+    }
+
+    private int writeIndex(@NonNull FileChannel fileChannel, @NonNull ArrayList<Riff> riffs) throws IOException {
+        final int streamCount = streams.size();
+        final int[] chunkIds = new int[streamCount];
+        boolean openDml = true;
+        for (int s = 0; s < streamCount; s++) {
+            final Stream stream = streams.get(s);
+            chunkIds[s] = getChunkId(s, riffs);
+            stream.chunkId = chunkIds[s];
+            if (stream.indexPosition < 0 || stream.indexSize < AviWriter.SUPER_INDEX_HEADER_SIZE +
+                    AviWriter.SUPER_INDEX_ENTRY_SIZE * riffs.size()) {
+                openDml = false;
+            }
+        }
+        if (!openDml && riffs.size() > 1) {
+            throw new IOException("No room for the OpenDML index");
+        }
+        final Riff lastRiff = riffs.get(riffs.size() - 1);
+        final ChannelWriter channelWriter = new ChannelWriter(fileChannel, AviWriter.WRITE_BUFFER_SIZE);
+        final long end;
+        if (openDml) {
+            final int riffCount = riffs.size();
+            final long[][] indexPositions = new long[streamCount][riffCount];
+            final int[][] indexSizes = new int[streamCount][riffCount];
+            final int[][] indexDurations = new int[streamCount][riffCount];
+            final int[] indexes = new int[streamCount];
+            // Append all the ix## chunks to the last movi
+            channelWriter.begin(lastRiff.validEnd);
+            for (Riff riff : riffs) {
+                for (int s = 0; s < streamCount; s++) {
+                    final int indexSize = riff.entries.getStandardIndexSize(s);
+                    if (indexSize == 0) {
+                        continue;
+                    }
+                    final StreamHeaderBox streamHeader = streams.get(s).streamHeader;
+                    final int i = indexes[s]++;
+                    indexPositions[s][i] = channelWriter.getPosition();
+                    indexSizes[s][i] = indexSize;
+                    indexDurations[s][i] = streamHeader == null ? 0 :
+                            AviWriter.getLength(streamHeader.getByteBuffer(),
+                                    riff.entries.getChunkCount(s), riff.entries.getByteCount(s));
+                    riff.entries.putStandardIndex(channelWriter, s, chunkIds[s],
+                            riff.moviStart + BoxReader.PARENT_HEADER_SIZE);
+                }
+            }
+            end = channelWriter.end();
+            channelWriter.putInt(lastRiff.moviStart + 4,
+                    (int) (end - lastRiff.moviStart - BoxReader.CHUNK_HEADER_SIZE));
+            for (int s = 0; s < streamCount; s++) {
+                final Stream stream = streams.get(s);
+                channelWriter.begin(stream.indexPosition);
+                AviWriter.putSuperIndex(channelWriter, chunkIds[s],
+                        (stream.indexSize - AviWriter.SUPER_INDEX_HEADER_SIZE) / AviWriter.SUPER_INDEX_ENTRY_SIZE,
+                        indexPositions[s], indexSizes[s], indexDurations[s], indexes[s]);
+                channelWriter.end();
+                // Keep the original size if it had padding
+                channelWriter.putInt(stream.indexPosition + 4, stream.indexSize);
+            }
+        } else {
+            final long moviEnd = lastRiff.validEnd;
+            channelWriter.putInt(lastRiff.moviStart + 4,
+                    (int) (moviEnd - lastRiff.moviStart - BoxReader.CHUNK_HEADER_SIZE));
+            channelWriter.begin(moviEnd);
+            lastRiff.entries.putIdx1(channelWriter, chunkIds, lastRiff.moviStart);
+            end = channelWriter.end();
+        }
+        fileChannel.truncate(end);
+        channelWriter.putInt(lastRiff.start + 4, (int) (end - lastRiff.start - BoxReader.CHUNK_HEADER_SIZE));
+
+        // Frame counts
+        int frameStream = 0;
+        for (int s = 0; s < streamCount; s++) {
+            final StreamHeaderBox streamHeader = streams.get(s).streamHeader;
+            if (streamHeader != null && streamHeader.isVideo()) {
+                frameStream = s;
+                break;
+            }
+        }
+        long chunks = 0;
+        long totalFrames = 0;
+        for (int s = 0; s < streamCount; s++) {
+            final Stream stream = streams.get(s);
+            long streamChunks = 0;
+            long streamBytes = 0;
+            for (Riff riff : riffs) {
+                streamChunks += riff.entries.getChunkCount(s);
+                streamBytes += riff.entries.getByteCount(s);
+            }
+            chunks += streamChunks;
+            if (s == frameStream) {
+                totalFrames = streamChunks;
+            }
+            if (stream.streamHeader != null) {
+                channelWriter.putInt(stream.streamHeaderPosition + 32,
+                        AviWriter.getLength(stream.streamHeader.getByteBuffer(), streamChunks, streamBytes));
+            }
+        }
+        if (extendedAviHeaderPosition >= 0) {
+            channelWriter.putInt(extendedAviHeaderPosition, (int) totalFrames);
+        }
+        final ByteBuffer aviHeader = AviExtractor.allocate(AviHeaderBox.LEN);
+        readFully(fileChannel, aviHeader, aviHeaderPosition);
+        channelWriter.putInt(aviHeaderPosition + 16, openDml ?
+                riffs.get(0).entries.getChunkCount(frameStream) : (int) totalFrames);
+        // Last, so an interrupted repair isn't mistaken for an indexed file
+        fileChannel.force(false);
+        channelWriter.putInt(aviHeaderPosition + 12, aviHeader.getInt(12) | AviHeaderBox.AVIF_HASINDEX);
+        fileChannel.force(true);
+        return (int) chunks;
+    }
+}
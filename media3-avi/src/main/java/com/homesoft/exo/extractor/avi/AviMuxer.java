@@ -0,0 +1,202 @@
+package com.homesoft.exo.extractor.avi;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+import androidx.media3.common.C;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Records an AVI as the chunks arrive, e.g. MJPEG video and PCM audio from a camera.
+ * Chunks are batched in a large write buffer (frames that don't fit are written directly) and
+ * the index is kept in primitive arrays, so nothing is allocated per chunk.
+ * Past 1GB the recording continues in RIFF-AVIX segments with OpenDML indexes.
+ * The index is flushed every {@link #setFlushIntervalMs(long)}, so if the app dies the file plays
+ * up to the last flush and {@link AviIndexRepair} can recover the rest.
+ */
+public class AviMuxer implements Closeable {
+    private static final String TAG = "AviMuxer";
+    static final int MJPG = 0x47504a4d;
+    private static final int WAVE_FORMAT_PCM = 1;
+    private static final int STREAM_HEADER_SIZE = 56;
+    private static final int BITMAP_INFO_HEADER_SIZE = 40;
+    private static final int WAVE_FORMAT_EX_SIZE = 18;
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    private static final long DEFAULT_FLUSH_INTERVAL_MS = 2000L;
+
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel fileChannel;
+    private final long maxRiffSize;
+    private final ArrayList<AviWriter.Stream> streamList = new ArrayList<>();
+    private final ByteBuffer aviHeader = AviExtractor.allocate(AviHeaderBox.LEN);
+    private final ChannelWriter channelWriter;
+    private int[] chunkIds;
+    private AviWriter aviWriter;
+    private long flushIntervalMs = DEFAULT_FLUSH_INTERVAL_MS;
+    private long flushTimeMs;
+
+    public AviMuxer(@NonNull File file) throws IOException {
+        this(file, AviWriter.MAX_RIFF_SIZE);
+    }
+
+    @VisibleForTesting
+    AviMuxer(@NonNull File file, long maxRiffSize) throws IOException {
+        this.maxRiffSize = maxRiffSize;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        fileChannel = randomAccessFile.getChannel();
+        fileChannel.truncate(0L);
+        channelWriter = new ChannelWriter(fileChannel, WRITE_BUFFER_SIZE);
+    }
+
+    /**
+     * How often the index is flushed to the file, 0 to only flush on {@link #flush()}
+     */
+    public void setFlushIntervalMs(long flushIntervalMs) {
+        this.flushIntervalMs = flushIntervalMs;
+    }
+
+    private int addStream(int type, @NonNull ByteBuffer streamHeader,
+                          @NonNull ByteBuffer streamFormat) {
+        if (aviWriter != null) {
+            throw new IllegalStateException("Streams must be added before the first chunk");
+        }
+        final int streamId = streamList.size();
+        streamList.add(new AviWriter.Stream(StreamHandler.getChunkIdLower(streamId) | type,
+                streamHeader, streamFormat));
+        return streamId;
+    }
+
+    /**
+     * Add an MJPEG video stream, the frame rate is rate / scale
+     * @return the stream id for {@link #writeChunk(int, ByteBuffer, boolean)}
+     */
+    public int addMjpegStream(int width, int height, int rate, int scale) {
+        final ByteBuffer streamHeader = AviExtractor.allocate(STREAM_HEADER_SIZE);
+        streamHeader.putInt(0, StreamHeaderBox.VIDS);
+        streamHeader.putInt(4, MJPG);
+        streamHeader.putInt(20, scale);
+        streamHeader.putInt(24, rate);
+        streamHeader.putInt(40, -1); // dwQuality
+        streamHeader.putShort(52, (short)width); // rcFrame
+        streamHeader.putShort(54, (short)height);
+
+        final ByteBuffer streamFormat = AviExtractor.allocate(BITMAP_INFO_HEADER_SIZE);
+        streamFormat.putInt(0, BITMAP_INFO_HEADER_SIZE);
+        streamFormat.putInt(4, width);
+        streamFormat.putInt(8, height);
+        streamFormat.putShort(12, (short)1); // biPlanes
+        streamFormat.putShort(14, (short)24); // biBitCount
+        streamFormat.putInt(16, MJPG);
+        streamFormat.putInt(20, width * height * 3);
+
+        if (aviHeader.getInt(0) == 0) {
+            aviHeader.putInt(0, (int)(C.MICROS_PER_SECOND * scale / rate));
+            aviHeader.putInt(32, width);
+            aviHeader.putInt(36, height);
+        }
+        return addStream(StreamHandler.TYPE_VIDEO, streamHeader, streamFormat);
+    }
+
+    /**
+     * Add a PCM audio stream, the chunks must be whole sample frames
+     * @return the stream id for {@link #writeChunk(int, ByteBuffer, boolean)}
+     */
+    public int addPcmStream(int sampleRate, int channels, int bitsPerSample) {
+        final int blockAlign = channels * bitsPerSample / 8;
+        final ByteBuffer streamHeader = AviExtractor.allocate(STREAM_HEADER_SIZE);
+        streamHeader.putInt(0, StreamHeaderBox.AUDS);
+        streamHeader.putInt(20, 1);
+        streamHeader.putInt(24, sampleRate);
+        streamHeader.putInt(40, -1); // dwQuality
+        streamHeader.putInt(44, blockAlign); // dwSampleSize
+
+        final ByteBuffer streamFormat = AviExtractor.allocate(WAVE_FORMAT_EX_SIZE);
+        streamFormat.putShort(0, (short)WAVE_FORMAT_PCM);
+        streamFormat.putShort(2, (short)channels);
+        streamFormat.putInt(4, sampleRate);
+        streamFormat.putInt(8, sampleRate * blockAlign);
+        streamFormat.putShort(12, (short)blockAlign);
+        streamFormat.putShort(14, (short)bitsPerSample);
+        return addStream(StreamHandler.TYPE_AUDIO, streamHeader, streamFormat);
+    }
+
+    private void start() throws IOException {
+        if (streamList.isEmpty()) {
+            throw new IllegalStateException("No streams");
+        }
+        final AviWriter.Stream[] streams = streamList.toArray(new AviWriter.Stream[0]);
+        chunkIds = new int[streams.length];
+        for (int s = 0; s < streams.length; s++) {
+            chunkIds[s] = streams[s].chunkId;
+        }
+        aviWriter = new AviWriter(fileChannel, aviHeader, streams, maxRiffSize);
+        channelWriter.begin(aviWriter.getPosition());
+        flushTimeMs = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Append a chunk, data is consumed
+     * @param streamId from {@link #addMjpegStream(int, int, int, int)} or
+     *                 {@link #addPcmStream(int, int, int)}
+     */
+    public void writeChunk(int streamId, @NonNull ByteBuffer data, boolean keyFrame)
+            throws IOException {
+        if (aviWriter == null) {
+            start();
+        }
+        final int size = data.remaining();
+        final long position = aviWriter.addChunk(streamId, size, keyFrame);
+        if (position != channelWriter.getPosition()) {
+            // A RIFF-AVIX was started
+            channelWriter.end();
+            channelWriter.begin(position);
+        }
+        final ByteBuffer byteBuffer = channelWriter.room(BoxReader.CHUNK_HEADER_SIZE);
+        byteBuffer.putInt(chunkIds[streamId]);
+        byteBuffer.putInt(size);
+        channelWriter.put(data);
+        if ((size & 1) != 0) {
+            channelWriter.room(1).put((byte)0);
+        }
+        if (flushIntervalMs > 0 && SystemClock.elapsedRealtime() - flushTimeMs >= flushIntervalMs) {
+            flush();
+        }
+    }
+
+    /**
+     * Write the buffered chunks and a partial index, so the file is readable up to here
+     */
+    public void flush() throws IOException {
+        if (aviWriter == null) {
+            return;
+        }
+        channelWriter.end();
+        aviWriter.flushIndex();
+        channelWriter.begin(aviWriter.getPosition());
+        flushTimeMs = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Write the buffered chunks and the final index
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (aviWriter == null) {
+                start();
+            }
+            channelWriter.end();
+            aviWriter.finish();
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
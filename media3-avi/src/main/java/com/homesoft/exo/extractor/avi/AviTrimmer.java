@@ -0,0 +1,228 @@
+package com.homesoft.exo.extractor.avi;
+
+import androidx.annotation.NonNull;
+import androidx.media3.common.C;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Cuts an AVI at key frames without decoding.
+ * The cut points come from the key frames of the video stream.  The other streams are cut at the
+ * chunks nearest to the cut times, not at the file positions, because muxers interleave audio
+ * ahead of the video (preload).  The hdrl is rebuilt with the new frame counts, the chunks
+ * between the cut points are copied with large sequential transfers and a new index (idx1 and
+ * OpenDML) is written.
+ */
+public class AviTrimmer implements Closeable {
+    private final AviIndex aviIndex;
+    /**
+     * The stream the cut points come from
+     */
+    private final AviIndex.Stream cutStream;
+    /**
+     * Chunk start times of every stream, see {@link AviIndex.Stream#getChunkTimesUs()}
+     */
+    private final long[][] chunkTimesUs;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel fileChannel;
+
+    public AviTrimmer(@NonNull File file) throws IOException {
+        this(AviIndex.read(file), file);
+    }
+
+    /**
+     * @param aviIndex the index of file
+     */
+    public AviTrimmer(@NonNull AviIndex aviIndex, @NonNull File file) throws IOException {
+        this.aviIndex = aviIndex;
+        final AviIndex.Stream videoStream = aviIndex.getFirstStream(C.TRACK_TYPE_VIDEO);
+        cutStream = videoStream == null ? aviIndex.getStream(0) : videoStream;
+        chunkTimesUs = new long[aviIndex.getStreamCount()][];
+        for (int s = 0; s < chunkTimesUs.length; s++) {
+            chunkTimesUs[s] = aviIndex.getStream(s).getChunkTimesUs();
+        }
+        randomAccessFile = new RandomAccessFile(file, "r");
+        fileChannel = randomAccessFile.getChannel();
+    }
+
+    /**
+     * @return the key frame at or before the chunk
+     */
+    private int getKeyFrameAtOrBefore(int chunk) {
+        final int keyFrame = cutStream.getChunkIndex().keyFrames.previousSetBit(chunk);
+        return Math.max(keyFrame, 0);
+    }
+
+    /**
+     * @return the key frame at or after the chunk or the chunk count if there isn't one
+     */
+    private int getKeyFrameAtOrAfter(int chunk) {
+        final ChunkIndex chunkIndex = cutStream.getChunkIndex();
+        final int keyFrame = chunkIndex.keyFrames.nextSetBit(chunk);
+        return keyFrame < 0 || keyFrame > chunkIndex.getCount() ? chunkIndex.getCount() : keyFrame;
+    }
+
+    private int getEndChunk(long timeUs) {
+        if (timeUs >= cutStream.getDurationUs()) {
+            return cutStream.getChunkIndex().getCount();
+        }
+        return getKeyFrameAtOrAfter(cutStream.getChunkIndex(timeUs));
+    }
+
+    /**
+     * Copy the time range to a new AVI.  The start is moved back to the previous key frame and
+     * the end forward to the next key frame.
+     * @return the duration of the output
+     */
+    public long trim(long fromUs, long toUs, @NonNull File output) throws IOException {
+        if (toUs <= fromUs) {
+            throw new IllegalArgumentException("toUs <= fromUs");
+        }
+        final int from = getKeyFrameAtOrBefore(cutStream.getChunkIndex(fromUs));
+        final int to = Math.max(getEndChunk(toUs), from + 1);
+        copy(from, to, output);
+        return getTimeUs(to) - getTimeUs(from);
+    }
+
+    /**
+     * Split into parts of about partDurationUs, every part starts with a key frame
+     * @return the files written to the directory, part_000.avi, part_001.avi, ...
+     */
+    @NonNull
+    public List<File> split(long partDurationUs, @NonNull File directory) throws IOException {
+        if (partDurationUs <= 0) {
+            throw new IllegalArgumentException("partDurationUs <= 0");
+        }
+        final int count = cutStream.getChunkIndex().getCount();
+        final ArrayList<File> list = new ArrayList<>();
+        int from = 0;
+        while (from < count) {
+            final int to = Math.max(getEndChunk(getTimeUs(from) + partDurationUs), from + 1);
+            final File file = new File(directory,
+                    String.format(Locale.US, "part_%03d.avi", list.size()));
+            copy(from, to, file);
+            list.add(file);
+            from = to;
+        }
+        return list;
+    }
+
+    private long getTimeUs(int chunk) {
+        if (chunk >= cutStream.getChunkIndex().getCount()) {
+            return cutStream.getDurationUs();
+        }
+        return cutStream.getChunkTimeUs(chunk);
+    }
+
+    /**
+     * @return the chunk that starts nearest to timeUs, the chunk count past the last chunk
+     */
+    private static int getNearestChunk(@NonNull long[] timesUs, long timeUs) {
+        final int index = Arrays.binarySearch(timesUs, timeUs);
+        if (index >= 0) {
+            return index;
+        }
+        final int after = -index - 1;
+        if (after == 0) {
+            return 0;
+        } else if (after == timesUs.length) {
+            return timesUs.length - 1;
+        }
+        return timeUs - timesUs[after - 1] <= timesUs[after] - timeUs ? after - 1 : after;
+    }
+
+    /**
+     * Copy the chunks of the cut stream between the cut stream chunks and the chunks of the
+     * other streams between the times of the cut stream chunks
+     * @param to exclusive
+     */
+    private void copy(int from, int to, @NonNull File output) throws IOException {
+        final int cutCount = cutStream.getChunkIndex().getCount();
+        final long startUs = getTimeUs(from);
+        final long endUs = getTimeUs(to);
+
+        final int streamCount = aviIndex.getStreamCount();
+        final AviWriter.Stream[] writerStreams = new AviWriter.Stream[streamCount];
+        // Per stream cursors into the ChunkIndex
+        final int[] next = new int[streamCount];
+        final int[] end = new int[streamCount];
+        for (int s = 0; s < streamCount; s++) {
+            final AviIndex.Stream stream = aviIndex.getStream(s);
+            writerStreams[s] = new AviWriter.Stream(stream.chunkId,
+                    stream.getStreamHeader().getByteBuffer(), stream.getStreamFormat().getByteBuffer());
+            if (stream == cutStream) {
+                next[s] = from;
+                end[s] = to;
+            } else {
+                next[s] = getNearestChunk(chunkTimesUs[s], startUs);
+                end[s] = to >= cutCount ? stream.getChunkIndex().getCount() :
+                        getNearestChunk(chunkTimesUs[s], endUs);
+            }
+        }
+        try (RandomAccessFile outputFile = new RandomAccessFile(output, "rw")) {
+            final FileChannel outputChannel = outputFile.getChannel();
+            final AviWriter aviWriter = new AviWriter(outputChannel,
+                    aviIndex.getAviHeader().getByteBuffer(), writerStreams);
+            long runSource = 0L;
+            long runTarget = 0L;
+            long runLength = 0L;
+            while (true) {
+                // Next chunk in file order
+                int stream = C.INDEX_UNSET;
+                long position = Long.MAX_VALUE;
+                for (int s = 0; s < streamCount; s++) {
+                    final ChunkIndex chunkIndex = aviIndex.getStream(s).getChunkIndex();
+                    if (next[s] < end[s] && chunkIndex.getChunkPosition(next[s]) < position) {
+                        position = chunkIndex.getChunkPosition(next[s]);
+                        stream = s;
+                    }
+                }
+                if (stream == C.INDEX_UNSET) {
+                    break;
+                }
+                final ChunkIndex chunkIndex = aviIndex.getStream(stream).getChunkIndex();
+                final int chunk = next[stream]++;
+                final int size = chunkIndex.getChunkSize(chunk);
+                final long target = aviWriter.addChunk(stream, size, chunkIndex.keyFrames.get(chunk));
+                final long length = BoxReader.CHUNK_HEADER_SIZE + size + (size & 1);
+                if (position == runSource + runLength && target == runTarget + runLength) {
+                    runLength += length;
+                } else {
+                    transfer(outputChannel, runSource, runTarget, runLength);
+                    runSource = position;
+                    runTarget = target;
+                    runLength = length;
+                }
+            }
+            transfer(outputChannel, runSource, runTarget, runLength);
+            aviWriter.finish();
+        }
+    }
+
+    private void transfer(@NonNull FileChannel outputChannel, long source, long target,
+                          long length) throws IOException {
+        fileChannel.position(source);
+        while (length > 0) {
+            final long transferred = outputChannel.transferFrom(fileChannel, target, length);
+            if (transferred <= 0) {
+                throw new EOFException();
+            }
+            target += transferred;
+            length -= transferred;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        randomAccessFile.close();
+    }
+}
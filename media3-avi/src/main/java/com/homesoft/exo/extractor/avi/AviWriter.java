@@ -0,0 +1,533 @@
+package com.homesoft.exo.extractor.avi;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Writes the RIFF structure of an AVI around the chunks: hdrl, movi lists, idx1 and the
+ * OpenDML indexes.  The OpenDML super index (indx) and a standard index (ix##) per stream and
+ * RIFF are always written, the first RIFF also gets an idx1 for legacy players.
+ * A RIFF-AVIX is started before a RIFF grows past {@link #MAX_RIFF_SIZE}.
+ * The caller writes the chunks at the positions returned by {@link #addChunk(int, int, boolean)}.
+ * {@link #flushIndex()} makes the file readable up to the last chunk without finishing it.
+ * Each RIFF has one super index entry per stream: a flush writes an ix## for all the chunks of
+ * the current RIFF so far and points the RIFF's entry at it, leaving the previous one unreferenced.
+ */
+class AviWriter {
+    static final long MAX_RIFF_SIZE = 1L << 30;
+    /**
+     * Default super index entries reserved in the hdrl.  Each RIFF uses an entry, flushes reuse
+     * the entry of the current RIFF, so this limits the file to about 256GB
+     */
+    static final int SUPER_INDEX_ENTRIES = 256;
+    static final int DMLH_SIZE = 248;
+    static final int SUPER_INDEX_HEADER_SIZE = 24;
+    static final int SUPER_INDEX_ENTRY_SIZE = 16;
+    private static final int STANDARD_INDEX_HEADER_SIZE = 24;
+    private static final int STANDARD_INDEX_ENTRY_SIZE = 8;
+    private static final int IDX1_ENTRY_SIZE = 16;
+    private static final int IX = 'i' | ('x' << 8);
+    private static final int AVIX = AviExtractor.AVIX | ('X' << 24);
+    private static final int NOT_KEY_FRAME = 0x80000000;
+    static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * @return the ix## chunk id of the stream
+     */
+    static int getIndexChunkId(int streamIndex) {
+        return IX | (StreamHandler.getChunkIdLower(streamIndex) << 16);
+    }
+
+    /**
+     * @return dwLength of the stream header: chunks or for fixed sample size streams, samples
+     */
+    static int getLength(@NonNull ByteBuffer streamHeader, long chunks, long bytes) {
+        final int sampleSize = streamHeader.capacity() >= 48 ? streamHeader.getInt(44) : 0;
+        return (int) (sampleSize == 0 ? chunks : bytes / sampleSize);
+    }
+
+    @NonNull
+    static ByteBuffer copy(@NonNull ByteBuffer byteBuffer) {
+        final ByteBuffer copy = AviExtractor.allocate(byteBuffer.remaining());
+        copy.put(byteBuffer.duplicate());
+        copy.clear();
+        return copy;
+    }
+
+    /**
+     * Chunks of one RIFF in file order, kept in primitive arrays
+     */
+    static class Entries {
+        private long[] positions = new long[1024];
+        private int[] sizes = new int[1024];
+        private byte[] streamIndexes = new byte[1024];
+        private int count;
+
+        void add(int streamIndex, long position, int size, boolean key) {
+            if (count == positions.length) {
+                final int newLength = count * 2;
+                positions = Arrays.copyOf(positions, newLength);
+                sizes = Arrays.copyOf(sizes, newLength);
+                streamIndexes = Arrays.copyOf(streamIndexes, newLength);
+            }
+            positions[count] = position;
+            sizes[count] = key ? size : size | NOT_KEY_FRAME;
+            streamIndexes[count] = (byte)streamIndex;
+            count++;
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        void clear() {
+            count = 0;
+        }
+
+        int getChunkCount(int streamIndex) {
+            int chunks = 0;
+            for (int e = 0; e < count; e++) {
+                if (streamIndexes[e] == streamIndex) {
+                    chunks++;
+                }
+            }
+            return chunks;
+        }
+
+        long getByteCount(int streamIndex) {
+            long bytes = 0;
+            for (int e = 0; e < count; e++) {
+                if (streamIndexes[e] == streamIndex) {
+                    bytes += sizes[e] & ~NOT_KEY_FRAME;
+                }
+            }
+            return bytes;
+        }
+
+        /**
+         * @return the size of the ix## chunk (with the header) for the chunks of the stream or 0
+         * if it has none
+         */
+        int getStandardIndexSize(int streamIndex) {
+            int chunks = 0;
+            for (int e = 0; e < count; e++) {
+                if (streamIndexes[e] == streamIndex) {
+                    chunks++;
+                }
+            }
+            return chunks == 0 ? 0 : BoxReader.CHUNK_HEADER_SIZE + STANDARD_INDEX_HEADER_SIZE +
+                    chunks * STANDARD_INDEX_ENTRY_SIZE;
+        }
+
+        /**
+         * Put the ix## chunk of the chunks of the stream
+         * @param entryBase qwBaseOffset, must be before the first chunk
+         */
+        void putStandardIndex(@NonNull ChannelWriter channelWriter, int streamIndex, int chunkId,
+                              long entryBase) throws IOException {
+            final int indexSize = getStandardIndexSize(streamIndex) - BoxReader.CHUNK_HEADER_SIZE;
+            ByteBuffer byteBuffer = channelWriter.room(BoxReader.CHUNK_HEADER_SIZE + STANDARD_INDEX_HEADER_SIZE);
+            byteBuffer.putInt(getIndexChunkId(streamIndex));
+            byteBuffer.putInt(indexSize);
+            byteBuffer.putShort((short)2); // wLongsPerEntry
+            byteBuffer.put((byte)0); // bIndexSubType
+            byteBuffer.put(IndexBox.AVI_INDEX_OF_CHUNKS);
+            byteBuffer.putInt((indexSize - STANDARD_INDEX_HEADER_SIZE) / STANDARD_INDEX_ENTRY_SIZE);
+            byteBuffer.putInt(chunkId);
+            // Offsets are to the chunk data
+            byteBuffer.putLong(entryBase);
+            byteBuffer.putInt(0); // dwReserved3
+            for (int e = 0; e < count; e++) {
+                if (streamIndexes[e] == streamIndex) {
+                    byteBuffer = channelWriter.room(STANDARD_INDEX_ENTRY_SIZE);
+                    byteBuffer.putInt((int)(positions[e] + BoxReader.CHUNK_HEADER_SIZE - entryBase));
+                    byteBuffer.putInt(sizes[e]);
+                }
+            }
+        }
+
+        /**
+         * Put the idx1 chunk
+         * @param chunkIds chunk id by stream index
+         * @param moviStart position of the movi LIST
+         */
+        void putIdx1(@NonNull ChannelWriter channelWriter, @NonNull int[] chunkIds,
+                     long moviStart) throws IOException {
+            ByteBuffer byteBuffer = channelWriter.room(BoxReader.CHUNK_HEADER_SIZE);
+            byteBuffer.putInt(AviExtractor.IDX1);
+            byteBuffer.putInt(count * IDX1_ENTRY_SIZE);
+            // Offsets are from the 'movi' fourCC
+            final long base = moviStart + BoxReader.CHUNK_HEADER_SIZE;
+            for (int e = 0; e < count; e++) {
+                byteBuffer = channelWriter.room(IDX1_ENTRY_SIZE);
+                byteBuffer.putInt(chunkIds[streamIndexes[e]]);
+                byteBuffer.putInt(sizes[e] < 0 ? 0 : AviExtractor.AVIIF_KEYFRAME);
+                byteBuffer.putInt((int)(positions[e] - base));
+                byteBuffer.putInt(sizes[e] & ~NOT_KEY_FRAME);
+            }
+        }
+    }
+
+    /**
+     * Put an AVISUPERINDEX (indx) chunk
+     * @param entries the number of entries to reserve
+     */
+    static void putSuperIndex(@NonNull ChannelWriter channelWriter, int chunkId, int entries,
+                              @NonNull long[] indexPositions, @NonNull int[] indexSizes,
+                              @NonNull int[] indexDurations, int entriesInUse) throws IOException {
+        ByteBuffer byteBuffer = channelWriter.room(BoxReader.CHUNK_HEADER_SIZE + SUPER_INDEX_HEADER_SIZE);
+        byteBuffer.putInt(IndexBox.INDX);
+        byteBuffer.putInt(SUPER_INDEX_HEADER_SIZE + SUPER_INDEX_ENTRY_SIZE * entries);
+        byteBuffer.putShort((short)4); // wLongsPerEntry
+        byteBuffer.put((byte)0); // bIndexSubType
+        byteBuffer.put(IndexBox.AVI_INDEX_OF_INDEXES);
+        byteBuffer.putInt(entriesInUse);
+        byteBuffer.putInt(chunkId);
+        byteBuffer.putInt(0); // dwReserved[3]
+        byteBuffer.putInt(0);
+        byteBuffer.putInt(0);
+        for (int i = 0; i < entries; i++) {
+            byteBuffer = channelWriter.room(SUPER_INDEX_ENTRY_SIZE);
+            if (i < entriesInUse) {
+                byteBuffer.putLong(indexPositions[i]);
+                byteBuffer.putInt(indexSizes[i]);
+                byteBuffer.putInt(indexDurations[i]);
+            } else {
+                byteBuffer.putLong(0L);
+                byteBuffer.putLong(0L);
+            }
+        }
+    }
+
+    static class Stream {
+        final int chunkId;
+        final ByteBuffer streamHeader;
+        final ByteBuffer streamFormat;
+        long chunks;
+        long bytes;
+        int riffChunks;
+        long riffBytes;
+        /**
+         * Super index entry of the current RIFF or -1 if not flushed yet
+         */
+        int riffIndex = -1;
+        // Super index entries
+        private long[] indexPositions;
+        private int[] indexSizes;
+        private int[] indexDurations;
+        private int indexes;
+
+        /**
+         * @param streamHeader AVISTREAMHEADER (strh), copied
+         * @param streamFormat BITMAPINFOHEADER or WAVEFORMATEX (strf), copied
+         */
+        Stream(int chunkId, @NonNull ByteBuffer streamHeader, @NonNull ByteBuffer streamFormat) {
+            this.chunkId = chunkId;
+            this.streamHeader = copy(streamHeader);
+            this.streamFormat = copy(streamFormat);
+        }
+
+        boolean isVideo() {
+            return streamHeader.getInt(0) == StreamHeaderBox.VIDS;
+        }
+    }
+
+    private final FileChannel fileChannel;
+    private final long maxRiffSize;
+    private final int superIndexEntries;
+    private final ByteBuffer aviHeader;
+    private final Stream[] streams;
+    private final int[] chunkIds;
+    /**
+     * Stream used to count frames
+     */
+    private final Stream frameStream;
+    private final ChannelWriter channelWriter;
+    private final Entries entries = new Entries();
+
+    private long riffStart;
+    /**
+     * Position of the movi LIST of the current RIFF
+     */
+    private long moviStart;
+    private long position;
+    private int riff;
+    private int firstRiffSize;
+    private int firstMoviSize;
+    private int firstRiffFrames;
+
+    /**
+     * Writes a placeholder header, the chunks start at {@link #getPosition()}
+     * @param aviHeader AVIMAINHEADER (avih), copied
+     */
+    AviWriter(@NonNull FileChannel fileChannel, @NonNull ByteBuffer aviHeader,
+              @NonNull Stream[] streams) throws IOException {
+        this(fileChannel, aviHeader, streams, MAX_RIFF_SIZE, SUPER_INDEX_ENTRIES);
+    }
+
+    @VisibleForTesting
+    AviWriter(@NonNull FileChannel fileChannel, @NonNull ByteBuffer aviHeader,
+              @NonNull Stream[] streams, long maxRiffSize) throws IOException {
+        this(fileChannel, aviHeader, streams, maxRiffSize, SUPER_INDEX_ENTRIES);
+    }
+
+    /**
+     * @param superIndexEntries the super index entries to reserve per stream
+     */
+    AviWriter(@NonNull FileChannel fileChannel, @NonNull ByteBuffer aviHeader,
+              @NonNull Stream[] streams, long maxRiffSize, int superIndexEntries) throws IOException {
+        this.fileChannel = fileChannel;
+        this.maxRiffSize = maxRiffSize;
+        this.superIndexEntries = superIndexEntries;
+        this.aviHeader = copy(aviHeader);
+        this.streams = streams;
+        channelWriter = new ChannelWriter(fileChannel, WRITE_BUFFER_SIZE);
+        chunkIds = new int[streams.length];
+        Stream frameStream = null;
+        for (int s = 0; s < streams.length; s++) {
+            final Stream stream = streams[s];
+            stream.indexPositions = new long[superIndexEntries];
+            stream.indexSizes = new int[superIndexEntries];
+            stream.indexDurations = new int[superIndexEntries];
+            chunkIds[s] = streams[s].chunkId;
+            if (frameStream == null && streams[s].isVideo()) {
+                frameStream = streams[s];
+            }
+        }
+        this.frameStream = frameStream == null ? streams[0] : frameStream;
+        final int headerSize = BoxReader.PARENT_HEADER_SIZE + getHeaderListSize() +
+                BoxReader.PARENT_HEADER_SIZE;
+        writeHeader();
+        moviStart = headerSize - BoxReader.PARENT_HEADER_SIZE;
+        position = headerSize;
+    }
+
+    private static int pad(int size) {
+        return size + (size & 1);
+    }
+
+    private int getStreamListSize(@NonNull Stream stream) {
+        return BoxReader.PARENT_HEADER_SIZE +
+                BoxReader.CHUNK_HEADER_SIZE + pad(stream.streamHeader.capacity()) +
+                BoxReader.CHUNK_HEADER_SIZE + pad(stream.streamFormat.capacity()) +
+                BoxReader.CHUNK_HEADER_SIZE + SUPER_INDEX_HEADER_SIZE +
+                SUPER_INDEX_ENTRY_SIZE * superIndexEntries;
+    }
+
+    /**
+     * @return the size of the hdrl LIST including the header
+     */
+    private int getHeaderListSize() {
+        int size = BoxReader.PARENT_HEADER_SIZE + BoxReader.CHUNK_HEADER_SIZE + pad(aviHeader.capacity());
+        for (Stream stream : streams) {
+            size += getStreamListSize(stream);
+        }
+        return size + BoxReader.PARENT_HEADER_SIZE + BoxReader.CHUNK_HEADER_SIZE + DMLH_SIZE;
+    }
+
+    /**
+     * @return the position of the next chunk (or index)
+     */
+    long getPosition() {
+        return position;
+    }
+
+    int getStreamCount() {
+        return streams.length;
+    }
+
+    /**
+     * Size of the indexes still to be written for the current RIFF, after one more entry
+     */
+    private long getIndexSize() {
+        long size = (long)streams.length * (BoxReader.CHUNK_HEADER_SIZE + STANDARD_INDEX_HEADER_SIZE) +
+                (entries.getCount() + 1L) * STANDARD_INDEX_ENTRY_SIZE;
+        if (riff == 0) {
+            size += BoxReader.CHUNK_HEADER_SIZE + (entries.getCount() + 1L) * IDX1_ENTRY_SIZE;
+        }
+        return size;
+    }
+
+    /**
+     * Reserve the space for a chunk, starting a new RIFF if needed
+     * @param size the chunk payload size (without the header)
+     * @return the position of the chunk header
+     */
+    long addChunk(int streamIndex, int size, boolean key) throws IOException {
+        final long chunkSize = BoxReader.CHUNK_HEADER_SIZE + pad(size);
+        if (entries.getCount() > 0 && position + chunkSize + getIndexSize() - riffStart > maxRiffSize) {
+            for (Stream stream : streams) {
+                if (stream.indexes == superIndexEntries) {
+                    throw new IOException("Super index is full, the file can't have more than " +
+                            superIndexEntries + " RIFFs");
+                }
+            }
+            endRiff();
+            startRiff();
+        }
+        entries.add(streamIndex, position, size, key);
+        final Stream stream = streams[streamIndex];
+        stream.chunks++;
+        stream.bytes += size;
+        stream.riffChunks++;
+        stream.riffBytes += size;
+        final long chunkPosition = position;
+        position += chunkSize;
+        return chunkPosition;
+    }
+
+    /**
+     * Write the indexes and the final header.  The chunks must be written before this is called.
+     */
+    void finish() throws IOException {
+        endRiff();
+        writeHeader();
+        fileChannel.truncate(position);
+    }
+
+    /**
+     * Write standard indexes for the chunks of the current RIFF into the movi, then rewrite the
+     * sizes and the header, so the file is readable up to here if the writer never finishes.
+     * The chunks must be written before this is called.
+     * The indexes replace the ones of the last flush, so flushing doesn't use super index entries.
+     */
+    void flushIndex() throws IOException {
+        channelWriter.begin(position);
+        putStandardIndexes();
+        position = channelWriter.end();
+        final int moviSize = (int)(position - moviStart - BoxReader.CHUNK_HEADER_SIZE);
+        final int riffSize = (int)(position - riffStart - BoxReader.CHUNK_HEADER_SIZE);
+        if (riff == 0) {
+            firstRiffFrames = frameStream.riffChunks;
+            firstMoviSize = moviSize;
+            firstRiffSize = riffSize;
+        } else {
+            channelWriter.putInt(moviStart + 4, moviSize);
+            channelWriter.putInt(riffStart + 4, riffSize);
+        }
+        writeHeader();
+        fileChannel.force(false);
+    }
+
+    private void startRiff() throws IOException {
+        riffStart = position;
+        moviStart = riffStart + BoxReader.PARENT_HEADER_SIZE;
+        channelWriter.begin(position);
+        final ByteBuffer byteBuffer = channelWriter.room(BoxReader.PARENT_HEADER_SIZE * 2);
+        // Sized as an empty AVIX until the next flush
+        byteBuffer.putInt(AviExtractor.RIFF);
+        byteBuffer.putInt(4 + BoxReader.PARENT_HEADER_SIZE);
+        byteBuffer.putInt(AVIX);
+        putListHeader(byteBuffer, 4, AviExtractor.MOVI);
+        position = channelWriter.end();
+    }
+
+    /**
+     * Put the standard indexes of the chunks of the current RIFF and point the RIFF's super
+     * index entries at them
+     */
+    private void putStandardIndexes() throws IOException {
+        final long entryBase = moviStart + BoxReader.PARENT_HEADER_SIZE;
+        for (int s = 0; s < streams.length; s++) {
+            final Stream stream = streams[s];
+            if (stream.riffChunks == 0) {
+                continue;
+            }
+            if (stream.riffIndex < 0) {
+                if (stream.indexes == superIndexEntries) {
+                    throw new IOException("Super index is full");
+                }
+                stream.riffIndex = stream.indexes++;
+            }
+            final int i = stream.riffIndex;
+            stream.indexPositions[i] = channelWriter.getPosition();
+            stream.indexSizes[i] = entries.getStandardIndexSize(s);
+            stream.indexDurations[i] = getLength(stream.streamHeader, stream.riffChunks, stream.riffBytes);
+            entries.putStandardIndex(channelWriter, s, stream.chunkId, entryBase);
+        }
+    }
+
+    private void endRiff() throws IOException {
+        // The standard indexes go at the end of the movi
+        channelWriter.begin(position);
+        putStandardIndexes();
+        final long moviEnd = channelWriter.end();
+        channelWriter.putInt(moviStart + 4, (int)(moviEnd - moviStart - BoxReader.CHUNK_HEADER_SIZE));
+        position = moviEnd;
+        if (riff == 0) {
+            channelWriter.begin(position);
+            entries.putIdx1(channelWriter, chunkIds, moviStart);
+            position = channelWriter.end();
+            firstRiffFrames = frameStream.riffChunks;
+            firstMoviSize = (int)(moviEnd - moviStart - BoxReader.CHUNK_HEADER_SIZE);
+            firstRiffSize = (int)(position - riffStart - BoxReader.CHUNK_HEADER_SIZE);
+        }
+        channelWriter.putInt(riffStart + 4, (int)(position - riffStart - BoxReader.CHUNK_HEADER_SIZE));
+        for (Stream stream : streams) {
+            stream.riffChunks = 0;
+            stream.riffBytes = 0;
+            stream.riffIndex = -1;
+        }
+        entries.clear();
+        riff++;
+    }
+
+    private void writeHeader() throws IOException {
+        channelWriter.begin(0L);
+        ByteBuffer byteBuffer = channelWriter.room(BoxReader.PARENT_HEADER_SIZE * 2);
+        byteBuffer.putInt(AviExtractor.RIFF);
+        byteBuffer.putInt(firstRiffSize);
+        byteBuffer.putInt(AviExtractor.AVI_);
+        putListHeader(byteBuffer, getHeaderListSize() - BoxReader.CHUNK_HEADER_SIZE, ListBox.TYPE_HDRL);
+
+        aviHeader.putInt(12, aviHeader.getInt(12) | AviHeaderBox.AVIF_HASINDEX);
+        aviHeader.putInt(16, firstRiffFrames);
+        aviHeader.putInt(24, streams.length);
+        putChunk(AviHeaderBox.AVIH, aviHeader);
+
+        for (Stream stream : streams) {
+            byteBuffer = channelWriter.room(BoxReader.PARENT_HEADER_SIZE);
+            putListHeader(byteBuffer, getStreamListSize(stream) - BoxReader.CHUNK_HEADER_SIZE,
+                    ListBox.TYPE_STRL);
+            stream.streamHeader.putInt(32, getLength(stream.streamHeader, stream.chunks, stream.bytes));
+            putChunk(StreamHeaderBox.STRH, stream.streamHeader);
+            putChunk(StreamFormatBox.STRF, stream.streamFormat);
+            putSuperIndex(channelWriter, stream.chunkId, superIndexEntries, stream.indexPositions,
+                    stream.indexSizes, stream.indexDurations, stream.indexes);
+        }
+        byteBuffer = channelWriter.room(BoxReader.PARENT_HEADER_SIZE + BoxReader.CHUNK_HEADER_SIZE + DMLH_SIZE);
+        putListHeader(byteBuffer, 4 + BoxReader.CHUNK_HEADER_SIZE + DMLH_SIZE, ListBox.TYPE_ODML);
+        byteBuffer.putInt(ExtendedAviHeader.DMLH);
+        byteBuffer.putInt(DMLH_SIZE);
+        byteBuffer.putInt((int)frameStream.chunks);
+        for (int i = 4; i < DMLH_SIZE; i += 4) {
+            byteBuffer.putInt(0);
+        }
+
+        byteBuffer = channelWriter.room(BoxReader.PARENT_HEADER_SIZE);
+        putListHeader(byteBuffer, firstMoviSize, AviExtractor.MOVI);
+        channelWriter.end();
+    }
+
+    static void putListHeader(@NonNull ByteBuffer byteBuffer, int size, int type) {
+        byteBuffer.putInt(ListBox.LIST);
+        byteBuffer.putInt(size);
+        byteBuffer.putInt(type);
+    }
+
+    private void putChunk(int chunkId, @NonNull ByteBuffer data) throws IOException {
+        final int size = data.capacity();
+        final ByteBuffer byteBuffer = channelWriter.room(BoxReader.CHUNK_HEADER_SIZE + pad(size));
+        byteBuffer.putInt(chunkId);
+        byteBuffer.putInt(size);
+        byteBuffer.put(data.duplicate());
+        if ((size & 1) != 0) {
+            byteBuffer.put((byte)0);
+        }
+    }
+}
@@ -20,6 +20,7 @@ public abstract class BoxReader implements IReader {
     public static final int PARENT_HEADER_SIZE = 12;
     protected final HeaderPeeker headerPeeker = new HeaderPeeker();
     protected long position;
+    private final long start;
     private final int size;
     private final long end;
 
@@ -39,10 +40,22 @@ public abstract class BoxReader implements IReader {
      */
     BoxReader(long start, int size) {
         position = start;
+        this.start = start;
         this.size = size;
         this.end = start + size;
     }
 
+    /**
+     * Box with no end, i.e. the RIFF or movi of a live stream
+     * @param start Start of first chunk
+     */
+    BoxReader(long start) {
+        position = start;
+        this.start = start;
+        size = -1;
+        end = Long.MAX_VALUE;
+    }
+
     @Override
     public long getPosition() {
         return position;
@@ -57,13 +70,20 @@ public abstract class BoxReader implements IReader {
     }
 
     public long getStart() {
-        return end - getSize();
+        return start;
     }
 
     protected boolean advancePosition() {
         return advancePosition(8 + headerPeeker.getSize());
     }
 
+    /**
+     * @return true if the box has no end, see {@link #BoxReader(long)}
+     */
+    boolean isUnbounded() {
+        return end == Long.MAX_VALUE;
+    }
+
     protected boolean isComplete() {
         if (BuildConfig.DEBUG && position > getEnd()) {
             Log.wtf(getClass().getSimpleName(), "position(" + position + ") > end("+ getEnd() + ")");
@@ -97,9 +117,16 @@ public abstract class BoxReader implements IReader {
 
 
         public boolean peakSafe(@NonNull ExtractorInput input) throws IOException {
-            if (input.peekFully(peakBuffer.array(), 0, PARENT_HEADER_SIZE, true)) {
+            return peakSafe(input, PARENT_HEADER_SIZE);
+        }
+
+        /**
+         * @return false if the input ended before the first byte
+         */
+        public boolean peakSafe(@NonNull ExtractorInput input, int bytes) throws IOException {
+            if (input.peekFully(peakBuffer.array(), 0, bytes, true)) {
                 input.resetPeekPosition();
-                peakBuffer.position(PARENT_HEADER_SIZE);
+                peakBuffer.position(bytes);
                 return true;
             }
             return false;
@@ -0,0 +1,91 @@
+package com.homesoft.exo.extractor.avi;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Buffered little endian writes to a position in a FileChannel
+ */
+class ChannelWriter {
+    private final FileChannel fileChannel;
+    private final ByteBuffer byteBuffer;
+    /**
+     * File position of the start of the buffer
+     */
+    private long position;
+
+    ChannelWriter(@NonNull FileChannel fileChannel, int bufferSize) {
+        this.fileChannel = fileChannel;
+        byteBuffer = AviExtractor.allocate(bufferSize);
+    }
+
+    void begin(long position) {
+        byteBuffer.clear();
+        this.position = position;
+    }
+
+    /**
+     * @return the file position of the next byte put
+     */
+    long getPosition() {
+        return position + byteBuffer.position();
+    }
+
+    /**
+     * @return the buffer with at least bytes remaining
+     */
+    @NonNull
+    ByteBuffer room(int bytes) throws IOException {
+        if (byteBuffer.remaining() < bytes) {
+            flush();
+            if (byteBuffer.remaining() < bytes) {
+                throw new IOException("Box too large: " + bytes);
+            }
+        }
+        return byteBuffer;
+    }
+
+    /**
+     * Put the data, data that does not fit in the buffer is written directly instead of copied
+     */
+    void put(@NonNull ByteBuffer data) throws IOException {
+        if (byteBuffer.remaining() < data.remaining()) {
+            flush();
+            if (byteBuffer.remaining() < data.remaining()) {
+                while (data.hasRemaining()) {
+                    position += fileChannel.write(data, position);
+                }
+                return;
+            }
+        }
+        byteBuffer.put(data);
+    }
+
+    private void flush() throws IOException {
+        byteBuffer.flip();
+        while (byteBuffer.hasRemaining()) {
+            position += fileChannel.write(byteBuffer, position);
+        }
+        byteBuffer.clear();
+    }
+
+    /**
+     * @return the position after the written bytes
+     */
+    long end() throws IOException {
+        flush();
+        return position;
+    }
+
+    /**
+     * Overwrite a field, usually a size
+     */
+    void putInt(long position, int value) throws IOException {
+        begin(position);
+        room(4).putInt(value);
+        end();
+    }
+}
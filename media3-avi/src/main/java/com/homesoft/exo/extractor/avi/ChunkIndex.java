@@ -103,6 +103,50 @@ public class ChunkIndex {
         return work;
     }
 
+    /**
+     * @return the positions of the key frames
+     */
+    public long[] getKeyFramePositions() {
+        checkReleased();
+        final long[] keyFramePositions = new long[getKeyFrameCount()];
+        int k = 0;
+        for (int f = keyFrames.nextSetBit(0); f >= 0; f = keyFrames.nextSetBit(f + 1)) {
+            keyFramePositions[k++] = positions[f];
+        }
+        return keyFramePositions;
+    }
+
+    /**
+     * @return the key frame at or before the chunk index, -1 if there isn't one
+     */
+    public int getKeyFrameIndex(int index) {
+        return keyFrames.previousSetBit(index);
+    }
+
+    /**
+     * @return the number of chunks before the position
+     */
+    public int getChunksBefore(long position) {
+        checkReleased();
+        final int index = Arrays.binarySearch(positions, 0, count, position);
+        return index < 0 ? -index - 1 : index;
+    }
+
+    /**
+     * @return the index of the chunk at the position, -1 if it isn't indexed (or was released)
+     */
+    public int getChunkIndex(long position) {
+        if (positions == RELEASED) {
+            return -1;
+        }
+        final int index = Arrays.binarySearch(positions, 0, count, position);
+        return index < 0 ? -1 : index;
+    }
+
+    public boolean isKeyFrame(int index) {
+        return keyFrames.get(index);
+    }
+
     public long getChunkPosition(int index) {
         return positions[index];
     }
@@ -149,6 +193,16 @@ public class ChunkIndex {
         keyFrames.clear();
     }
 
+    /**
+     * Restore the totals of an index read by a previous extraction, see {@link AviIndexCache}
+     * The arrays are released, as after {@link #release()}
+     */
+    void restore(int count, long size) {
+        this.count = count;
+        this.size = size;
+        release();
+    }
+
     private void grow() {
         int newLength = positions.length * 5 / 4;
         positions = Arrays.copyOf(positions, newLength);
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homesoft.exo.extractor.avi;
+
+import androidx.annotation.NonNull;
+
+import androidx.media3.extractor.DtsUtil;
+import androidx.media3.extractor.TrackOutput;
+
+/**
+ * Splits DTS core streams on the sync frame boundary
+ */
+public class DtsStreamHandler extends SyncFrameStreamHandler {
+  // Enough to cover the frame size in all (14bit/16bit, LE/BE) variants
+  private static final int HEADER_SIZE = 10;
+  private static final int SAMPLES_PER_FRAME = 512;
+  // DtsUtil expects the header at index 0
+  private final byte[] header = new byte[HEADER_SIZE];
+
+  DtsStreamHandler(int id, long durationUs, @NonNull TrackOutput trackOutput,
+                   int samplesPerSecond) {
+    super(id, durationUs, trackOutput, samplesPerSecond, HEADER_SIZE, SAMPLES_PER_FRAME);
+  }
+
+  @Override
+  boolean parseHeader(@NonNull byte[] data, int offset) {
+    final int word = (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16 |
+        (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+    if (!DtsUtil.isSyncWord(word)) {
+      return false;
+    }
+    System.arraycopy(data, offset, header, 0, HEADER_SIZE);
+    final int size = DtsUtil.getDtsFrameSize(header);
+    if (size < HEADER_SIZE) {
+      return false;
+    }
+    frameSize = size;
+    frameSamples = DtsUtil.parseDtsAudioSampleCount(header);
+    return true;
+  }
+}
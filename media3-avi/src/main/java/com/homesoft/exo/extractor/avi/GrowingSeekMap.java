@@ -0,0 +1,59 @@
+package com.homesoft.exo.extractor.avi;
+
+import androidx.annotation.NonNull;
+
+import androidx.media3.extractor.SeekMap;
+import androidx.media3.extractor.SeekPoint;
+
+import java.util.Arrays;
+
+/**
+ * Seek map of a growing AVI, a snapshot of the seek points parsed so far.
+ * The arrays are only ever appended to, so entries below count don't change after publishing.
+ */
+class GrowingSeekMap implements SeekMap {
+    private final long durationUs;
+    private final long[] positions;
+    private final long[] timesUs;
+    private final int count;
+
+    GrowingSeekMap(long durationUs, @NonNull long[] positions, @NonNull long[] timesUs, int count) {
+        this.durationUs = durationUs;
+        this.positions = positions;
+        this.timesUs = timesUs;
+        this.count = count;
+    }
+
+    @Override
+    public boolean isSeekable() {
+        return true;
+    }
+
+    @Override
+    public long getDurationUs() {
+        return durationUs;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    private SeekPoint getSeekPoint(int seekIndex) {
+        return new SeekPoint(timesUs[seekIndex], positions[seekIndex]);
+    }
+
+    @NonNull
+    @Override
+    public SeekPoints getSeekPoints(long timeUs) {
+        final int seekIndex = Arrays.binarySearch(timesUs, 0, count, timeUs);
+        if (seekIndex >= 0) {
+            return new SeekPoints(getSeekPoint(seekIndex));
+        }
+        final int firstSeekIndex = Math.max(0, -seekIndex - 2);
+        if (firstSeekIndex + 1 < count) {
+            return new SeekPoints(getSeekPoint(firstSeekIndex), getSeekPoint(firstSeekIndex + 1));
+        } else {
+            return new SeekPoints(getSeekPoint(firstSeekIndex));
+        }
+    }
+}
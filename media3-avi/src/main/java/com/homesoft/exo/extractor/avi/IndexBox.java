@@ -23,17 +23,30 @@ public class IndexBox extends ResidentBox {
         return byteBuffer.get(3);
     }
     int getEntriesInUse() {
-        return byteBuffer.get(4);
+        return byteBuffer.getInt(4);
     }
     //8 = IndexChunkId
 
     List<Long> getPositions() {
         final int entriesInUse = getEntriesInUse();
         final ArrayList<Long> list = new ArrayList<>(getEntriesInUse());
-        final int entrySize = getLongsPerEntry() * 4;
         for (int i=0;i<entriesInUse;i++) {
-            list.add(byteBuffer.getLong(0x18 + i * entrySize));
+            list.add(getOffset(i));
         }
         return list;
     }
+
+    /**
+     * @return the position of the standard index (ix##) of the super index entry
+     */
+    long getOffset(int entry) {
+        return byteBuffer.getLong(0x18 + entry * getLongsPerEntry() * 4);
+    }
+
+    /**
+     * @return the stream ticks (frames or samples) in the standard index of the super index entry
+     */
+    long getDuration(int entry) {
+        return byteBuffer.getInt(0x18 + entry * getLongsPerEntry() * 4 + 12) & AviExtractor.UINT_MASK;
+    }
 }
@@ -0,0 +1,110 @@
+package com.homesoft.exo.extractor.avi;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The OpenDML super indexes (indx) of the streams, which stay resident, and an LRU cache of the
+ * standard index (ix##) pages, which are loaded on demand.
+ * A page is keyed by the position of its ix## chunk.
+ */
+class IndexPages {
+    /**
+     * Resident pages, on top of a couple per stream needed by a seek
+     */
+    static final int MAX_RESIDENT_PAGES = 8;
+
+    /**
+     * ix## positions by stream id and page
+     */
+    private final long[][] offsets;
+    /**
+     * Stream clock (in samples) at the start of each page by stream id, plus the total
+     */
+    private final long[][] startSamples;
+    private final LinkedHashMap<Long, ChunkIndex> pages;
+
+    IndexPages(@NonNull StreamHandler[] streamHandlers) {
+        offsets = new long[streamHandlers.length][];
+        startSamples = new long[streamHandlers.length][];
+        for (int s = 0; s < streamHandlers.length; s++) {
+            final IndexBox indexBox = streamHandlers[s].getIndexBox();
+            final int entries = indexBox == null ? 0 : indexBox.getEntriesInUse();
+            offsets[s] = new long[entries];
+            startSamples[s] = new long[entries + 1];
+            for (int e = 0; e < entries; e++) {
+                offsets[s][e] = indexBox.getOffset(e);
+                startSamples[s][e + 1] = startSamples[s][e] + indexBox.getDuration(e);
+            }
+        }
+        final int maxPages = MAX_RESIDENT_PAGES + streamHandlers.length * 2;
+        pages = new LinkedHashMap<Long, ChunkIndex>(maxPages * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, ChunkIndex> eldest) {
+                return size() > maxPages;
+            }
+        };
+    }
+
+    /**
+     * @return the total number of pages of all the streams
+     */
+    int getPageCount() {
+        int pageCount = 0;
+        for (long[] streamOffsets : offsets) {
+            pageCount += streamOffsets.length;
+        }
+        return pageCount;
+    }
+
+    int getPageCount(int streamId) {
+        return offsets[streamId].length;
+    }
+
+    long getOffset(int streamId, int page) {
+        return offsets[streamId][page];
+    }
+
+    long getStartSamples(int streamId, int page) {
+        return startSamples[streamId][page];
+    }
+
+    long getTotalSamples(int streamId) {
+        return startSamples[streamId][offsets[streamId].length];
+    }
+
+    /**
+     * @return the page containing the stream clock (in samples)
+     */
+    int getPage(int streamId, long samples) {
+        final long[] streamStartSamples = startSamples[streamId];
+        int page = Arrays.binarySearch(streamStartSamples, 0, offsets[streamId].length, samples);
+        if (page < 0) {
+            page = -page - 2;
+        }
+        return Math.max(0, page);
+    }
+
+    /**
+     * @return the resident page or null if it needs to be loaded
+     */
+    @Nullable
+    ChunkIndex get(long offset) {
+        return pages.get(offset);
+    }
+
+    void put(long offset, @NonNull ChunkIndex chunkIndex) {
+        pages.put(offset, chunkIndex);
+    }
+
+    /**
+     * @return the number of resident pages
+     */
+    int getResidentCount() {
+        return pages.size();
+    }
+}
@@ -0,0 +1,239 @@
+package com.homesoft.exo.extractor.avi;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+import androidx.media3.common.C;
+import androidx.media3.common.MimeTypes;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Locale;
+
+/**
+ * Exports MJPEG frames as JPEG files without decoding them.
+ * The chunks are copied straight from the AVI, only the Huffman tables (DHT) are added when
+ * missing.  AVI MJPEG is allowed to omit them and use the standard tables.
+ */
+public class MjpegFrameExporter implements Closeable {
+    private static final int MARKER_SOI = 0xd8;
+    private static final int MARKER_DHT = 0xc4;
+    private static final int MARKER_SOS = 0xda;
+    /**
+     * The JPEG headers (before SOS) are expected to be in the first bytes of the frame
+     */
+    private static final int HEADER_PEEK = 4096;
+
+    /**
+     * Standard Huffman tables from ITU T.81 Annex K.3
+     */
+    @VisibleForTesting
+    static final byte[] STANDARD_DHT = toBytes(new int[] {
+            0xff, 0xc4, 0x01, 0xa2,
+            // DC Luminance
+            0x00, 0x00, 0x01, 0x05, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01, 0x00, 0x00, 0x00, 0x00,
+            0x00, 0x00, 0x00,
+            0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0a, 0x0b,
+            // DC Chrominance
+            0x01, 0x00, 0x03, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01, 0x00, 0x00,
+            0x00, 0x00, 0x00,
+            0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0a, 0x0b,
+            // AC Luminance
+            0x10, 0x00, 0x02, 0x01, 0x03, 0x03, 0x02, 0x04, 0x03, 0x05, 0x05, 0x04, 0x04, 0x00,
+            0x00, 0x01, 0x7d,
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa,
+            // AC Chrominance
+            0x11, 0x00, 0x02, 0x01, 0x02, 0x04, 0x04, 0x03, 0x04, 0x07, 0x05, 0x04, 0x04, 0x00,
+            0x01, 0x02, 0x77,
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    });
+
+    private static byte[] toBytes(int[] ints) {
+        final byte[] bytes = new byte[ints.length];
+        for (int i = 0; i < ints.length; i++) {
+            bytes[i] = (byte) ints[i];
+        }
+        return bytes;
+    }
+
+    /**
+     * Walk the JPEG segments up to the start of scan
+     * @param jpeg the start of the frame
+     * @return offset of the SOS marker if the DHT is missing, otherwise -1
+     */
+    @VisibleForTesting
+    static int getDhtInsertOffset(@NonNull ByteBuffer jpeg) {
+        final int start = jpeg.position();
+        final int limit = jpeg.limit();
+        if (limit - start < 2 || (jpeg.get(start) & 0xff) != 0xff ||
+                (jpeg.get(start + 1) & 0xff) != MARKER_SOI) {
+            return -1;
+        }
+        int offset = start + 2;
+        while (offset + 4 <= limit) {
+            if ((jpeg.get(offset) & 0xff) != 0xff) {
+                return -1;
+            }
+            final int marker = jpeg.get(offset + 1) & 0xff;
+            if (marker == 0xff) {
+                // Fill byte
+                offset++;
+                continue;
+            }
+            if (marker == MARKER_DHT) {
+                return -1;
+            } else if (marker == MARKER_SOS) {
+                return offset - start;
+            }
+            final int length = ((jpeg.get(offset + 2) & 0xff) << 8) | (jpeg.get(offset + 3) & 0xff);
+            offset += 2 + length;
+        }
+        return -1;
+    }
+
+    private final AviIndex.Stream stream;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel fileChannel;
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_PEEK);
+
+    public MjpegFrameExporter(@NonNull File file) throws IOException {
+        this(AviIndex.read(file), file);
+    }
+
+    /**
+     * @param aviIndex the index of file
+     * @throws IllegalArgumentException if the file doesn't have an MJPEG stream
+     */
+    public MjpegFrameExporter(@NonNull AviIndex aviIndex, @NonNull File file) throws IOException {
+        final AviIndex.Stream stream = aviIndex.getFirstStream(C.TRACK_TYPE_VIDEO);
+        if (stream == null || !MimeTypes.VIDEO_MJPEG.equals(stream.getFormat().sampleMimeType)) {
+            throw new IllegalArgumentException("No MJPEG stream");
+        }
+        this.stream = stream;
+        randomAccessFile = new RandomAccessFile(file, "r");
+        fileChannel = randomAccessFile.getChannel();
+    }
+
+    public int getFrameCount() {
+        return stream.getChunkIndex().getCount();
+    }
+
+    public long getFrameTimeUs(int frame) {
+        return stream.getChunkTimeUs(frame);
+    }
+
+    /**
+     * @return the frame showing at timeUs
+     */
+    public int getFrame(long timeUs) {
+        return stream.getChunkIndex(timeUs);
+    }
+
+    /**
+     * Write the frame as a JPEG
+     * @return bytes written, 0 for an empty (dropped) frame
+     */
+    public long exportFrame(int frame, @NonNull WritableByteChannel out) throws IOException {
+        final ChunkIndex chunkIndex = stream.getChunkIndex();
+        final long position = stream.getDataPosition(frame);
+        final int size = chunkIndex.getChunkSize(frame);
+        if (size == 0) {
+            return 0;
+        }
+        headerBuffer.clear();
+        headerBuffer.limit(Math.min(size, HEADER_PEEK));
+        while (headerBuffer.hasRemaining()) {
+            if (fileChannel.read(headerBuffer, position + headerBuffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        headerBuffer.flip();
+        final int dhtOffset = getDhtInsertOffset(headerBuffer);
+        if (dhtOffset < 0) {
+            transfer(position, size, out);
+            return size;
+        }
+        transfer(position, dhtOffset, out);
+        final ByteBuffer dht = ByteBuffer.wrap(STANDARD_DHT);
+        while (dht.hasRemaining()) {
+            out.write(dht);
+        }
+        transfer(position + dhtOffset, size - dhtOffset, out);
+        return size + STANDARD_DHT.length;
+    }
+
+    public long exportFrame(int frame, @NonNull OutputStream out) throws IOException {
+        final long bytes = exportFrame(frame, Channels.newChannel(out));
+        out.flush();
+        return bytes;
+    }
+
+    public long exportFrame(int frame, @NonNull File file) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            return exportFrame(frame, out.getChannel());
+        }
+    }
+
+    /**
+     * Export the frames in the time range to directory as frame_NNNNNN.jpg.
+     * Empty (dropped) frames are skipped.
+     * @return the number of files written
+     */
+    public int exportFrames(long fromUs, long toUs, @NonNull File directory) throws IOException {
+        final int first = getFrame(fromUs);
+        final int last = getFrame(toUs);
+        int files = 0;
+        for (int frame = first; frame <= last; frame++) {
+            if (stream.getChunkIndex().getChunkSize(frame) == 0) {
+                continue;
+            }
+            final File file = new File(directory, String.format(Locale.US, "frame_%06d.jpg", frame));
+            exportFrame(frame, file);
+            files++;
+        }
+        return files;
+    }
+
+    private void transfer(long position, long count, @NonNull WritableByteChannel out) throws IOException {
+        while (count > 0) {
+            final long bytes = fileChannel.transferTo(position, count, out);
+            if (bytes <= 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += bytes;
+            count -= bytes;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        randomAccessFile.close();
+    }
+}
@@ -0,0 +1,408 @@
+package com.homesoft.exo.extractor.avi;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.net.Uri;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.media3.common.C;
+import androidx.media3.common.DataReader;
+import androidx.media3.common.Format;
+import androidx.media3.common.MimeTypes;
+import androidx.media3.common.util.Log;
+import androidx.media3.common.util.MediaFormatUtil;
+import androidx.media3.common.util.ParsableByteArray;
+import androidx.media3.container.NalUnitUtil;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DataSourceUtil;
+import androidx.media3.datasource.DataSpec;
+import androidx.media3.datasource.FileDataSource;
+import androidx.media3.extractor.DefaultExtractorInput;
+import androidx.media3.extractor.Extractor;
+import androidx.media3.extractor.ExtractorInput;
+import androidx.media3.extractor.ExtractorOutput;
+import androidx.media3.extractor.PositionHolder;
+import androidx.media3.extractor.SeekMap;
+import androidx.media3.extractor.TrackOutput;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Stream copies an AVI to MP4.
+ * Samples come from the {@link AviExtractor}, so they have the same (corrected) timestamps
+ * as playback.  Memory use is bounded by the largest sample, plus the samples read before the
+ * format of every track is known.
+ * Uses {@link MediaMuxer}, so only the codecs it supports in MP4 are copied (H.264, MPEG-4,
+ * AAC, AMR). Other tracks are skipped.
+ */
+public class Mp4Remuxer {
+    private static final String TAG = "Mp4Remuxer";
+    /**
+     * Max bytes held while waiting for the first sample of every track
+     */
+    private static final int MAX_PENDING_BYTES = 8 * 1024 * 1024;
+    private static final int NAL_UNIT_TYPE_SPS = 7;
+    private static final int NAL_UNIT_TYPE_PPS = 8;
+    private static final byte[] VOP_START_CODE = {0, 0, 1, (byte)0xb6};
+
+    private final DataSource dataSource;
+    private final DataSpec dataSpec;
+
+    public Mp4Remuxer(@NonNull File file) {
+        this(new FileDataSource(), new DataSpec(Uri.fromFile(file)));
+    }
+
+    public Mp4Remuxer(@NonNull DataSource dataSource, @NonNull DataSpec dataSpec) {
+        this.dataSource = dataSource;
+        this.dataSpec = dataSpec;
+    }
+
+    /**
+     * Remux the AVI to an MP4 file
+     * @throws IOException on read/write error or if nothing could be copied
+     */
+    public void remux(@NonNull File output) throws IOException {
+        final MediaMuxer mediaMuxer = new MediaMuxer(output.getPath(),
+                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        try {
+            final MuxerOutput muxerOutput = new MuxerOutput(mediaMuxer);
+            final AviExtractor aviExtractor = new AviExtractor();
+            aviExtractor.init(muxerOutput);
+            final PositionHolder positionHolder = new PositionHolder();
+            long position = 0L;
+            int result = Extractor.RESULT_CONTINUE;
+            try {
+                while (result != Extractor.RESULT_END_OF_INPUT) {
+                    final long bytes = dataSource.open(dataSpec.subrange(position));
+                    final long length = bytes == C.LENGTH_UNSET ? C.LENGTH_UNSET : position + bytes;
+                    final ExtractorInput input = new DefaultExtractorInput(dataSource, position, length);
+                    do {
+                        result = aviExtractor.read(input, positionHolder);
+                        muxerOutput.checkTracks();
+                    } while (result == Extractor.RESULT_CONTINUE);
+                    dataSource.close();
+                    position = positionHolder.position;
+                }
+            } finally {
+                DataSourceUtil.closeQuietly(dataSource);
+                aviExtractor.release();
+            }
+            muxerOutput.finish();
+        } finally {
+            mediaMuxer.release();
+        }
+    }
+
+    /**
+     * @return a MediaFormat MediaMuxer accepts or null if the codec isn't supported
+     */
+    @Nullable
+    @VisibleForTesting
+    static MediaFormat createMediaFormat(@NonNull Format format, @NonNull byte[] sample, int size) {
+        final String mimeType = format.sampleMimeType;
+        if (mimeType == null) {
+            return null;
+        }
+        final MediaFormat mediaFormat;
+        final MediaFormat videoFormat = MimeTypes.isVideo(mimeType) ?
+                MediaFormat.createVideoFormat(mimeType, format.width, format.height) : null;
+        switch (mimeType) {
+            case MimeTypes.VIDEO_H264: {
+                final byte[][] parameterSets = getAvcParameterSets(sample, size);
+                if (parameterSets == null) {
+                    return null;
+                }
+                mediaFormat = videoFormat;
+                MediaFormatUtil.setCsdBuffers(mediaFormat, Arrays.asList(parameterSets));
+                break;
+            }
+            case MimeTypes.VIDEO_MP4V: {
+                final int vop = indexOf(sample, size, VOP_START_CODE);
+                if (vop <= 0) {
+                    return null;
+                }
+                mediaFormat = videoFormat;
+                MediaFormatUtil.setCsdBuffers(mediaFormat,
+                        Collections.singletonList(Arrays.copyOf(sample, vop)));
+                break;
+            }
+            case MimeTypes.AUDIO_AAC:
+                if (format.initializationData.isEmpty()) {
+                    return null;
+                }
+                mediaFormat = MediaFormat.createAudioFormat(mimeType, format.sampleRate, format.channelCount);
+                MediaFormatUtil.setCsdBuffers(mediaFormat, format.initializationData);
+                break;
+            case MimeTypes.AUDIO_AMR_NB:
+            case MimeTypes.AUDIO_AMR_WB:
+                mediaFormat = MediaFormat.createAudioFormat(mimeType, format.sampleRate, format.channelCount);
+                break;
+            default:
+                return null;
+        }
+        if (format.averageBitrate != Format.NO_VALUE) {
+            mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, format.averageBitrate);
+        }
+        return mediaFormat;
+    }
+
+    /**
+     * Find the SPS and PPS in an Annex B key frame
+     * @return csd-0 and csd-1 (with start codes) or null if not found
+     */
+    @Nullable
+    @VisibleForTesting
+    static byte[][] getAvcParameterSets(@NonNull byte[] sample, int size) {
+        final boolean[] prefixFlags = new boolean[3];
+        byte[] sps = null;
+        byte[] pps = null;
+        int nalStart = NalUnitUtil.findNalUnit(sample, 0, size, prefixFlags);
+        while (nalStart < size) {
+            final int nalEnd = NalUnitUtil.findNalUnit(sample, nalStart + 3, size, prefixFlags);
+            final int nalType = NalUnitUtil.getNalUnitType(sample, nalStart);
+            if (nalType == NAL_UNIT_TYPE_SPS || nalType == NAL_UNIT_TYPE_PPS) {
+                // The zero before a 4 byte start code of the next NAL isn't part of this one
+                int end = nalEnd;
+                while (end > nalStart + 3 && sample[end - 1] == 0) {
+                    end--;
+                }
+                // Use 4 byte start codes
+                final byte[] nal = new byte[end - nalStart + 1];
+                nal[3] = 1;
+                System.arraycopy(sample, nalStart + 3, nal, 4, nal.length - 4);
+                if (nalType == NAL_UNIT_TYPE_SPS) {
+                    sps = nal;
+                } else {
+                    pps = nal;
+                }
+            }
+            nalStart = nalEnd;
+        }
+        return sps == null || pps == null ? null : new byte[][] {sps, pps};
+    }
+
+    private static int indexOf(@NonNull byte[] data, int size, @NonNull byte[] pattern) {
+        outer:
+        for (int i = 0; i <= size - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static class PendingSample {
+        final MuxerTrack track;
+        final byte[] data;
+        final long timeUs;
+        final int flags;
+
+        PendingSample(@NonNull MuxerTrack track, @NonNull byte[] data, long timeUs, int flags) {
+            this.track = track;
+            this.data = data;
+            this.timeUs = timeUs;
+            this.flags = flags;
+        }
+    }
+
+    private static class MuxerOutput implements ExtractorOutput {
+        private final MediaMuxer mediaMuxer;
+        private final SparseArray<MuxerTrack> tracks = new SparseArray<>();
+        private final ArrayList<PendingSample> pendingSamples = new ArrayList<>();
+        private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        private int pendingBytes;
+        private boolean started;
+        /**
+         * Started without a track MediaMuxer supports, i.e. MJPEG and PCM
+         */
+        private boolean noTracks;
+        private long samples;
+
+        MuxerOutput(@NonNull MediaMuxer mediaMuxer) {
+            this.mediaMuxer = mediaMuxer;
+        }
+
+        @NonNull
+        @Override
+        public TrackOutput track(int id, int type) {
+            final MuxerTrack track = new MuxerTrack(this);
+            tracks.put(id, track);
+            return track;
+        }
+
+        @Override
+        public void endTracks() {
+        }
+
+        @Override
+        public void seekMap(@NonNull SeekMap seekMap) {
+        }
+
+        void writeSample(@NonNull MuxerTrack track, @NonNull byte[] data, int offset, int size,
+                         long timeUs, @C.BufferFlags int flags) {
+            if (started) {
+                if (track.trackIndex >= 0) {
+                    write(track.trackIndex, ByteBuffer.wrap(data, offset, size), timeUs, flags);
+                }
+                return;
+            }
+            if (!track.resolved) {
+                track.resolved = true;
+                final Format format = track.format;
+                final byte[] sample = offset == 0 ? data : Arrays.copyOfRange(data, offset, offset + size);
+                track.mediaFormat = format == null ? null : createMediaFormat(format, sample, size);
+                if (track.mediaFormat == null) {
+                    Log.w(TAG, "Skipping track, not supported by MediaMuxer: " +
+                            (format == null ? null : format.sampleMimeType));
+                }
+            }
+            if (track.mediaFormat != null) {
+                pendingSamples.add(new PendingSample(track,
+                        Arrays.copyOfRange(data, offset, offset + size), timeUs, flags));
+                pendingBytes += size;
+            }
+            maybeStart();
+        }
+
+        private void maybeStart() {
+            if (pendingBytes < MAX_PENDING_BYTES) {
+                for (int i = 0; i < tracks.size(); i++) {
+                    if (!tracks.valueAt(i).resolved) {
+                        return;
+                    }
+                }
+            }
+            start();
+        }
+
+        private void start() {
+            started = true;
+            noTracks = true;
+            for (int i = 0; i < tracks.size(); i++) {
+                if (tracks.valueAt(i).mediaFormat != null) {
+                    noTracks = false;
+                }
+            }
+            if (noTracks) {
+                // MediaMuxer can't start without a track, see checkTracks()
+                return;
+            }
+            for (int i = 0; i < tracks.size(); i++) {
+                final MuxerTrack track = tracks.valueAt(i);
+                if (track.mediaFormat != null) {
+                    track.trackIndex = mediaMuxer.addTrack(track.mediaFormat);
+                }
+            }
+            mediaMuxer.start();
+            for (PendingSample pendingSample : pendingSamples) {
+                write(pendingSample.track.trackIndex, ByteBuffer.wrap(pendingSample.data),
+                        pendingSample.timeUs, pendingSample.flags);
+            }
+            pendingSamples.clear();
+            pendingBytes = 0;
+        }
+
+        private void write(int trackIndex, @NonNull ByteBuffer byteBuffer, long timeUs, @C.BufferFlags int flags) {
+            final int codecFlags = (flags & C.BUFFER_FLAG_KEY_FRAME) != 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+            bufferInfo.set(byteBuffer.position(), byteBuffer.remaining(), timeUs, codecFlags);
+            mediaMuxer.writeSampleData(trackIndex, byteBuffer, bufferInfo);
+            samples++;
+        }
+
+        /**
+         * @throws IOException if none of the tracks can be copied, no need to read any further
+         */
+        void checkTracks() throws IOException {
+            if (noTracks) {
+                throw new IOException("No samples could be copied");
+            }
+        }
+
+        void finish() throws IOException {
+            if (!started && !pendingSamples.isEmpty()) {
+                start();
+            }
+            checkTracks();
+            if (samples == 0) {
+                throw new IOException("No samples could be copied");
+            }
+            mediaMuxer.stop();
+        }
+    }
+
+    /**
+     * Collects the sample data and passes complete samples to the MuxerOutput
+     */
+    private static class MuxerTrack implements TrackOutput {
+        private final MuxerOutput muxerOutput;
+        @Nullable
+        Format format;
+        boolean resolved;
+        @Nullable
+        MediaFormat mediaFormat;
+        int trackIndex = C.INDEX_UNSET;
+        private byte[] buffer = new byte[64 * 1024];
+        private int bufferSize;
+
+        MuxerTrack(@NonNull MuxerOutput muxerOutput) {
+            this.muxerOutput = muxerOutput;
+        }
+
+        private void ensureCapacity(int length) {
+            if (bufferSize + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(bufferSize + length, buffer.length * 2));
+            }
+        }
+
+        @Override
+        public void format(@NonNull Format format) {
+            this.format = format;
+        }
+
+        @Override
+        public int sampleData(@NonNull DataReader input, int length, boolean allowEndOfInput,
+                              @SampleDataPart int sampleDataPart) throws IOException {
+            ensureCapacity(length);
+            final int read = input.read(buffer, bufferSize, length);
+            if (read == C.RESULT_END_OF_INPUT) {
+                if (allowEndOfInput) {
+                    return C.RESULT_END_OF_INPUT;
+                }
+                throw new EOFException();
+            }
+            bufferSize += read;
+            return read;
+        }
+
+        @Override
+        public void sampleData(@NonNull ParsableByteArray data, int length,
+                               @SampleDataPart int sampleDataPart) {
+            ensureCapacity(length);
+            data.readBytes(buffer, bufferSize, length);
+            bufferSize += length;
+        }
+
+        @Override
+        public void sampleMetadata(long timeUs, @C.BufferFlags int flags, int size, int offset,
+                                   @Nullable CryptoData cryptoData) {
+            final int sampleOffset = bufferSize - offset - size;
+            muxerOutput.writeSample(this, buffer, sampleOffset, size, timeUs, flags);
+            // Keep the bytes that belong to the next sample
+            System.arraycopy(buffer, bufferSize - offset, buffer, 0, offset);
+            bufferSize = offset;
+        }
+    }
+}
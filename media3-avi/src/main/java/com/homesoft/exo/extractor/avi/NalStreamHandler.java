@@ -53,6 +53,11 @@ public abstract class NalStreamHandler extends VideoStreamHandler {
   @Override
   public void seekPosition(long position) {
     super.seekPosition(position);
+    resync();
+  }
+
+  @Override
+  void resync() {
     if (useStreamClock) {
       reset();
     }
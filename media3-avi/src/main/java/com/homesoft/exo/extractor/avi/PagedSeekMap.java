@@ -0,0 +1,45 @@
+package com.homesoft.exo.extractor.avi;
+
+import androidx.annotation.NonNull;
+
+import androidx.media3.extractor.SeekMap;
+import androidx.media3.extractor.SeekPoint;
+
+import java.util.Arrays;
+
+/**
+ * Seek map built from the resident OpenDML super index of the seek stream.
+ * The seek position is the standard index (ix##) page of the time, the extractor then loads the
+ * page and continues from the key frame before the time.
+ */
+class PagedSeekMap implements SeekMap {
+    private final long durationUs;
+    private final long[] offsets;
+    private final long[] timesUs;
+
+    PagedSeekMap(long durationUs, @NonNull long[] offsets, @NonNull long[] timesUs) {
+        this.durationUs = durationUs;
+        this.offsets = offsets;
+        this.timesUs = timesUs;
+    }
+
+    @Override
+    public boolean isSeekable() {
+        return true;
+    }
+
+    @Override
+    public long getDurationUs() {
+        return durationUs;
+    }
+
+    @NonNull
+    @Override
+    public SeekPoints getSeekPoints(long timeUs) {
+        int page = Arrays.binarySearch(timesUs, timeUs);
+        if (page < 0) {
+            page = Math.max(0, -page - 2);
+        }
+        return new SeekPoints(new SeekPoint(timeUs, offsets[page]));
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homesoft.exo.extractor.avi;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Table driven decoders for the simple audio codecs common in DVR/CCTV files.
+ * Output is always 16 bit little endian PCM.
+ * No allocations are made after construction.
+ */
+public abstract class PcmDecoder {
+  final int channels;
+  final int blockAlign;
+
+  /**
+   * @return the PcmDecoder for the format or null if not supported
+   */
+  @Nullable
+  static PcmDecoder create(@NonNull AudioFormat audioFormat) {
+    final int channels = audioFormat.getChannels();
+    final int blockAlign = audioFormat.getBlockAlign();
+    if (channels <= 0 || blockAlign < channels) {
+      return null;
+    }
+    switch (audioFormat.getFormatTag()) {
+      case AudioFormat.WAVE_FORMAT_IMA_ADPCM:
+        if (blockAlign % (4 * channels) != 0) {
+          return null;
+        }
+        return new ImaAdpcm(channels, blockAlign);
+      case AudioFormat.WAVE_FORMAT_ADPCM:
+        if (blockAlign <= 7 * channels) {
+          return null;
+        }
+        return new MsAdpcm(channels, blockAlign, audioFormat.getAdpcmCoefficients());
+      case AudioFormat.WAVE_FORMAT_ALAW:
+        return new G711(channels, blockAlign, G711.ALAW);
+      case AudioFormat.WAVE_FORMAT_MULAW:
+        return new G711(channels, blockAlign, G711.MULAW);
+    }
+    return null;
+  }
+
+  PcmDecoder(int channels, int blockAlign) {
+    this.channels = channels;
+    this.blockAlign = blockAlign;
+  }
+
+  /**
+   * @return the number of input bytes the decoder consumes in one call
+   */
+  int getInputSize() {
+    return blockAlign;
+  }
+
+  /**
+   * @return the maximum output bytes produced for {@link #getInputSize()} bytes of input
+   */
+  abstract int getOutputSize();
+
+  /**
+   * @return true if the decoder can decode less than {@link #getInputSize()} bytes
+   */
+  boolean canDecodePartial() {
+    return false;
+  }
+
+  /**
+   * Decode
+   * @param in input data starting at 0
+   * @param length length of the input, {@link #getInputSize()} unless {@link #canDecodePartial()}
+   * @param out output buffer of at least {@link #getOutputSize()}
+   * @return the number of bytes written to out
+   */
+  abstract int decode(@NonNull byte[] in, int length, @NonNull byte[] out);
+
+  static short getShort(byte[] data, int offset) {
+    return (short)((data[offset] & 0xff) | (data[offset + 1] << 8));
+  }
+
+  static void putShort(byte[] data, int offset, int value) {
+    data[offset] = (byte)value;
+    data[offset + 1] = (byte)(value >> 8);
+  }
+
+  static int clamp16(int value) {
+    if (value > Short.MAX_VALUE) {
+      return Short.MAX_VALUE;
+    } else if (value < Short.MIN_VALUE) {
+      return Short.MIN_VALUE;
+    }
+    return value;
+  }
+
+  /**
+   * IMA/DVI ADPCM (Microsoft block layout)
+   */
+  static class ImaAdpcm extends PcmDecoder {
+    private static final int[] INDEX_TABLE = {-1, -1, -1, -1, 2, 4, 6, 8,
+        -1, -1, -1, -1, 2, 4, 6, 8};
+    private static final int[] STEP_TABLE = {
+        7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45, 50, 55, 60,
+        66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307, 337, 371,
+        408, 449, 494, 544, 598, 658, 724, 796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707,
+        1878, 2066, 2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358, 5894, 6484,
+        7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899, 15289, 16818, 18500, 20350, 22385,
+        24623, 27086, 29794, 32767};
+    private static final int STEP_INDEX_MAX = STEP_TABLE.length - 1;
+
+    final int framesPerBlock;
+    private final int[] predictor;
+    private final int[] stepIndex;
+
+    ImaAdpcm(int channels, int blockAlign) {
+      super(channels, blockAlign);
+      // 4 byte header per channel, which contains the first sample
+      framesPerBlock = (blockAlign - 4 * channels) * 2 / channels + 1;
+      predictor = new int[channels];
+      stepIndex = new int[channels];
+    }
+
+    @Override
+    int getOutputSize() {
+      return framesPerBlock * channels * 2;
+    }
+
+    private int decodeNibble(int c, int nibble) {
+      final int step = STEP_TABLE[stepIndex[c]];
+      int diff = step >> 3;
+      if ((nibble & 1) != 0) {
+        diff += step >> 2;
+      }
+      if ((nibble & 2) != 0) {
+        diff += step >> 1;
+      }
+      if ((nibble & 4) != 0) {
+        diff += step;
+      }
+      if ((nibble & 8) != 0) {
+        diff = -diff;
+      }
+      predictor[c] = clamp16(predictor[c] + diff);
+      stepIndex[c] = Math.max(0, Math.min(STEP_INDEX_MAX, stepIndex[c] + INDEX_TABLE[nibble]));
+      return predictor[c];
+    }
+
+    @Override
+    int decode(@NonNull byte[] in, int length, @NonNull byte[] out) {
+      int inPos = 0;
+      for (int c = 0; c < channels; c++) {
+        predictor[c] = getShort(in, inPos);
+        stepIndex[c] = Math.max(0, Math.min(STEP_INDEX_MAX, in[inPos + 2]));
+        putShort(out, c * 2, predictor[c]);
+        inPos += 4;
+      }
+      final int frameBytes = channels * 2;
+      // Each channel has 4 bytes (8 samples) per group
+      int frame = 1;
+      while (inPos < blockAlign) {
+        for (int c = 0; c < channels; c++) {
+          int outPos = frame * frameBytes + c * 2;
+          for (int b = 0; b < 4; b++) {
+            final int value = in[inPos++];
+            putShort(out, outPos, decodeNibble(c, value & 0xf));
+            outPos += frameBytes;
+            putShort(out, outPos, decodeNibble(c, (value >> 4) & 0xf));
+            outPos += frameBytes;
+          }
+        }
+        frame += 8;
+      }
+      return framesPerBlock * frameBytes;
+    }
+  }
+
+  /**
+   * Microsoft ADPCM
+   */
+  static class MsAdpcm extends PcmDecoder {
+    static final short[] DEFAULT_COEFFICIENTS = {256, 0, 512, -256, 0, 0, 192, 64, 240, 0,
+        460, -208, 392, -232};
+    private static final int[] ADAPTATION_TABLE = {230, 230, 230, 230, 307, 409, 512, 614,
+        768, 614, 512, 409, 307, 230, 230, 230};
+    private static final int DELTA_MIN = 16;
+
+    final int framesPerBlock;
+    // Pairs of coef1, coef2
+    private final short[] coefficients;
+    private final int[] coef1;
+    private final int[] coef2;
+    private final int[] delta;
+    private final int[] sample1;
+    private final int[] sample2;
+
+    MsAdpcm(int channels, int blockAlign, @Nullable short[] coefficients) {
+      super(channels, blockAlign);
+      // 7 byte header per channel, which contains the first 2 samples
+      framesPerBlock = (blockAlign - 7 * channels) * 2 / channels + 2;
+      this.coefficients = coefficients == null ? DEFAULT_COEFFICIENTS : coefficients;
+      coef1 = new int[channels];
+      coef2 = new int[channels];
+      delta = new int[channels];
+      sample1 = new int[channels];
+      sample2 = new int[channels];
+    }
+
+    @Override
+    int getOutputSize() {
+      return framesPerBlock * channels * 2;
+    }
+
+    private int decodeNibble(int c, int nibble) {
+      final int signed = nibble >= 8 ? nibble - 16 : nibble;
+      final int predicted = clamp16(((sample1[c] * coef1[c] + sample2[c] * coef2[c]) >> 8) +
+          signed * delta[c]);
+      sample2[c] = sample1[c];
+      sample1[c] = predicted;
+      delta[c] = Math.max(DELTA_MIN, (ADAPTATION_TABLE[nibble] * delta[c]) >> 8);
+      return predicted;
+    }
+
+    @Override
+    int decode(@NonNull byte[] in, int length, @NonNull byte[] out) {
+      final int coefficientPairs = coefficients.length / 2;
+      int inPos = 0;
+      for (int c = 0; c < channels; c++) {
+        final int predictor = Math.min(in[inPos++] & 0xff, coefficientPairs - 1);
+        coef1[c] = coefficients[predictor * 2];
+        coef2[c] = coefficients[predictor * 2 + 1];
+      }
+      for (int c = 0; c < channels; c++, inPos += 2) {
+        delta[c] = getShort(in, inPos);
+      }
+      for (int c = 0; c < channels; c++, inPos += 2) {
+        sample1[c] = getShort(in, inPos);
+      }
+      for (int c = 0; c < channels; c++, inPos += 2) {
+        sample2[c] = getShort(in, inPos);
+      }
+      final int frameBytes = channels * 2;
+      // The header samples are output oldest first
+      for (int c = 0; c < channels; c++) {
+        putShort(out, c * 2, sample2[c]);
+        putShort(out, frameBytes + c * 2, sample1[c]);
+      }
+      // Nibbles are interleaved by channel, high nibble first
+      int outPos = frameBytes * 2;
+      int c = 0;
+      while (inPos < blockAlign) {
+        final int value = in[inPos++];
+        putShort(out, outPos, decodeNibble(c, (value >> 4) & 0xf));
+        outPos += 2;
+        c = (c + 1) % channels;
+        putShort(out, outPos, decodeNibble(c, value & 0xf));
+        outPos += 2;
+        c = (c + 1) % channels;
+      }
+      return framesPerBlock * frameBytes;
+    }
+  }
+
+  /**
+   * G.711 A-law and mu-law
+   */
+  static class G711 extends PcmDecoder {
+    static final short[] ALAW = new short[256];
+    static final short[] MULAW = new short[256];
+    // Frames decoded per call.  G.711 frames are tiny, so batch them
+    private static final int FRAMES_PER_DECODE = 1024;
+
+    static {
+      for (int i = 0; i < 256; i++) {
+        int a = i ^ 0x55;
+        int t = (a & 0xf) << 4;
+        final int segment = (a & 0x70) >> 4;
+        if (segment == 0) {
+          t += 8;
+        } else {
+          t += 0x108;
+          if (segment > 1) {
+            t <<= segment - 1;
+          }
+        }
+        ALAW[i] = (short)((a & 0x80) != 0 ? t : -t);
+
+        final int u = ~i & 0xff;
+        t = ((u & 0xf) << 3) + 0x84;
+        t <<= (u & 0x70) >> 4;
+        MULAW[i] = (short)((u & 0x80) != 0 ? 0x84 - t : t - 0x84);
+      }
+    }
+
+    private final short[] table;
+
+    G711(int channels, int blockAlign, @NonNull short[] table) {
+      super(channels, blockAlign);
+      this.table = table;
+    }
+
+    @Override
+    int getInputSize() {
+      return blockAlign * FRAMES_PER_DECODE;
+    }
+
+    @Override
+    int getOutputSize() {
+      return getInputSize() * 2;
+    }
+
+    @Override
+    boolean canDecodePartial() {
+      return true;
+    }
+
+    @Override
+    int decode(@NonNull byte[] in, int length, @NonNull byte[] out) {
+      for (int i = 0; i < length; i++) {
+        putShort(out, i * 2, table[in[i] & 0xff]);
+      }
+      return length * 2;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homesoft.exo.extractor.avi;
+
+import androidx.annotation.NonNull;
+
+import androidx.media3.common.C;
+import androidx.media3.common.util.ParsableByteArray;
+import androidx.media3.extractor.ExtractorInput;
+import androidx.media3.extractor.TrackOutput;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Decodes ADPCM/G.711 chunks to 16 bit PCM within the extractor.
+ * These codecs are cheap to decode and rarely supported by the platform.
+ * Blocks that span chunks are carried over to the next chunk.
+ */
+public class PcmDecoderStreamHandler extends AudioStreamHandler {
+  private final PcmDecoder pcmDecoder;
+  private final byte[] inBuffer;
+  private final byte[] outBuffer;
+  private final ParsableByteArray output = new ParsableByteArray();
+  /**
+   * Bytes in the inBuffer
+   */
+  private int inLength;
+  /**
+   * PCM bytes sent to the trackOutput for the current chunk
+   */
+  private int pcmSize;
+
+  PcmDecoderStreamHandler(int id, long durationUs, @NonNull TrackOutput trackOutput,
+                          @NonNull PcmDecoder pcmDecoder) {
+    super(id, durationUs, trackOutput);
+    this.pcmDecoder = pcmDecoder;
+    inBuffer = new byte[pcmDecoder.getInputSize()];
+    outBuffer = new byte[pcmDecoder.getOutputSize()];
+  }
+
+  private void decode(int length) {
+    final int bytes = pcmDecoder.decode(inBuffer, length, outBuffer);
+    output.reset(outBuffer, bytes);
+    trackOutput.sampleData(output, bytes);
+    pcmSize += bytes;
+    inLength -= length;
+    if (inLength > 0) {
+      // Carry the partial frame over to the next chunk
+      System.arraycopy(inBuffer, length, inBuffer, 0, inLength);
+    }
+  }
+
+  @Override
+  public boolean read(@NonNull ExtractorInput input) throws IOException {
+    while (readRemaining > 0) {
+      final int read = input.read(inBuffer, inLength,
+          Math.min(readRemaining, inBuffer.length - inLength));
+      if (read == C.RESULT_END_OF_INPUT) {
+        throw new EOFException();
+      }
+      inLength += read;
+      readRemaining -= read;
+      if (inLength == inBuffer.length) {
+        decode(inLength);
+      }
+    }
+    if (inLength > 0 && pcmDecoder.canDecodePartial()) {
+      // Keep whole frames only
+      final int length = inLength - inLength % pcmDecoder.blockAlign;
+      if (length > 0) {
+        decode(length);
+      }
+    }
+    sendMetadata(readSize);
+    return true;
+  }
+
+  /**
+   * The sample is the decoded PCM, but the clock still runs on the stream bytes
+   */
+  @Override
+  protected void sendMetadata(int size) {
+    if (pcmSize > 0) {
+      trackOutput.sampleMetadata(getTimeUs(), C.BUFFER_FLAG_KEY_FRAME, pcmSize, 0, null);
+      pcmSize = 0;
+    }
+    advanceTime(size);
+  }
+
+  @Override
+  void resync() {
+    inLength = 0;
+    pcmSize = 0;
+  }
+
+  @Override
+  public void seekPosition(long position) {
+    super.seekPosition(position);
+    resync();
+  }
+}
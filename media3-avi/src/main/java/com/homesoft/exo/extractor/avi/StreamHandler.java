@@ -18,6 +18,7 @@ package com.homesoft.exo.extractor.avi;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import androidx.media3.common.C;
 import androidx.media3.extractor.ExtractorInput;
 import androidx.media3.extractor.TrackOutput;
 
@@ -64,6 +65,25 @@ public abstract class StreamHandler implements IReader {
   @NonNull
   protected ChunkIndex chunkIndex = new ChunkIndex();
 
+  /**
+   * Stream header clock (dwScale / dwRate)
+   */
+  private int clockScale;
+  private int clockRate;
+  /**
+   * True while the chunks are timed by the stream header clock instead of the index,
+   * i.e. a live stream or before the index is read
+   */
+  boolean chunkClock;
+  /**
+   * False if the track is disabled, the chunks are skipped, see {@link #skipChunk(int)}
+   */
+  private volatile boolean enabled = true;
+  /**
+   * Chunks were skipped since the last read
+   */
+  private boolean skipped;
+
   /**
    * Size of the current chunk in bytes
    */
@@ -110,11 +130,58 @@ public abstract class StreamHandler implements IReader {
     return durationUs;
   }
 
+  /**
+   * Time the chunks with the stream header clock, until the seek points are set from the index
+   */
+  void setChunkClock(@NonNull StreamHeaderBox streamHeader) {
+    clockScale = streamHeader.getScale();
+    clockRate = streamHeader.getRate();
+    chunkClock = clockScale > 0 && clockRate > 0;
+  }
+
+  /**
+   * @return the stream header clock time of the sample
+   */
+  long getClockTimeUs(long samples) {
+    return C.MICROS_PER_SECOND * clockScale * samples / clockRate;
+  }
+
+  /**
+   * @return the stream header clock at the time, in samples
+   */
+  long getClockSamples(long timeUs) {
+    return timeUs * clockRate / (C.MICROS_PER_SECOND * clockScale);
+  }
+
+  /**
+   * @return the stream header clock after the first chunks of the ChunkIndex, in samples
+   */
+  long getSamples(@NonNull ChunkIndex chunkIndex, int chunks) {
+    return chunks;
+  }
+
+  /**
+   * @return the stream header clock at the end of the ChunkIndex, in samples
+   */
+  long getIndexedSamples() {
+    return chunkIndex.getCount();
+  }
+
+  /**
+   * Restore the stream header clock, after {@link #seekPosition(long)}
+   * @param samples from {@link #getIndexedSamples()} at the seek point
+   */
+  abstract void seekClock(long samples);
+
   public long getPosition() {
     return readEnd - readRemaining;
   }
 
   public void setRead(final long position, final int size) {
+    if (skipped) {
+      skipped = false;
+      resync();
+    }
     readEnd = position + size;
     readRemaining = readSize = size;
   }
@@ -137,6 +204,37 @@ public abstract class StreamHandler implements IReader {
     }
   }
 
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * May be called from any thread, takes effect at the next chunk
+   */
+  void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * Skip a chunk of a disabled track without passing it to the trackOutput.
+   * The clock advances as if it was read, so the track resumes in sync when enabled.
+   */
+  void skipChunk(int size) {
+    skipped = true;
+    advanceClock(size);
+  }
+
+  /**
+   * Advance the clock past a chunk, see {@link #skipChunk(int)}
+   */
+  abstract void advanceClock(int size);
+
+  /**
+   * Drop any partial frame state, after a seek or before reading after skipped chunks
+   */
+  void resync() {
+  }
+
   /**
    * Done reading a chunk.  Send the timing info and advance the clock
    * @param size the amount of data passed to the trackOutput
@@ -183,6 +281,23 @@ public abstract class StreamHandler implements IReader {
     this.indexBox = indexBox;
   }
 
+  /**
+   * @return the seek table built by {@link #setSeekStream()} or the secondary seek frames,
+   * it is shared with later extractions, so it must not be modified
+   */
+  @NonNull
+  abstract AviIndexCache.StreamTable getStreamTable();
+
+  /**
+   * Use the seek table of a previous extraction, instead of reading the index
+   */
+  void setStreamTable(@NonNull AviIndexCache.StreamTable streamTable) {
+    chunkClock = streamTable.chunkClock;
+    durationUs = streamTable.durationUs;
+    chunkIndex.restore(streamTable.chunkCount, streamTable.chunkSize);
+    positions = streamTable.positions;
+  }
+
   public int getSeekPointCount() {
     return positions.length;
   }
@@ -76,7 +76,13 @@ public class StreamHeaderBox extends ResidentBox {
     return byteBuffer.getInt(36);
   }
   //40 - dwQuality
-  //44 - dwSampleSize
+
+  /**
+   * @return the bytes per sample or 0 if the samples vary in size (one per chunk)
+   */
+  public int getSampleSize() {
+    return byteBuffer.capacity() >= 48 ? byteBuffer.getInt(44) : 0;
+  }
 
   public String toString() {
     return "scale=" + getScale() + " rate=" + getRate() + " length=" + getLength() + " us=" + getDurationUs();
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.homesoft.exo.extractor.avi;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import androidx.media3.common.C;
+import androidx.media3.common.util.ParsableByteArray;
+import androidx.media3.extractor.ExtractorInput;
+import androidx.media3.extractor.TrackOutput;
+
+import java.io.IOException;
+
+/**
+ * Generic base class for audio streams made of sync frames (MP3, AC3, DTS, ADTS)
+ *
+ * Muxers don't always put whole frames in a chunk, so this re-aligns the chunk data
+ * to the frame boundaries and sends one sample per frame.
+ * This is required for passthrough/offload, where the sink expects whole sync frames.
+ */
+public abstract class SyncFrameStreamHandler extends AudioStreamHandler {
+  final ParsableByteArray scratch = new ParsableByteArray(16);
+  final int samplesPerSecond;
+  private final int headerSize;
+
+  /**
+   * Size of the current frame in bytes, including the header
+   */
+  int frameSize;
+  /**
+   * Audio samples (per channel) in the current frame
+   */
+  int frameSamples;
+  /**
+   * Leading bytes of the frame that are not passed to the trackOutput
+   */
+  int frameSkip;
+  /**
+   * The frame can't be passed to the decoder, it is skipped but the clock still advances.
+   * Reset before each {@link #parseHeader(byte[], int)}
+   */
+  boolean frameDrop;
+
+  /**
+   *  Bytes remaining in the frame
+   *  This includes bytes in both the scratch buffer and the stream
+   *  0 means we are seeking a new frame
+   */
+  private int frameRemaining = 0;
+  /**
+   * Sub-microsecond remainder of the clock (in samples * MICROS_PER_SECOND)
+   */
+  private long clockRemainder;
+
+  /**
+   * @param headerSize number of bytes required by {@link #parseHeader(byte[], int)}
+   * @param defaultFrameSamples samples per frame to use before the first frame is found
+   */
+  SyncFrameStreamHandler(int id, long durationUs, @NonNull TrackOutput trackOutput,
+                         int samplesPerSecond, int headerSize, int defaultFrameSamples) {
+    super(id, durationUs, trackOutput);
+    this.samplesPerSecond = samplesPerSecond;
+    this.headerSize = headerSize;
+    frameSamples = defaultFrameSamples;
+  }
+
+  /**
+   * Check for a valid frame header at offset
+   * On success, set {@link #frameSize}, {@link #frameSamples} and optionally {@link #frameSkip}
+   * @param data at least headerSize bytes starting at offset
+   * @return true if a valid header was found
+   */
+  abstract boolean parseHeader(@NonNull byte[] data, int offset) throws IOException;
+
+  /**
+   * Advance the clock by the samples in the frame.
+   * The remainder is carried, so the clock doesn't drift
+   */
+  @Override
+  protected void advanceTime(int size) {
+    clockRemainder += frameSamples * C.MICROS_PER_SECOND;
+    timeUs += clockRemainder / samplesPerSecond;
+    clockRemainder %= samplesPerSecond;
+  }
+
+  @Override
+  public boolean read(@NonNull ExtractorInput input) throws IOException {
+    if (readSize == 0) {
+      //Empty frame, just advance the clock
+      advanceTime(0);
+      return true;
+    }
+    if (frameRemaining == 0) {
+      //Find the next frame
+      if (!findFrame(input)) {
+        if (scratch.limit() >= readSize) {
+          // Couldn't find a frame header in chunk.
+          // Might be ID3, padding or leading 0s
+          // Dump the chunk as it can mess up the decoder
+          scratch.reset(0);
+          // Not sure if this is the right thing to do.  Maybe nothing
+          advanceTime(0);
+        }
+        return readComplete();
+      }
+      if (frameSkip > 0) {
+        scratch.skipBytes(frameSkip);
+        frameRemaining -= frameSkip;
+      }
+    }
+    if (frameDrop) {
+      return dropFrame(input);
+    }
+    // The scratch can hold the start of the next frame if this one is short
+    final int scratchBytes = Math.min(scratch.bytesLeft(), frameRemaining);
+    if (scratchBytes > 0) {
+      trackOutput.sampleData(scratch, scratchBytes);
+      frameRemaining -= scratchBytes;
+      compactScratch();
+    }
+
+    if (frameRemaining > 0) {
+      final int bytes = trackOutput.sampleData(input, Math.min(frameRemaining, readRemaining), false);
+      frameRemaining -= bytes;
+      readRemaining -= bytes;
+    }
+    if (frameRemaining == 0) {
+      sendMetadata(frameSize - frameSkip);
+    }
+    return readComplete();
+  }
+
+  /**
+   * Consume the rest of an unsupported frame without passing it to the trackOutput
+   */
+  private boolean dropFrame(@NonNull ExtractorInput input) throws IOException {
+    final int scratchBytes = Math.min(scratch.bytesLeft(), frameRemaining);
+    scratch.skipBytes(scratchBytes);
+    frameRemaining -= scratchBytes;
+    compactScratch();
+    final int bytes = Math.min(frameRemaining, readRemaining);
+    input.skipFully(bytes);
+    frameRemaining -= bytes;
+    if (frameRemaining == 0) {
+      sendMetadata(0);
+    }
+    readRemaining -= bytes;
+    return readComplete();
+  }
+
+  /**
+   * Move the bytes past the current frame to the start of the scratch for the next findFrame()
+   */
+  private void compactScratch() {
+    final int bytesLeft = scratch.bytesLeft();
+    System.arraycopy(scratch.getData(), scratch.getPosition(), scratch.getData(), 0, bytesLeft);
+    scratch.reset(bytesLeft);
+  }
+
+  /**
+   * Soft read from input to scratch
+   * @param bytes to attempt to read
+   * @return {@link C#RESULT_END_OF_INPUT} or number of bytes read.
+   */
+  int readScratch(ExtractorInput input, int bytes) throws IOException {
+    final int toRead = Math.min(bytes, readRemaining);
+    scratch.ensureCapacity(scratch.limit() + toRead);
+    final int read = input.read(scratch.getData(), scratch.limit(), toRead);
+    if (read == C.RESULT_END_OF_INPUT) {
+      return read;
+    }
+    readRemaining -= read;
+    scratch.setLimit(scratch.limit() + read);
+    return read;
+  }
+
+  /**
+   * Attempt to find a frame header in the input
+   * @return true if a frame header was found
+   */
+  @VisibleForTesting
+  boolean findFrame(ExtractorInput input) throws IOException {
+    int toRead = headerSize;
+    while (true) {
+      // Check what is left over from the previous frame first
+      while (scratch.bytesLeft() >= headerSize) {
+        frameDrop = false;
+        if (parseHeader(scratch.getData(), scratch.getPosition())) {
+          frameRemaining = frameSize;
+          return true;
+        }
+        scratch.skipBytes(1);
+      }
+      if (readRemaining == 0 || readScratch(input, toRead) == C.RESULT_END_OF_INPUT) {
+        return false;
+      }
+      // 16 is small, so we rarely read past the frame into scratch.
+      // We should only loop on seek, so this is the lesser of the evils.
+      toRead = Math.min(readRemaining, 16);
+    }
+  }
+
+  @Override
+  public void seekPosition(long position) {
+    super.seekPosition(position);
+    resync();
+  }
+
+  @Override
+  void resync() {
+    scratch.reset(0);
+    frameRemaining = 0;
+    clockRemainder = 0;
+  }
+
+  @VisibleForTesting(otherwise = VisibleForTesting.NONE)
+  int getFrameRemaining() {
+    return frameRemaining;
+  }
+}
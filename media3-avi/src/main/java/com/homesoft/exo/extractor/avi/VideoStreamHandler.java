@@ -1,16 +1,35 @@
 package com.homesoft.exo.extractor.avi;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 import androidx.media3.common.C;
+import androidx.media3.extractor.ExtractorInput;
 import androidx.media3.extractor.TrackOutput;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 public class VideoStreamHandler extends StreamHandler {
     private long frameUs;
     protected int index;
     private boolean allKeyFrames;
+    /**
+     * Video with delta frames (i.e. H.264), null if every frame is a key frame (i.e. MJPEG)
+     */
+    @Nullable
+    private String deltaMimeType;
+    /**
+     * Key flag peeked from the current chunk when no index covers it (i.e. progressive start)
+     */
+    private boolean peekedKeyFrame;
+    /**
+     * True if positions hold the key frames of an index page, which may have none
+     */
+    private boolean keyFramePage;
+    @Nullable
+    private ByteBuffer peekBuffer;
     @VisibleForTesting
     int[] indices=new int[0];
     /**
@@ -27,15 +46,89 @@ public class VideoStreamHandler extends StreamHandler {
         return super.handlesChunkId(chunkId) || chunkIdAlt == chunkId;
     }
 
-    protected boolean isKeyFrame() {
+    @Nullable
+    String getDeltaMimeType() {
+        return deltaMimeType;
+    }
+
+    void setDeltaMimeType(@Nullable String deltaMimeType) {
+        this.deltaMimeType = deltaMimeType;
+    }
+
+    /**
+     * @return the position of the header of the chunk being read
+     */
+    private long getChunkPosition() {
         // -8 because the position array includes the header, but the read skips it.
-        return allKeyFrames || Arrays.binarySearch(positions, readEnd - readSize - 8) >= 0;
+        return readEnd - readSize - 8;
+    }
+
+    /**
+     * @return true if the key flag of the current chunk can only be found in its payload
+     */
+    private boolean isKeyFrameUnknown() {
+        return !allKeyFrames && chunkClock && !keyFramePage && deltaMimeType != null &&
+                chunkIndex.getChunkIndex(getChunkPosition()) < 0;
+    }
+
+    private boolean peekKeyFrame(@NonNull ExtractorInput input) throws IOException {
+        final int size = Math.min(readSize, AviIndexRepair.KEY_FRAME_PEEK);
+        if (peekBuffer == null) {
+            peekBuffer = AviExtractor.allocate(AviIndexRepair.KEY_FRAME_PEEK);
+        }
+        peekBuffer.clear();
+        final boolean peeked = input.peekFully(peekBuffer.array(), 0, size, true);
+        input.resetPeekPosition();
+        if (!peeked) {
+            // Let the decoder sort it out, rather than drop frames until the next key frame
+            return true;
+        }
+        peekBuffer.limit(size);
+        return AviIndexRepair.isKeyFrame(deltaMimeType, peekBuffer);
+    }
+
+    @Override
+    public boolean read(@NonNull ExtractorInput input) throws IOException {
+        if (readSize == readRemaining && isKeyFrameUnknown()) {
+            peekedKeyFrame = peekKeyFrame(input);
+        }
+        return super.read(input);
+    }
+
+    protected boolean isKeyFrame() {
+        final long position = getChunkPosition();
+        if (allKeyFrames) {
+            return true;
+        } else if (!chunkClock || keyFramePage) {
+            // An empty page has no key frames, rather than an unknown index
+            return Arrays.binarySearch(positions, position) >= 0;
+        } else if (deltaMimeType == null) {
+            // Intra only, i.e. MJPEG (the usual live format)
+            return true;
+        }
+        // A growing file indexes the chunks with their key flags before they are read,
+        // otherwise (i.e. progressive start) read() peeked the flag
+        final int index = chunkIndex.getChunkIndex(position);
+        return index < 0 ? peekedKeyFrame : chunkIndex.isKeyFrame(index);
+    }
+
+    /**
+     * Key frame chunk positions from an index page, while timed by the chunk clock
+     */
+    void setKeyFramePositions(@NonNull long[] keyFramePositions) {
+        positions = keyFramePositions;
+        keyFramePage = true;
     }
 
     protected void advanceTime() {
         index++;
     }
 
+    @Override
+    void advanceClock(int size) {
+        advanceTime();
+    }
+
     @Override
     protected void sendMetadata(int size) {
         if (size > 0) {
@@ -48,6 +141,7 @@ public class VideoStreamHandler extends StreamHandler {
 
     @Override
     public long[] setSeekStream() {
+        chunkClock = false;
         final int[] seekFrameIndices;
         if (chunkIndex.isAllKeyFrames()) {
             allKeyFrames = true;
@@ -67,11 +161,31 @@ public class VideoStreamHandler extends StreamHandler {
         return positions;
     }
 
+    @NonNull
+    @Override
+    AviIndexCache.StreamTable getStreamTable() {
+        return new AviIndexCache.StreamTable(durationUs, chunkIndex.getCount(),
+                chunkIndex.getSize(), chunkClock, positions, indices, null, allKeyFrames,
+                frameUs);
+    }
+
+    @Override
+    void setStreamTable(@NonNull AviIndexCache.StreamTable streamTable) {
+        super.setStreamTable(streamTable);
+        indices = streamTable.indices == null ? new int[0] : streamTable.indices;
+        allKeyFrames = streamTable.allKeyFrames;
+        keyFramePage = false;
+        frameUs = streamTable.frameUs;
+    }
+
     /**
      * Get the stream time for a chunk index
      * @param index the index of chunk in the stream
      */
     protected long getChunkTimeUs(int index) {
+        if (chunkClock) {
+            return getClockTimeUs(index);
+        }
         return durationUs * index / this.chunkIndex.getCount();
     }
 
@@ -107,10 +221,20 @@ public class VideoStreamHandler extends StreamHandler {
 
     @Override
     public void seekPosition(long position) {
+        if (indices.length == 0) {
+            // No seek points, only the start is reachable
+            index = 0;
+            return;
+        }
         final int seekIndex = getSeekIndex(position);
         index = indices[seekIndex];
     }
 
+    @Override
+    void seekClock(long samples) {
+        index = (int)samples;
+    }
+
     @Override
     protected void setSeekPointSize(int seekPointCount) {
         super.setSeekPointSize(seekPointCount);
@@ -5,9 +5,21 @@ import android.graphics.Bitmap;
 import androidx.annotation.Nullable;
 import androidx.media3.decoder.VideoDecoderOutputBuffer;
 
+/**
+ * Output buffer holding a decoded Bitmap.
+ * On release, the owner takes the Bitmap back for reuse.
+ */
 public class BitmapDecoderOutputBuffer extends VideoDecoderOutputBuffer {
     @Nullable
     private Bitmap bitmap;
+    /**
+     * Not decoded because it would have been late (or stale), reported as a dropped frame
+     */
+    boolean dropped;
+    /**
+     * Hash of the compressed frame, see {@link BitmapFactoryDecoder#onOutputBufferNotShown}
+     */
+    long hash = BitmapFactoryDecoder.NO_HASH;
 
     public BitmapDecoderOutputBuffer(Owner<VideoDecoderOutputBuffer> owner) {
         super(owner);
@@ -21,10 +33,4 @@ public class BitmapDecoderOutputBuffer extends VideoDecoderOutputBuffer {
     public void setBitmap(@Nullable Bitmap bitmap) {
         this.bitmap = bitmap;
     }
-
-    @Override
-    public void release() {
-        super.release();
-        setBitmap(null);
-    }
 }
@@ -2,40 +2,224 @@ package com.homesoft.exo.video;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.ImageDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
 import androidx.media3.common.C;
+import androidx.media3.common.Format;
+import androidx.media3.common.util.Assertions;
+import androidx.media3.common.util.Log;
 import androidx.media3.common.util.Util;
+import androidx.media3.decoder.Decoder;
 import androidx.media3.decoder.DecoderException;
 import androidx.media3.decoder.DecoderInputBuffer;
-import androidx.media3.decoder.SimpleDecoder;
+import androidx.media3.decoder.VideoDecoderOutputBuffer;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
-public class BitmapFactoryDecoder extends SimpleDecoder<DecoderInputBuffer, BitmapDecoderOutputBuffer, DecoderException> {
+/**
+ * Decodes JPEG frames with {@link BitmapFactory} or {@link ImageDecoder} depending on the bitmap mode.
+ * Every MJPEG frame is independent, so up to "buffers" frames are decoded in parallel on a pool of
+ * "threads".  Frames are returned in the order they were queued (timestamp order for MJPEG).
+ * In {@link C#VIDEO_OUTPUT_MODE_YUV} frames are returned as I420 planes instead of a Bitmap.
+ */
+public class BitmapFactoryDecoder implements Decoder<DecoderInputBuffer, BitmapDecoderOutputBuffer, DecoderException> {
     private static final String TAG = "BitmapFactoryDecoder";
-    private final ArrayBlockingQueue<Bitmap> bitmapQueue;
+    /**
+     * BitmapFactory into reused ARGB_8888 bitmaps
+     */
+    public static final int BITMAP_MODE_ARGB_8888 = 0;
+    /**
+     * BitmapFactory into reused RGB_565 bitmaps.  Half the memory bandwidth of ARGB_8888
+     */
+    public static final int BITMAP_MODE_RGB_565 = 1;
+    /**
+     * ImageDecoder into HARDWARE bitmaps, skips the CPU to GPU upload.  API 28+
+     */
+    public static final int BITMAP_MODE_HARDWARE = 2;
+    /**
+     * Same threshold DecoderVideoRenderer uses to drop a late frame
+     */
+    static final long LATE_THRESHOLD_US = 30_000;
+    /**
+     * Decode at least one frame in this many, so the picture still updates when way behind
+     */
+    static final int MAX_CONSECUTIVE_LATE_FRAMES = 4;
+    static final long NO_HASH = -1L;
+    /**
+     * Frames are converted in parallel, so one set of row buffers per decode thread.
+     * Static, so the threads of a shared {@link MjpegDecodeScheduler} keep one set each
+     */
+    private static final ThreadLocal<I420Scratch> I420_SCRATCH = new ThreadLocal<I420Scratch>() {
+        @Override
+        protected I420Scratch initialValue() {
+            return new I420Scratch();
+        }
+    };
+
+    /**
+     * @return bitmapMode if it's supported on this device, otherwise the closest supported mode
+     */
+    public static int getSupportedBitmapMode(int bitmapMode) {
+        if (bitmapMode == BITMAP_MODE_HARDWARE && Build.VERSION.SDK_INT < Build.VERSION_CODES.P) {
+            return BITMAP_MODE_ARGB_8888;
+        }
+        return bitmapMode;
+    }
+
+    private final Object lock = new Object();
+    private final BitmapPool bitmapPool;
+    private final Executor executor;
+    /**
+     * Only set if this decoder owns the decode threads
+     */
+    @Nullable
+    private final ExecutorService executorService;
+    /**
+     * Only set when decoding on a shared {@link MjpegDecodeScheduler}
+     */
+    @Nullable
+    private final MjpegDecodeScheduler.Client client;
+    private final boolean ownsBitmapPool;
+
+    private final ArrayDeque<Frame> availableFrames;
+    private final ArrayDeque<BitmapDecoderOutputBuffer> availableOutputBuffers;
+    /**
+     * Frames queued or in flight, in queue order
+     */
+    private final ArrayDeque<Frame> queuedFrames;
+
+    @Nullable
+    private Frame dequeuedFrame;
+    @Nullable
+    private DecoderException exception;
+    private int skippedOutputBufferCount;
+    /**
+     * Late frames among {@link #skippedOutputBufferCount}
+     */
+    private int droppedOutputBufferCount;
+    /**
+     * Late frames reported as skipped by returned output buffers, see
+     * {@link #pollDroppedOutputBufferCount()}
+     */
+    private int reportedDroppedOutputBufferCount;
+    private boolean released;
+    private final CRC32 crc32 = new CRC32();
+    /**
+     * Hash of the last queued frame that will be shown or {@link #NO_HASH}
+     */
+    private long lastQueuedHash = NO_HASH;
+
     private volatile @C.VideoOutputMode int outputMode;
+    private volatile int bitmapMode = BITMAP_MODE_ARGB_8888;
+    private volatile int targetWidth;
+    private volatile int targetHeight;
+    /**
+     * Size of the last decoded Bitmap, used to pick a matching Bitmap from the pool
+     */
+    @Nullable
+    private volatile DecodedSize decodedSize;
+    @Nullable
+    private volatile Rect cropRect;
+    private volatile long clockPositionUs = C.TIME_UNSET;
+    private volatile long clockElapsedRealtimeUs;
+    private volatile boolean live;
+    /**
+     * Moving average of the full decode time of a frame
+     */
+    private volatile long averageDecodeUs;
+    private final AtomicInteger consecutiveLateFrames = new AtomicInteger();
+    private final MjpegDecoderStats stats;
 
-    protected BitmapFactoryDecoder(int buffers) {
-        super(new DecoderInputBuffer[buffers], new BitmapDecoderOutputBuffer[buffers]);
-        bitmapQueue = new ArrayBlockingQueue<>(buffers);
+    /**
+     * @param buffers number of frames that can be queued or in flight
+     * @param threads number of decode threads
+     * @param bitmapPool pool of Bitmaps to decode into
+     */
+    protected BitmapFactoryDecoder(int buffers, int threads, @NonNull BitmapPool bitmapPool) {
+        this(buffers, Executors.newFixedThreadPool(threads, runnable -> new Thread(runnable, TAG)),
+                true, bitmapPool, true);
+    }
+
+    /**
+     * Decode on a shared {@link MjpegDecodeScheduler}
+     * @param buffers number of frames that can be queued or in flight
+     */
+    protected BitmapFactoryDecoder(int buffers, @NonNull MjpegDecodeScheduler.Client client,
+                                   @NonNull BitmapPool bitmapPool) {
+        this(buffers, client, false, bitmapPool, false);
+    }
+
+    private BitmapFactoryDecoder(int buffers, @NonNull Executor executor, boolean ownsExecutor,
+                                 @NonNull BitmapPool bitmapPool, boolean ownsBitmapPool) {
+        this.executor = executor;
+        executorService = ownsExecutor ? (ExecutorService) executor : null;
+        client = executor instanceof MjpegDecodeScheduler.Client ?
+                (MjpegDecodeScheduler.Client) executor : null;
+        this.bitmapPool = bitmapPool;
+        this.ownsBitmapPool = ownsBitmapPool;
+        stats = new MjpegDecoderStats(bitmapPool);
+        availableFrames = new ArrayDeque<>(buffers);
+        availableOutputBuffers = new ArrayDeque<>(buffers);
+        queuedFrames = new ArrayDeque<>(buffers);
+        for (int i=0;i<buffers;i++) {
+            availableFrames.add(new Frame(createInputBuffer()));
+            availableOutputBuffers.add(createOutputBuffer());
+        }
     }
 
+    /**
+     * Return a Bitmap to the pool.  Called for rendered and dropped frames when the output
+     * buffer is released.
+     */
     public void recycle(@NonNull Bitmap bitmap) {
-        bitmapQueue.offer(bitmap);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && bitmap.getConfig() == Bitmap.Config.HARDWARE) {
+            // Can't be reused, so free the graphics memory now
+            bitmapPool.untrack(bitmap);
+            bitmap.recycle();
+        } else {
+            bitmapPool.offer(bitmap);
+        }
+    }
+
+    @NonNull
+    public BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    /**
+     * Set the decoder and bitmap config used for frames.
+     * Unsupported modes fall back to {@link #BITMAP_MODE_ARGB_8888}.
+     * @param bitmapMode one of the BITMAP_MODE_* constants
+     */
+    public void setBitmapMode(int bitmapMode) {
+        this.bitmapMode = getSupportedBitmapMode(bitmapMode);
+    }
+
+    public int getBitmapMode() {
+        return bitmapMode;
     }
 
     @NonNull
-    @Override
     protected DecoderInputBuffer createInputBuffer() {
         return new DecoderInputBuffer(DecoderInputBuffer.BUFFER_REPLACEMENT_MODE_NORMAL);
     }
 
     @NonNull
-    @Override
     protected BitmapDecoderOutputBuffer createOutputBuffer() {
         return new BitmapDecoderOutputBuffer(outputBuffer -> {
             if (outputBuffer instanceof BitmapDecoderOutputBuffer) {
@@ -44,12 +228,6 @@ public class BitmapFactoryDecoder extends SimpleDecoder<DecoderInputBuffer, Bitm
         });
     }
 
-    @NonNull
-    @Override
-    protected DecoderException createUnexpectedDecodeException(Throwable error) {
-        return new DecoderException(error);
-    }
-
     /**
      * Sets the output mode for frames rendered by the decoder.
      *
@@ -59,31 +237,738 @@ public class BitmapFactoryDecoder extends SimpleDecoder<DecoderInputBuffer, Bitm
         this.outputMode = outputMode;
     }
 
+    /**
+     * Set the size of the output surface.  Frames are down sampled during the decode to the
+     * smallest power of 2 that still covers the target.
+     * @param width target width or 0 for full size
+     * @param height target height or 0 for full size
+     */
+    public void setTargetSize(int width, int height) {
+        targetWidth = width;
+        targetHeight = height;
+    }
+
+    /**
+     * Decode only part of the frame, i.e. when zoomed in.  The decode cost scales with the crop
+     * size instead of the frame size.
+     * @param cropRect region of the frame in video pixels or null for the whole frame
+     */
+    public void setCropRect(@Nullable Rect cropRect) {
+        this.cropRect = cropRect == null ? null : new Rect(cropRect);
+        // The pooled Bitmaps of the old size don't fit the new region
+        decodedSize = null;
+        synchronized (lock) {
+            // The picture changes even if the frame doesn't
+            lastQueuedHash = NO_HASH;
+        }
+    }
+
+    @Nullable
+    public Rect getCropRect() {
+        final Rect cropRect = this.cropRect;
+        return cropRect == null ? null : new Rect(cropRect);
+    }
+
+    /**
+     * @return cropRect clipped to the frame or null if the whole frame should be decoded
+     */
+    @Nullable
+    static Rect getDecodeRect(@Nullable Rect cropRect, @Nullable Format format) {
+        if (cropRect == null || format == null || format.width <= 0 || format.height <= 0) {
+            return null;
+        }
+        final Rect rect = new Rect(cropRect);
+        if (!rect.intersect(0, 0, format.width, format.height) ||
+                (rect.width() == format.width && rect.height() == format.height)) {
+            return null;
+        }
+        return rect;
+    }
+
+    /**
+     * @return the largest power of 2 sample size that is still at least the target size
+     */
+    static int getSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        if (width > 0 && height > 0 && targetWidth > 0 && targetHeight > 0) {
+            while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+                sampleSize *= 2;
+            }
+        }
+        return sampleSize;
+    }
+
+    /**
+     * {@link BitmapRegionDecoder} never resizes the inBitmap, it clips to it or leaves stale
+     * pixels, so a region is only decoded into a Bitmap of exactly the region size.
+     * BitmapFactory reconfigures an inBitmap that is large enough.
+     * @return true if a Bitmap of width x height can be decoded into
+     */
+    static boolean isInBitmapSize(int width, int height, @Nullable Rect decodeRect, int sampleSize) {
+        if (decodeRect == null) {
+            return true;
+        }
+        return width == (decodeRect.width() + sampleSize - 1) / sampleSize &&
+                height == (decodeRect.height() + sampleSize - 1) / sampleSize;
+    }
+
+    /**
+     * Set the playback position, used to skip the decode of frames that would be late anyway.
+     * Assumes a playback speed of 1.
+     * @param positionUs current playback position or {@link C#TIME_UNSET} if not playing
+     * @param elapsedRealtimeUs {@link SystemClock#elapsedRealtime()} (in us) at positionUs
+     */
+    public void setPlaybackClock(long positionUs, long elapsedRealtimeUs) {
+        clockElapsedRealtimeUs = elapsedRealtimeUs;
+        clockPositionUs = positionUs;
+    }
+
+    /**
+     * Live mode, i.e. an IP camera.  Only the newest frame matters: a frame is skipped if a newer
+     * one was queued before its decode started and frames are never skipped for being late.
+     */
+    public void setLive(boolean live) {
+        this.live = live;
+    }
+
+    public boolean isLive() {
+        return live;
+    }
+
+    /**
+     * @return true if a newer frame, that will be drawn, was queued after this one
+     */
+    private boolean isStale(@NonNull DecoderInputBuffer inputBuffer) {
+        synchronized (lock) {
+            final Iterator<Frame> iterator = queuedFrames.descendingIterator();
+            while (iterator.hasNext()) {
+                final Frame frame = iterator.next();
+                if (frame.inputBuffer == inputBuffer) {
+                    return false;
+                }
+                if (!frame.inputBuffer.isEndOfStream() && !frame.duplicate) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return number of frames not decoded because they would have been late
+     */
+    public int getLateFrameCount() {
+        return stats.getSkipCount(MjpegDecoderStats.SKIP_LATE);
+    }
+
+    /**
+     * @return number of frames not decoded because they were identical to the previous frame
+     */
+    public int getDuplicateFrameCount() {
+        return stats.getSkipCount(MjpegDecoderStats.SKIP_DUPLICATE);
+    }
+
+    @NonNull
+    public MjpegDecoderStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Cheap hash of the compressed frame, the length in the upper 32 bits and a CRC32 in the lower.
+     * Identical frames (common for static scenes) produce the same hash.
+     */
+    private long hash(@NonNull ByteBuffer data) {
+        crc32.reset();
+        crc32.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        return ((long)data.remaining() << 32) | crc32.getValue();
+    }
+
+    /**
+     * @return true if the frame would finish decoding after the renderer would drop it
+     */
+    private boolean isLate(long timeUs) {
+        final long positionUs = clockPositionUs;
+        if (positionUs == C.TIME_UNSET || live) {
+            return false;
+        }
+        final long elapsedUs = SystemClock.elapsedRealtimeNanos() / 1000 - clockElapsedRealtimeUs;
+        final long decodedPositionUs = positionUs + elapsedUs + averageDecodeUs;
+        return timeUs - decodedPositionUs < -LATE_THRESHOLD_US;
+    }
+
     @Nullable
     @Override
-    protected DecoderException decode(DecoderInputBuffer inputBuffer, @NonNull BitmapDecoderOutputBuffer outputBuffer, boolean reset) {
+    public DecoderInputBuffer dequeueInputBuffer() throws DecoderException {
+        synchronized (lock) {
+            maybeThrowException();
+            Assertions.checkState(dequeuedFrame == null);
+            dequeuedFrame = availableFrames.pollFirst();
+            return dequeuedFrame == null ? null : dequeuedFrame.inputBuffer;
+        }
+    }
+
+    @Override
+    public void queueInputBuffer(@NonNull DecoderInputBuffer inputBuffer) throws DecoderException {
+        synchronized (lock) {
+            maybeThrowException();
+            Assertions.checkArgument(dequeuedFrame != null && inputBuffer == dequeuedFrame.inputBuffer);
+            if (inputBuffer.isEndOfStream() || inputBuffer.isDecodeOnly() || inputBuffer.data == null) {
+                lastQueuedHash = NO_HASH;
+            } else {
+                stats.addInput(inputBuffer.data.remaining());
+                final long hash = hash(inputBuffer.data);
+                if (hash == lastQueuedHash) {
+                    // Same picture as the previous frame, which is (or will be) on the surface.
+                    // Undone by onFrameNotShown() if the previous frame never makes it there.
+                    dequeuedFrame.duplicate = true;
+                    stats.addSkip(MjpegDecoderStats.SKIP_DUPLICATE);
+                }
+                dequeuedFrame.hash = hash;
+                lastQueuedHash = hash;
+            }
+            queuedFrames.addLast(dequeuedFrame);
+            dequeuedFrame = null;
+            maybeStartFrames();
+        }
+    }
+
+    @Nullable
+    @Override
+    public BitmapDecoderOutputBuffer dequeueOutputBuffer() throws DecoderException {
+        synchronized (lock) {
+            maybeThrowException();
+            Frame frame;
+            while ((frame = queuedFrames.peekFirst()) != null && frame.done) {
+                queuedFrames.removeFirst();
+                final BitmapDecoderOutputBuffer outputBuffer = Assertions.checkNotNull(frame.outputBuffer);
+                releaseFrame(frame, false);
+                if (outputBuffer.isDecodeOnly()) {
+                    if (outputBuffer.dropped) {
+                        droppedOutputBufferCount++;
+                    }
+                    releaseOutputBufferInternal(outputBuffer);
+                    maybeStartFrames();
+                    skippedOutputBufferCount++;
+                } else {
+                    outputBuffer.skippedOutputBufferCount = skippedOutputBufferCount;
+                    skippedOutputBufferCount = 0;
+                    reportedDroppedOutputBufferCount += droppedOutputBufferCount;
+                    droppedOutputBufferCount = 0;
+                    return outputBuffer;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The renderer only knows the skipped count of an output buffer, but frames that weren't
+     * decoded because they would have been late are really dropped frames.
+     * @return number of late frames included in the skipped counts of the output buffers returned
+     * since the last call
+     */
+    int pollDroppedOutputBufferCount() {
+        synchronized (lock) {
+            final int count = reportedDroppedOutputBufferCount;
+            reportedDroppedOutputBufferCount = 0;
+            return count;
+        }
+    }
+
+    /**
+     * Called by the renderer for an output buffer it dropped or skipped instead of rendering
+     */
+    void onOutputBufferNotShown(@NonNull BitmapDecoderOutputBuffer outputBuffer) {
+        synchronized (lock) {
+            onFrameNotShown(null, outputBuffer.hash);
+        }
+    }
+
+    /**
+     * A frame won't be on the surface (skipped, failed or dropped by the renderer), so the frames
+     * queued after it as duplicates have to be decoded after all.
+     * @param frame the frame if it's still queued, null if it was already dequeued
+     */
+    private void onFrameNotShown(@Nullable Frame frame, long hash) {
+        if (hash == NO_HASH || released) {
+            return;
+        }
+        boolean found = frame == null;
+        boolean following = false;
+        for (Frame queuedFrame : queuedFrames) {
+            if (!found) {
+                found = queuedFrame == frame;
+                continue;
+            }
+            following = true;
+            if (!queuedFrame.duplicate || queuedFrame.hash != hash) {
+                break;
+            }
+            queuedFrame.duplicate = false;
+            final BitmapDecoderOutputBuffer outputBuffer = queuedFrame.outputBuffer;
+            if (outputBuffer != null) {
+                // Already completed as a duplicate, decode it for real
+                outputBuffer.clear();
+                queuedFrame.done = false;
+                executor.execute(queuedFrame);
+            }
+        }
+        if (!following && lastQueuedHash == hash) {
+            lastQueuedHash = NO_HASH;
+        }
+    }
+
+    /**
+     * The renderer switched to another surface, which doesn't have the previous frame on it.
+     * The next frame and its queued duplicates have to be decoded and drawn.
+     */
+    void onOutputChanged() {
+        synchronized (lock) {
+            lastQueuedHash = NO_HASH;
+            for (Frame queuedFrame : queuedFrames) {
+                if (!queuedFrame.duplicate) {
+                    // Drawn on the new surface, so later duplicates of it are fine
+                    break;
+                }
+                queuedFrame.duplicate = false;
+                final BitmapDecoderOutputBuffer outputBuffer = queuedFrame.outputBuffer;
+                if (outputBuffer != null) {
+                    outputBuffer.clear();
+                    queuedFrame.done = false;
+                    executor.execute(queuedFrame);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        synchronized (lock) {
+            skippedOutputBufferCount = 0;
+            droppedOutputBufferCount = 0;
+            lastQueuedHash = NO_HASH;
+            if (dequeuedFrame != null) {
+                releaseFrame(dequeuedFrame, true);
+                dequeuedFrame = null;
+            }
+            for (Frame frame : queuedFrames) {
+                if (frame.outputBuffer != null && !frame.done) {
+                    // In flight, the decode thread will release it
+                    frame.discarded = true;
+                } else {
+                    releaseFrame(frame, true);
+                }
+            }
+            queuedFrames.clear();
+        }
+    }
+
+    @Override
+    public void release() {
+        synchronized (lock) {
+            released = true;
+        }
+        flush();
+        if (executorService != null) {
+            executorService.shutdown();
+        }
+        if (client != null) {
+            // Don't leave our frames queued ahead of the other players
+            client.release();
+        }
+        if (ownsBitmapPool) {
+            bitmapPool.clear();
+        }
+    }
+
+    private void releaseOutputBuffer(@NonNull BitmapDecoderOutputBuffer outputBuffer) {
+        synchronized (lock) {
+            releaseOutputBufferInternal(outputBuffer);
+            maybeStartFrames();
+        }
+    }
+
+    private void releaseOutputBufferInternal(@NonNull BitmapDecoderOutputBuffer outputBuffer) {
+        final Bitmap bitmap = outputBuffer.getBitmap();
+        if (bitmap != null) {
+            recycle(bitmap);
+            outputBuffer.setBitmap(null);
+        }
+        outputBuffer.dropped = false;
+        outputBuffer.hash = NO_HASH;
+        outputBuffer.clear();
+        availableOutputBuffers.addLast(outputBuffer);
+    }
+
+    /**
+     * Return the Frame (and optionally the output buffer) to the pool
+     */
+    private void releaseFrame(@NonNull Frame frame, boolean releaseOutputBuffer) {
+        final BitmapDecoderOutputBuffer outputBuffer = frame.outputBuffer;
+        frame.reset();
+        availableFrames.addLast(frame);
+        if (releaseOutputBuffer && outputBuffer != null) {
+            releaseOutputBufferInternal(outputBuffer);
+        }
+    }
+
+    /**
+     * Assign output buffers to queued frames and start decoding them
+     */
+    private void maybeStartFrames() {
+        if (released) {
+            return;
+        }
+        for (Frame frame : queuedFrames) {
+            if (frame.outputBuffer != null) {
+                continue;
+            }
+            final BitmapDecoderOutputBuffer outputBuffer = availableOutputBuffers.pollFirst();
+            if (outputBuffer == null) {
+                return;
+            }
+            frame.outputBuffer = outputBuffer;
+            outputBuffer.hash = frame.hash;
+            if (frame.inputBuffer.isEndOfStream()) {
+                outputBuffer.addFlag(C.BUFFER_FLAG_END_OF_STREAM);
+                frame.done = true;
+            } else if (frame.duplicate) {
+                // Skip the decode and the redraw, the surface keeps the previous frame
+                outputBuffer.init(frame.inputBuffer.timeUs, outputMode, null);
+                outputBuffer.addFlag(C.BUFFER_FLAG_DECODE_ONLY);
+                frame.done = true;
+            } else {
+                executor.execute(frame);
+            }
+        }
+    }
+
+    private void maybeThrowException() throws DecoderException {
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    @Nullable
+    protected DecoderException decode(@NonNull DecoderInputBuffer inputBuffer, @NonNull BitmapDecoderOutputBuffer outputBuffer) {
+        final @C.VideoOutputMode int outputMode = this.outputMode;
         outputBuffer.init(inputBuffer.timeUs, outputMode, null);
         ByteBuffer inputData = Util.castNonNull(inputBuffer.data);
-        final BitmapFactory.Options opts = new BitmapFactory.Options();
-        opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
-        opts.inMutable = true;
-        opts.inBitmap = bitmapQueue.poll();
-        opts.inJustDecodeBounds = inputBuffer.isDecodeOnly() || outputMode != C.VIDEO_OUTPUT_MODE_SURFACE_YUV;
-        final Bitmap bitmap = BitmapFactory.decodeByteArray(inputData.array(), inputData.arrayOffset(), inputData.limit(), opts);
-        if (bitmap == null || opts.inJustDecodeBounds) {
+        final Format format = inputBuffer.format;
+        final Rect decodeRect = getDecodeRect(cropRect, format);
+        final boolean yuv = outputMode == C.VIDEO_OUTPUT_MODE_YUV;
+        final int sampleSize;
+        if (yuv) {
+            // No surface to size to
+            sampleSize = 1;
+        } else if (decodeRect != null) {
+            sampleSize = getSampleSize(decodeRect.width(), decodeRect.height(), targetWidth, targetHeight);
+        } else {
+            sampleSize = format == null ? 1 :
+                    getSampleSize(format.width, format.height, targetWidth, targetHeight);
+        }
+        final boolean boundsOnly = inputBuffer.isDecodeOnly() ||
+                (outputMode != C.VIDEO_OUTPUT_MODE_SURFACE_YUV && !yuv);
+        if (boundsOnly) {
+            stats.addSkip(inputBuffer.isDecodeOnly() ? MjpegDecoderStats.SKIP_DECODE_ONLY :
+                    MjpegDecoderStats.SKIP_NO_OUTPUT);
+        } else {
+            if (live && isStale(inputBuffer)) {
+                stats.addSkip(MjpegDecoderStats.SKIP_STALE);
+                outputBuffer.addFlag(C.BUFFER_FLAG_DECODE_ONLY);
+                outputBuffer.dropped = true;
+                return null;
+            }
+            if (isLate(inputBuffer.timeUs) &&
+                    consecutiveLateFrames.incrementAndGet() <= MAX_CONSECUTIVE_LATE_FRAMES) {
+                // The renderer would drop it, so don't waste the CPU decoding it
+                stats.addSkip(MjpegDecoderStats.SKIP_LATE);
+                outputBuffer.addFlag(C.BUFFER_FLAG_DECODE_ONLY);
+                outputBuffer.dropped = true;
+                return null;
+            }
+            consecutiveLateFrames.set(0);
+        }
+        final long startUs = System.nanoTime() / 1000;
+        final int bitmapMode = this.bitmapMode;
+        Bitmap bitmap = null;
+        // HARDWARE Bitmaps can't be read back, so not for YUV
+        if (bitmapMode == BITMAP_MODE_HARDWARE && !boundsOnly && !yuv && decodeRect == null) {
+            try {
+                bitmap = ImageDecoderApi28.decode(inputData, sampleSize);
+            } catch (IOException e) {
+                // Corrupt frame, let BitmapFactory have a go
+            } catch (RuntimeException | OutOfMemoryError e) {
+                Log.w(TAG, "ImageDecoder failed, falling back to BitmapFactory", e);
+                this.bitmapMode = BITMAP_MODE_ARGB_8888;
+            }
+        }
+        if (bitmap == null) {
+            final BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inPreferredConfig = bitmapMode == BITMAP_MODE_RGB_565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+            opts.inMutable = true;
+            opts.inJustDecodeBounds = boundsOnly;
+            opts.inSampleSize = sampleSize;
+            final DecodedSize decodedSize = this.decodedSize;
+            if (!boundsOnly && decodedSize != null && decodedSize.sampleSize == sampleSize &&
+                    isInBitmapSize(decodedSize.width, decodedSize.height, decodeRect, sampleSize)) {
+                opts.inBitmap = bitmapPool.get(decodedSize.width, decodedSize.height, opts.inPreferredConfig);
+            }
+            final Bitmap inBitmap = opts.inBitmap;
+            try {
+                bitmap = decodeBitmap(inputData, decodeRect, opts);
+            } catch (IllegalArgumentException e) {
+                // inBitmap didn't fit, try again without it
+                opts.inBitmap = null;
+                bitmap = decodeBitmap(inputData, decodeRect, opts);
+            }
+            if (inBitmap != null && inBitmap != bitmap) {
+                bitmapPool.offer(inBitmap);
+            }
+            if (bitmap != null && (decodedSize == null || !decodedSize.matches(sampleSize, bitmap))) {
+                this.decodedSize = new DecodedSize(sampleSize, bitmap.getWidth(), bitmap.getHeight());
+            }
+        }
+        if (bitmap == null || boundsOnly) {
             outputBuffer.addFlag(C.BUFFER_FLAG_DECODE_ONLY);
         } else {
+            bitmapPool.track(bitmap);
+            final long decodeUs = System.nanoTime() / 1000 - startUs;
+            averageDecodeUs = (averageDecodeUs * 7 + decodeUs) / 8;
+            stats.addDecode(decodeUs);
+            outputBuffer.format = format;
+            if (yuv) {
+                final int width = bitmap.getWidth();
+                final int height = bitmap.getHeight();
+                final int uvStride = (width + 1) / 2;
+                if (!outputBuffer.initForYuvFrame(width, height, width, uvStride,
+                        VideoDecoderOutputBuffer.COLORSPACE_BT601)) {
+                    recycle(bitmap);
+                    return new DecoderException("Invalid frame size: " + width + "x" + height);
+                }
+                argbToI420(bitmap, Util.castNonNull(outputBuffer.yuvPlanes),
+                        Util.castNonNull(outputBuffer.yuvStrides), I420_SCRATCH.get());
+                recycle(bitmap);
+                return null;
+            }
             outputBuffer.setBitmap(bitmap);
-            outputBuffer.format = inputBuffer.format;
-            outputBuffer.width = bitmap.getWidth();
-            outputBuffer.height = bitmap.getHeight();
+            setOutputSize(outputBuffer, decodeRect, format, bitmap.getWidth(), bitmap.getHeight());
         }
         return null;
     }
 
+    /**
+     * Report the logical size of the picture, whatever the sample size: the crop size if only
+     * part of the frame was decoded, otherwise the video size.
+     * The Bitmap size is only used if the format doesn't have the video size.
+     */
+    static void setOutputSize(@NonNull VideoDecoderOutputBuffer outputBuffer, @Nullable Rect decodeRect,
+                              @Nullable Format format, int bitmapWidth, int bitmapHeight) {
+        if (decodeRect != null) {
+            outputBuffer.width = decodeRect.width();
+            outputBuffer.height = decodeRect.height();
+        } else if (format != null && format.width > 0 && format.height > 0) {
+            outputBuffer.width = format.width;
+            outputBuffer.height = format.height;
+        } else {
+            outputBuffer.width = bitmapWidth;
+            outputBuffer.height = bitmapHeight;
+        }
+    }
+
+    /**
+     * Convert the Bitmap to limited range BT.601 I420, which is what VideoDecoderGLSurfaceView
+     * expects.  Chroma is the average of each 2x2 block.
+     * The platform doesn't expose the JPEG's YCbCr planes, so this goes through RGB.
+     * Each plane row is built in a scratch array and copied with one bulk put.
+     */
+    static void argbToI420(@NonNull Bitmap bitmap, @NonNull ByteBuffer[] planes, @NonNull int[] strides,
+                           @NonNull I420Scratch scratch) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int uvWidth = (width + 1) / 2;
+        final ByteBuffer yPlane = planes[0];
+        final ByteBuffer uPlane = planes[1];
+        final ByteBuffer vPlane = planes[2];
+        scratch.ensureWidth(width);
+        // Two rows at a time
+        final int[] pixels = scratch.pixels;
+        final byte[] yRow = scratch.yRow;
+        final byte[] uRow = scratch.uRow;
+        final byte[] vRow = scratch.vRow;
+        for (int y = 0; y < height; y += 2) {
+            final int rows = Math.min(2, height - y);
+            bitmap.getPixels(pixels, 0, width, 0, y, width, rows);
+            if (rows == 1) {
+                System.arraycopy(pixels, 0, pixels, width, width);
+            }
+            for (int row = 0; row < rows; row++) {
+                final int pixelOffset = row * width;
+                for (int x = 0; x < width; x++) {
+                    final int argb = pixels[pixelOffset + x];
+                    final int r = (argb >> 16) & 0xff;
+                    final int g = (argb >> 8) & 0xff;
+                    final int b = argb & 0xff;
+                    yRow[x] = (byte)(((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+                }
+                yPlane.position((y + row) * strides[0]);
+                yPlane.put(yRow, 0, width);
+            }
+            for (int x = 0; x < width; x += 2) {
+                final int x2 = Math.min(x + 1, width - 1);
+                final int p0 = pixels[x];
+                final int p1 = pixels[x2];
+                final int p2 = pixels[width + x];
+                final int p3 = pixels[width + x2];
+                final int r = (((p0 >> 16) & 0xff) + ((p1 >> 16) & 0xff) + ((p2 >> 16) & 0xff) + ((p3 >> 16) & 0xff) + 2) >> 2;
+                final int g = (((p0 >> 8) & 0xff) + ((p1 >> 8) & 0xff) + ((p2 >> 8) & 0xff) + ((p3 >> 8) & 0xff) + 2) >> 2;
+                final int b = ((p0 & 0xff) + (p1 & 0xff) + (p2 & 0xff) + (p3 & 0xff) + 2) >> 2;
+                uRow[x / 2] = (byte)(((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+                vRow[x / 2] = (byte)(((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+            }
+            uPlane.position((y / 2) * strides[1]);
+            uPlane.put(uRow, 0, uvWidth);
+            vPlane.position((y / 2) * strides[2]);
+            vPlane.put(vRow, 0, uvWidth);
+        }
+        // The renderer reads the planes from position 0
+        yPlane.position(0);
+        uPlane.position(0);
+        vPlane.position(0);
+    }
+
+    /**
+     * Row buffers for {@link #argbToI420}, grown to the widest frame seen
+     */
+    static class I420Scratch {
+        int[] pixels = new int[0];
+        byte[] yRow = new byte[0];
+        byte[] uRow = new byte[0];
+        byte[] vRow = new byte[0];
+
+        void ensureWidth(int width) {
+            if (yRow.length < width) {
+                final int uvWidth = (width + 1) / 2;
+                pixels = new int[width * 2];
+                yRow = new byte[width];
+                uRow = new byte[uvWidth];
+                vRow = new byte[uvWidth];
+            }
+        }
+    }
+
+    @Nullable
+    private static Bitmap decodeBitmap(@NonNull ByteBuffer inputData, @Nullable Rect decodeRect,
+                                       @NonNull BitmapFactory.Options opts) {
+        if (decodeRect != null && !opts.inJustDecodeBounds) {
+            try {
+                @SuppressWarnings("deprecation")
+                final BitmapRegionDecoder regionDecoder = BitmapRegionDecoder.newInstance(
+                        inputData.array(), inputData.arrayOffset(), inputData.limit(), false);
+                try {
+                    return regionDecoder.decodeRegion(decodeRect, opts);
+                } finally {
+                    regionDecoder.recycle();
+                }
+            } catch (IOException e) {
+                // Fall through to a full decode
+            }
+        }
+        return BitmapFactory.decodeByteArray(inputData.array(), inputData.arrayOffset(), inputData.limit(), opts);
+    }
+
     @NonNull
     @Override
     public String getName() {
         return TAG;
     }
+
+    @RequiresApi(Build.VERSION_CODES.P)
+    private static class ImageDecoderApi28 {
+        static Bitmap decode(@NonNull ByteBuffer inputData, int sampleSize) throws IOException {
+            final ImageDecoder.Source source = ImageDecoder.createSource(inputData);
+            return ImageDecoder.decodeBitmap(source, (imageDecoder, info, src) -> {
+                imageDecoder.setAllocator(ImageDecoder.ALLOCATOR_HARDWARE);
+                if (sampleSize > 1) {
+                    imageDecoder.setTargetSampleSize(sampleSize);
+                }
+            });
+        }
+    }
+
+    private static class DecodedSize {
+        final int sampleSize;
+        final int width;
+        final int height;
+
+        DecodedSize(int sampleSize, int width, int height) {
+            this.sampleSize = sampleSize;
+            this.width = width;
+            this.height = height;
+        }
+
+        boolean matches(int sampleSize, @NonNull Bitmap bitmap) {
+            return this.sampleSize == sampleSize && width == bitmap.getWidth() && height == bitmap.getHeight();
+        }
+    }
+
+    /**
+     * A queued input buffer and the output buffer it decodes to
+     */
+    private class Frame implements Runnable {
+        final DecoderInputBuffer inputBuffer;
+        @Nullable
+        BitmapDecoderOutputBuffer outputBuffer;
+        boolean done;
+        boolean discarded;
+        /**
+         * Identical to the previous frame
+         */
+        boolean duplicate;
+        long hash = NO_HASH;
+
+        Frame(@NonNull DecoderInputBuffer inputBuffer) {
+            this.inputBuffer = inputBuffer;
+        }
+
+        void reset() {
+            inputBuffer.clear();
+            outputBuffer = null;
+            done = discarded = duplicate = false;
+            hash = NO_HASH;
+        }
+
+        @Override
+        public void run() {
+            final BitmapDecoderOutputBuffer outputBuffer;
+            synchronized (lock) {
+                if (discarded) {
+                    // Flushed before the decode started, don't waste the CPU on it
+                    releaseFrame(this, true);
+                    maybeStartFrames();
+                    return;
+                }
+                outputBuffer = Assertions.checkNotNull(this.outputBuffer);
+            }
+            DecoderException decoderException;
+            try {
+                decoderException = decode(inputBuffer, outputBuffer);
+            } catch (RuntimeException | OutOfMemoryError e) {
+                decoderException = new DecoderException(e);
+            }
+            synchronized (lock) {
+                done = true;
+                if (discarded) {
+                    releaseFrame(this, true);
+                    maybeStartFrames();
+                } else if (decoderException != null) {
+                    if (exception == null) {
+                        exception = decoderException;
+                    }
+                } else if (outputBuffer.isDecodeOnly()) {
+                    onFrameNotShown(this, hash);
+                }
+            }
+        }
+    }
 }
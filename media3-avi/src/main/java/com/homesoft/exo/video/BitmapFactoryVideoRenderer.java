@@ -21,9 +21,23 @@ import androidx.media3.exoplayer.video.VideoRendererEventListener;
 
 public class BitmapFactoryVideoRenderer extends DecoderVideoRenderer {
     static final String TAG = "BitmapFactoryRenderer2";
+    public static final int DEFAULT_BUFFERS = 2;
+    public static final int DEFAULT_THREADS = 1;
     private final Rect rect = new Rect();
+    private final int buffers;
+    private final int threads;
 
-    private BitmapFactoryDecoder decoder;
+    private int bitmapMode = BitmapFactoryDecoder.BITMAP_MODE_ARGB_8888;
+    @Nullable
+    private volatile Rect cropRect;
+    @Nullable
+    private MjpegDecodeScheduler decodeScheduler;
+    @Nullable
+    private volatile MjpegDecodeScheduler.Client decodeClient;
+    private volatile int decodePriority = MjpegDecodeScheduler.PRIORITY_DEFAULT;
+    private volatile boolean live;
+
+    private volatile BitmapFactoryDecoder decoder;
 
     /**
      * @param allowedJoiningTimeMs     The maximum duration in milliseconds for which this video renderer
@@ -35,36 +49,204 @@ public class BitmapFactoryVideoRenderer extends DecoderVideoRenderer {
      *                                 invocations of {@link VideoRendererEventListener#onDroppedFrames(int, long)}.
      */
     public BitmapFactoryVideoRenderer(long allowedJoiningTimeMs, @Nullable Handler eventHandler, @Nullable VideoRendererEventListener eventListener, int maxDroppedFramesToNotify) {
+        this(allowedJoiningTimeMs, eventHandler, eventListener, maxDroppedFramesToNotify,
+                DEFAULT_BUFFERS, DEFAULT_THREADS);
+    }
+
+    /**
+     * @param buffers                  The number of frames the decoder can have queued or in flight.
+     * @param threads                  The number of threads used to decode frames in parallel.
+     * @see #BitmapFactoryVideoRenderer(long, Handler, VideoRendererEventListener, int)
+     */
+    public BitmapFactoryVideoRenderer(long allowedJoiningTimeMs, @Nullable Handler eventHandler, @Nullable VideoRendererEventListener eventListener, int maxDroppedFramesToNotify,
+                                      int buffers, int threads) {
         super(allowedJoiningTimeMs, eventHandler, eventListener, maxDroppedFramesToNotify);
+        this.buffers = buffers;
+        this.threads = threads;
     }
 
     @NonNull
     @Override
     protected BitmapFactoryDecoder createDecoder(@NonNull Format format, @Nullable CryptoConfig cryptoConfig) {
-        decoder = new BitmapFactoryDecoder(2);
+        if (decodeScheduler == null) {
+            decodeClient = null;
+            decoder = new BitmapFactoryDecoder(buffers, threads,
+                    new BitmapPool(getDefaultPoolBytes(format, buffers)));
+        } else {
+            final MjpegDecodeScheduler.Client client = decodeScheduler.createClient(decodePriority);
+            decodeClient = client;
+            decoder = new BitmapFactoryDecoder(buffers, client, decodeScheduler.getBitmapPool());
+        }
+        decoder.setBitmapMode(bitmapMode);
+        decoder.setCropRect(cropRect);
+        decoder.setLive(live);
         return decoder;
     }
 
+    /**
+     * Enough for every buffer to hold a full size ARGB_8888 frame
+     */
+    static long getDefaultPoolBytes(@NonNull Format format, int buffers) {
+        final int width = format.width == Format.NO_VALUE ? 1920 : format.width;
+        final int height = format.height == Format.NO_VALUE ? 1080 : format.height;
+        return (long)width * height * 4 * buffers;
+    }
+
+    /**
+     * Get the BitmapPool of the current decoder, used to check the reuse (hit) rate.
+     */
+    @Nullable
+    public BitmapPool getBitmapPool() {
+        return decoder == null ? null : decoder.getBitmapPool();
+    }
+
+    /**
+     * Get the counters of the current decoder, i.e. to log when playback stutters.
+     */
+    @Nullable
+    public MjpegDecoderStats getStats() {
+        final BitmapFactoryDecoder decoder = this.decoder;
+        return decoder == null ? null : decoder.getStats();
+    }
+
+    /**
+     * Decode on a shared scheduler, instead of threads owned by this renderer.
+     * Takes effect on the next decoder.
+     * @param decodeScheduler shared scheduler or null to use our own threads
+     */
+    public void setDecodeScheduler(@Nullable MjpegDecodeScheduler decodeScheduler) {
+        this.decodeScheduler = decodeScheduler;
+    }
+
+    /**
+     * Set the priority of this renderer on the shared {@link MjpegDecodeScheduler},
+     * i.e. raise it for the focused player.  Can be called from any thread.
+     */
+    public void setDecodePriority(int priority) {
+        decodePriority = priority;
+        final MjpegDecodeScheduler.Client client = decodeClient;
+        if (client != null) {
+            client.setPriority(priority);
+        }
+    }
+
+    /**
+     * Set the visible region of the video, i.e. when zoomed in.  Only this region is decoded
+     * and it's scaled to fill the surface.  Can be called from any thread.
+     * @param cropRect region in video pixels or null for the whole frame
+     */
+    public void setCropRect(@Nullable Rect cropRect) {
+        this.cropRect = cropRect == null ? null : new Rect(cropRect);
+        final BitmapFactoryDecoder decoder = this.decoder;
+        if (decoder != null) {
+            decoder.setCropRect(cropRect);
+        }
+    }
+
+    /**
+     * Live mode, i.e. an IP camera stream.  Each frame is drawn as soon as it's decoded instead of
+     * at its timestamp and frames that are stale before their decode starts are skipped, so the
+     * newest frame is always on screen.  Can be called from any thread.
+     */
+    public void setLive(boolean live) {
+        this.live = live;
+        final BitmapFactoryDecoder decoder = this.decoder;
+        if (decoder != null) {
+            decoder.setLive(live);
+        }
+    }
+
+    @Override
+    protected boolean shouldForceRenderOutputBuffer(long earlyUs, long elapsedSinceLastRenderUs) {
+        return live || super.shouldForceRenderOutputBuffer(earlyUs, elapsedSinceLastRenderUs);
+    }
+
+    /**
+     * Set the preferred bitmap mode.  If not supported by the device, a supported mode is used.
+     * Takes effect on the next decoder.
+     * @param bitmapMode one of the BitmapFactoryDecoder.BITMAP_MODE_* constants
+     */
+    public void setBitmapMode(int bitmapMode) {
+        this.bitmapMode = BitmapFactoryDecoder.getSupportedBitmapMode(bitmapMode);
+    }
+
+    @Override
+    public void render(long positionUs, long elapsedRealtimeUs) throws ExoPlaybackException {
+        if (decoder != null) {
+            // Only skip late frames while the clock is running
+            decoder.setPlaybackClock(getState() == STATE_STARTED ? positionUs : C.TIME_UNSET,
+                    elapsedRealtimeUs);
+        }
+        super.render(positionUs, elapsedRealtimeUs);
+        final BitmapFactoryDecoder decoder = this.decoder;
+        if (decoder != null) {
+            final int dropped = decoder.pollDroppedOutputBufferCount();
+            if (dropped > 0) {
+                // Counted as skipped by the base class, move them to dropped like dropOutputBuffer()
+                decoderCounters.skippedOutputBufferCount -= dropped;
+                updateDroppedBufferCounters(0, dropped);
+            }
+        }
+    }
+
+    @Override
+    protected void dropOutputBuffer(@NonNull VideoDecoderOutputBuffer outputBuffer) {
+        onOutputBufferNotShown(outputBuffer);
+        super.dropOutputBuffer(outputBuffer);
+    }
+
+    @Override
+    protected void skipOutputBuffer(@NonNull VideoDecoderOutputBuffer outputBuffer) {
+        onOutputBufferNotShown(outputBuffer);
+        super.skipOutputBuffer(outputBuffer);
+    }
+
+    /**
+     * Frames queued as duplicates of this one must not be skipped now
+     */
+    private void onOutputBufferNotShown(@NonNull VideoDecoderOutputBuffer outputBuffer) {
+        final BitmapFactoryDecoder decoder = this.decoder;
+        if (decoder != null && outputBuffer instanceof BitmapDecoderOutputBuffer) {
+            decoder.onOutputBufferNotShown((BitmapDecoderOutputBuffer) outputBuffer);
+        }
+    }
+
     @Override
     protected void renderOutputBufferToSurface(@NonNull VideoDecoderOutputBuffer outputBuffer, @NonNull Surface surface) {
         if (outputBuffer instanceof BitmapDecoderOutputBuffer) {
             final Bitmap bitmap = ((BitmapDecoderOutputBuffer) outputBuffer).getBitmap();
             if (bitmap != null) {
+                final long startUs = System.nanoTime() / 1000;
                 final Canvas canvas;
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                     canvas = surface.lockHardwareCanvas();
                 } else {
                     canvas = surface.lockCanvas(null);
                 }
+                final long lockedUs = System.nanoTime() / 1000;
                 rect.set(0,0,canvas.getWidth(), canvas.getHeight());
+                // Let the decoder down sample future frames to the surface size
+                decoder.setTargetSize(rect.width(), rect.height());
                 canvas.drawBitmap(bitmap, null, rect, null);
                 surface.unlockCanvasAndPost(canvas);
-                decoder.recycle(bitmap);
+                decoder.getStats().addSurface(lockedUs - startUs, System.nanoTime() / 1000 - lockedUs);
             }
         }
         outputBuffer.release();
     }
 
+    @Override
+    public void handleMessage(int messageType, @Nullable Object message) throws ExoPlaybackException {
+        super.handleMessage(messageType, message);
+        if (messageType == MSG_SET_VIDEO_OUTPUT) {
+            final BitmapFactoryDecoder decoder = this.decoder;
+            if (decoder != null) {
+                // Duplicates of the frame on the old surface would leave the new one blank
+                decoder.onOutputChanged();
+            }
+        }
+    }
+
     @Override
     protected void setDecoderOutputMode(int outputMode) {
         if (decoder != null) {
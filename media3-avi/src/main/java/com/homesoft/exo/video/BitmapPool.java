@@ -0,0 +1,200 @@
+package com.homesoft.exo.video;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of mutable Bitmaps for BitmapFactory.Options.inBitmap, keyed by width, height and config.
+ * {@link #get} is lock free, so the decode threads don't wait on the render thread returning
+ * Bitmaps.
+ * The Bitmaps checked out (being decoded into, queued or on screen) are charged against maxBytes
+ * too, so the pool only keeps what the budget has left.  maxBytes doesn't limit the checked out
+ * Bitmaps, a decode that misses the pool still allocates.
+ */
+public class BitmapPool {
+    private final CopyOnWriteArrayList<Bucket> buckets = new CopyOnWriteArrayList<>();
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final Set<Bitmap> outstanding = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final AtomicLong outstandingBytes = new AtomicLong();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private final long maxBytes;
+
+    /**
+     * @param maxBytes allocation size of the pooled and checked out Bitmaps above which no more
+     *                 Bitmaps are pooled
+     */
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Get a pooled Bitmap
+     * @return a Bitmap matching the key or null if none available
+     */
+    @Nullable
+    public Bitmap get(int width, int height, @NonNull Bitmap.Config config) {
+        final Bucket bucket = getBucket(width, height, config);
+        final Bitmap bitmap = bucket == null ? null : bucket.queue.poll();
+        if (bitmap == null) {
+            misses.incrementAndGet();
+        } else {
+            pooledBytes.addAndGet(-bitmap.getAllocationByteCount());
+            track(bitmap);
+            hits.incrementAndGet();
+        }
+        return bitmap;
+    }
+
+    /**
+     * Charge a checked out Bitmap against the budget, i.e. a newly decoded one.
+     * Bitmaps from {@link #get} are already tracked.
+     */
+    public void track(@NonNull Bitmap bitmap) {
+        if (outstanding.add(bitmap)) {
+            outstandingBytes.addAndGet(bitmap.getAllocationByteCount());
+        }
+    }
+
+    /**
+     * Stop charging a Bitmap that is dropped instead of offered back
+     */
+    public void untrack(@NonNull Bitmap bitmap) {
+        if (outstanding.remove(bitmap)) {
+            outstandingBytes.addAndGet(-bitmap.getAllocationByteCount());
+        }
+    }
+
+    /**
+     * Return a Bitmap to the pool
+     * @return false if the Bitmap can't be pooled (immutable, hardware or over budget)
+     */
+    public boolean offer(@NonNull Bitmap bitmap) {
+        untrack(bitmap);
+        final Bitmap.Config config = bitmap.getConfig();
+        if (config == null || !bitmap.isMutable() || bitmap.isRecycled() ||
+                (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && config == Bitmap.Config.HARDWARE)) {
+            return false;
+        }
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int bytes = bitmap.getAllocationByteCount();
+        // Under the same lock as the Bucket removal, or the Bitmap could go in a removed Bucket
+        synchronized (buckets) {
+            if (pooledBytes.get() + outstandingBytes.get() + bytes > maxBytes) {
+                // Probably a resolution change, drop the Bitmaps that no longer match
+                trim(width, height, config);
+            }
+            if (pooledBytes.addAndGet(bytes) + outstandingBytes.get() > maxBytes) {
+                pooledBytes.addAndGet(-bytes);
+                return false;
+            }
+            Bucket bucket = getBucket(width, height, config);
+            if (bucket == null) {
+                bucket = new Bucket(width, height, config);
+                buckets.add(bucket);
+            }
+            bucket.queue.offer(bitmap);
+        }
+        return true;
+    }
+
+    /**
+     * Drop all the Bitmaps that don't match the key, call with the buckets lock held
+     */
+    private void trim(int width, int height, @NonNull Bitmap.Config config) {
+        for (Bucket bucket : buckets) {
+            if (!bucket.matches(width, height, config)) {
+                Bitmap bitmap;
+                while ((bitmap = bucket.queue.poll()) != null) {
+                    pooledBytes.addAndGet(-bitmap.getAllocationByteCount());
+                }
+                buckets.remove(bucket);
+            }
+        }
+    }
+
+    /**
+     * Drop all the pooled Bitmaps
+     */
+    public void clear() {
+        synchronized (buckets) {
+            for (Bucket bucket : buckets) {
+                Bitmap bitmap;
+                while ((bitmap = bucket.queue.poll()) != null) {
+                    pooledBytes.addAndGet(-bitmap.getAllocationByteCount());
+                }
+            }
+            buckets.clear();
+        }
+    }
+
+    @Nullable
+    private Bucket getBucket(int width, int height, @NonNull Bitmap.Config config) {
+        // Usually only one Bucket, so a linear search is fine
+        for (Bucket bucket : buckets) {
+            if (bucket.matches(width, height, config)) {
+                return bucket;
+            }
+        }
+        return null;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * @return size of the Bitmaps checked out of (or tracked by) the pool and not returned yet
+     */
+    public long getOutstandingBytes() {
+        return outstandingBytes.get();
+    }
+
+    public int getHitCount() {
+        return hits.get();
+    }
+
+    public int getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BitmapPool{hits=" + getHitCount() + ", misses=" + getMissCount() +
+                ", pooledBytes=" + getPooledBytes() + ", outstandingBytes=" + getOutstandingBytes() +
+                ", maxBytes=" + maxBytes + "}";
+    }
+
+    private static class Bucket {
+        final int width;
+        final int height;
+        final Bitmap.Config config;
+        final ConcurrentLinkedQueue<Bitmap> queue = new ConcurrentLinkedQueue<>();
+
+        Bucket(int width, int height, @NonNull Bitmap.Config config) {
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+
+        boolean matches(int width, int height, @NonNull Bitmap.Config config) {
+            return this.width == width && this.height == height && this.config == config;
+        }
+    }
+}
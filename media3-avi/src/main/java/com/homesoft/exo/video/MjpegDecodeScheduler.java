@@ -0,0 +1,197 @@
+package com.homesoft.exo.video;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the MJPEG decodes of many players on one shared pool of threads with one shared
+ * {@link BitmapPool}, i.e. for a wall of cameras.
+ * Each decoder gets a {@link Client}.  Clients with a higher priority (i.e. the focused tile)
+ * are served first, clients with the same priority are served round robin.
+ * A waiting client gains one priority level every {@link #AGING_PASSES} tasks served before it,
+ * so lower priority clients aren't starved when the higher ones always have work.
+ */
+public class MjpegDecodeScheduler {
+    private static final String TAG = "MjpegDecodeScheduler";
+    public static final int PRIORITY_DEFAULT = 0;
+    /**
+     * Tasks of other clients served while a client waits, per level of priority it gains
+     */
+    static final int AGING_PASSES = 8;
+
+    private final Object lock = new Object();
+    /**
+     * Clients with queued work, in round robin order
+     */
+    private final ArrayList<Client> activeClients = new ArrayList<>();
+    private final BitmapPool bitmapPool;
+    private final Thread[] threads;
+    private boolean released;
+
+    /**
+     * @param threads number of decode threads, usually the number of cores
+     * @param maxBitmapBytes pooled and checked out Bitmaps above which no more are pooled.
+     *                       Decodes are never held back, so the checked out ones can exceed it.
+     */
+    public MjpegDecodeScheduler(int threads, long maxBitmapBytes) {
+        bitmapPool = new BitmapPool(maxBitmapBytes);
+        this.threads = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            this.threads[i] = new Thread(this::run, TAG + i);
+            this.threads[i].start();
+        }
+    }
+
+    /**
+     * One thread per core
+     */
+    public MjpegDecodeScheduler(long maxBitmapBytes) {
+        this(Runtime.getRuntime().availableProcessors(), maxBitmapBytes);
+    }
+
+    @NonNull
+    public BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    @NonNull
+    public Client createClient(int priority) {
+        return new Client(priority);
+    }
+
+    /**
+     * Stop the decode threads.  Queued work is dropped.
+     */
+    public void release() {
+        synchronized (lock) {
+            released = true;
+            for (Client client : activeClients) {
+                client.queue.clear();
+            }
+            activeClients.clear();
+            lock.notifyAll();
+        }
+        bitmapPool.clear();
+    }
+
+    /**
+     * Take the next task from the client with the highest aged priority and move that client to
+     * the back.  The clients that were passed over age.
+     * @return the task or null if no client has work
+     */
+    @Nullable
+    Runnable poll() {
+        synchronized (lock) {
+            int index = -1;
+            int indexPriority = 0;
+            for (int i = 0; i < activeClients.size(); i++) {
+                final int priority = activeClients.get(i).getAgedPriority();
+                if (index < 0 || priority > indexPriority) {
+                    index = i;
+                    indexPriority = priority;
+                }
+            }
+            if (index < 0) {
+                return null;
+            }
+            final Client client = activeClients.remove(index);
+            final Runnable runnable = client.queue.removeFirst();
+            client.passes = 0;
+            for (Client waiting : activeClients) {
+                waiting.passes++;
+            }
+            if (!client.queue.isEmpty()) {
+                activeClients.add(client);
+            }
+            return runnable;
+        }
+    }
+
+    private Runnable take() throws InterruptedException {
+        synchronized (lock) {
+            while (true) {
+                if (released) {
+                    throw new InterruptedException();
+                }
+                final Runnable runnable = poll();
+                if (runnable != null) {
+                    return runnable;
+                }
+                lock.wait();
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                take().run();
+            }
+        } catch (InterruptedException e) {
+            // Released
+        }
+    }
+
+    /**
+     * Executor for one decoder
+     */
+    public class Client implements Executor {
+        private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+        private volatile int priority;
+        /**
+         * Tasks served since this client was last served, guarded by lock
+         */
+        private int passes;
+        private boolean released;
+
+        Client(int priority) {
+            this.priority = priority;
+        }
+
+        /**
+         * @param priority higher is served first, i.e. for the focused player
+         */
+        public void setPriority(int priority) {
+            this.priority = priority;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        private int getAgedPriority() {
+            return priority + passes / AGING_PASSES;
+        }
+
+        /**
+         * Drop the queued tasks of this client, i.e. when its decoder is released.
+         * Tasks already running finish, later tasks are ignored.
+         */
+        public void release() {
+            synchronized (lock) {
+                released = true;
+                queue.clear();
+                activeClients.remove(this);
+            }
+        }
+
+        @Override
+        public void execute(@NonNull Runnable runnable) {
+            synchronized (lock) {
+                if (released || MjpegDecodeScheduler.this.released) {
+                    return;
+                }
+                if (queue.isEmpty()) {
+                    passes = 0;
+                    activeClients.add(this);
+                }
+                queue.addLast(runnable);
+                lock.notify();
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.homesoft.exo.video;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Low overhead counters for the MJPEG decode and render path.
+ * Used to tell if stutter comes from the input, the JPEG decode or posting to the surface.
+ * Updated lock free from the decode and render threads, can be read from any thread.
+ */
+public class MjpegDecoderStats {
+    /**
+     * Decode only frame, i.e. pre-roll after a seek
+     */
+    public static final int SKIP_DECODE_ONLY = 0;
+    /**
+     * Frame would have been late
+     */
+    public static final int SKIP_LATE = 1;
+    /**
+     * Frame identical to the previous frame
+     */
+    public static final int SKIP_DUPLICATE = 2;
+    /**
+     * The output mode has no use for pixels
+     */
+    public static final int SKIP_NO_OUTPUT = 3;
+    /**
+     * Live mode, a newer frame was queued before the decode started
+     */
+    public static final int SKIP_STALE = 4;
+    private static final int SKIP_REASONS = 5;
+    /**
+     * Bucket 0 is < 1ms, bucket n is [2^(n-1), 2^n) ms, the last bucket is everything longer
+     */
+    public static final int HISTOGRAM_BUCKETS = 10;
+
+    private final AtomicIntegerArray decodeHistogram = new AtomicIntegerArray(HISTOGRAM_BUCKETS);
+    private final AtomicIntegerArray skips = new AtomicIntegerArray(SKIP_REASONS);
+    private final AtomicLong decodeUs = new AtomicLong();
+    private final AtomicLong inputFrames = new AtomicLong();
+    private final AtomicLong inputBytes = new AtomicLong();
+    private final AtomicLong surfaceFrames = new AtomicLong();
+    private final AtomicLong surfaceLockUs = new AtomicLong();
+    private final AtomicLong surfacePostUs = new AtomicLong();
+    private final BitmapPool bitmapPool;
+
+    MjpegDecoderStats(@NonNull BitmapPool bitmapPool) {
+        this.bitmapPool = bitmapPool;
+    }
+
+    static int getHistogramBucket(long decodeUs) {
+        final long ms = decodeUs / 1000;
+        return Math.min(64 - Long.numberOfLeadingZeros(ms), HISTOGRAM_BUCKETS - 1);
+    }
+
+    void addInput(int bytes) {
+        inputFrames.incrementAndGet();
+        inputBytes.addAndGet(bytes);
+    }
+
+    void addDecode(long decodeUs) {
+        this.decodeUs.addAndGet(decodeUs);
+        decodeHistogram.incrementAndGet(getHistogramBucket(decodeUs));
+    }
+
+    void addSkip(int reason) {
+        skips.incrementAndGet(reason);
+    }
+
+    void addSurface(long lockUs, long postUs) {
+        surfaceFrames.incrementAndGet();
+        surfaceLockUs.addAndGet(lockUs);
+        surfacePostUs.addAndGet(postUs);
+    }
+
+    /**
+     * @return copy of the decode time histogram, see {@link #HISTOGRAM_BUCKETS}
+     */
+    @NonNull
+    public int[] getDecodeHistogram() {
+        final int[] histogram = new int[HISTOGRAM_BUCKETS];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = decodeHistogram.get(i);
+        }
+        return histogram;
+    }
+
+    public long getDecodedFrames() {
+        long frames = 0;
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            frames += decodeHistogram.get(i);
+        }
+        return frames;
+    }
+
+    public long getAverageDecodeUs() {
+        final long frames = getDecodedFrames();
+        return frames == 0 ? 0 : decodeUs.get() / frames;
+    }
+
+    public long getInputFrames() {
+        return inputFrames.get();
+    }
+
+    public long getAverageInputBytes() {
+        final long frames = inputFrames.get();
+        return frames == 0 ? 0 : inputBytes.get() / frames;
+    }
+
+    /**
+     * @param reason one of the SKIP_* constants
+     * @return frames that were only bounds decoded or not decoded at all
+     */
+    public int getSkipCount(int reason) {
+        return skips.get(reason);
+    }
+
+    /**
+     * @return fraction of the Bitmaps that came from the pool
+     */
+    public float getPoolReuseRate() {
+        final int hits = bitmapPool.getHitCount();
+        final int total = hits + bitmapPool.getMissCount();
+        return total == 0 ? 0f : (float) hits / total;
+    }
+
+    public long getSurfaceFrames() {
+        return surfaceFrames.get();
+    }
+
+    /**
+     * @return average time spent in lockHardwareCanvas()/lockCanvas()
+     */
+    public long getAverageSurfaceLockUs() {
+        final long frames = surfaceFrames.get();
+        return frames == 0 ? 0 : surfaceLockUs.get() / frames;
+    }
+
+    /**
+     * @return average time spent drawing and in unlockCanvasAndPost()
+     */
+    public long getAverageSurfacePostUs() {
+        final long frames = surfaceFrames.get();
+        return frames == 0 ? 0 : surfacePostUs.get() / frames;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("MjpegDecoderStats{histogram=[");
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(decodeHistogram.get(i));
+        }
+        return sb.append("], avgDecodeUs=").append(getAverageDecodeUs())
+                .append(", avgInputBytes=").append(getAverageInputBytes())
+                .append(", poolReuse=").append(getPoolReuseRate())
+                .append(", avgLockUs=").append(getAverageSurfaceLockUs())
+                .append(", avgPostUs=").append(getAverageSurfacePostUs())
+                .append(", skipDecodeOnly=").append(getSkipCount(SKIP_DECODE_ONLY))
+                .append(", skipLate=").append(getSkipCount(SKIP_LATE))
+                .append(", skipDuplicate=").append(getSkipCount(SKIP_DUPLICATE))
+                .append(", skipNoOutput=").append(getSkipCount(SKIP_NO_OUTPUT))
+                .append(", skipStale=").append(getSkipCount(SKIP_STALE))
+                .append('}').toString();
+    }
+}
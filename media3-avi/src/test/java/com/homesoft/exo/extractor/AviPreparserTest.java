@@ -0,0 +1,131 @@
+package com.homesoft.exo.extractor;
+
+import android.net.Uri;
+
+import androidx.media3.extractor.Extractor;
+import androidx.media3.extractor.PositionHolder;
+import androidx.media3.test.utils.FakeDataSet;
+import androidx.media3.test.utils.FakeDataSource;
+import androidx.media3.test.utils.FakeExtractorInput;
+import androidx.media3.test.utils.FakeExtractorOutput;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.homesoft.exo.extractor.avi.AviExtractor;
+import com.homesoft.exo.extractor.avi.AviIndexCache;
+import com.homesoft.exo.extractor.avi.DataHelper;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+public class AviPreparserTest {
+    private static final Uri URI = Uri.parse("file:///next.avi");
+    private static final Uri BLOCKED_URI = Uri.parse("file:///blocked.avi");
+    private static final Uri PENDING_URI = Uri.parse("file:///pending.avi");
+    private static final long TIMEOUT_MS = 10_000L;
+
+    private final AviIndexCache indexCache = AviIndexCache.getInstance();
+    private final CountDownLatch blocked = new CountDownLatch(1);
+    private final CountDownLatch interrupted = new CountDownLatch(1);
+    private byte[] data;
+    private AviPreparser aviPreparser;
+
+    @Before
+    public void setUp() throws IOException {
+        indexCache.clear();
+        data = DataHelper.getRecording(48);
+        final FakeDataSet fakeDataSet = new FakeDataSet();
+        fakeDataSet.setData(URI, data);
+        fakeDataSet.setData(PENDING_URI, data);
+        // Holds the reader thread until it is interrupted
+        fakeDataSet.newData(BLOCKED_URI).appendReadAction(() -> {
+            blocked.countDown();
+            try {
+                Thread.sleep(TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                Thread.currentThread().interrupt();
+            }
+        }).appendReadData(data);
+        aviPreparser = new AviPreparser(new FakeDataSource.Factory().setFakeDataSet(fakeDataSet));
+    }
+
+    @After
+    public void tearDown() {
+        aviPreparser.release();
+        indexCache.clear();
+    }
+
+    private void awaitEntryCount(int count) throws InterruptedException {
+        final long endMs = System.currentTimeMillis() + TIMEOUT_MS;
+        while (indexCache.getEntryCount() < count && System.currentTimeMillis() < endMs) {
+            Thread.sleep(10L);
+        }
+        Assert.assertEquals(count, indexCache.getEntryCount());
+    }
+
+    private static AviExtractor getAviExtractor(Extractor[] extractors) {
+        for (Extractor extractor : extractors) {
+            if (extractor instanceof AviExtractor) {
+                return (AviExtractor) extractor;
+            }
+        }
+        throw new AssertionError("No AviExtractor");
+    }
+
+    @Test
+    public void preparse_givenNextItem_indexCacheHitForPlayerExtractor() throws Exception {
+        aviPreparser.preparse(Collections.singletonList(URI));
+        awaitEntryCount(1);
+        final int hitCount = indexCache.getHitCount();
+
+        final AviExtractor aviExtractor = getAviExtractor(new AviExtractorsFactory()
+                .createExtractors(URI, Collections.emptyMap()));
+        final FakeExtractorOutput output = new FakeExtractorOutput();
+        aviExtractor.init(output);
+        final FakeExtractorInput input = new FakeExtractorInput.Builder().setData(data).build();
+        final PositionHolder positionHolder = new PositionHolder();
+        while (output.seekMap == null) {
+            final int result = aviExtractor.read(input, positionHolder);
+            Assert.assertNotEquals(Extractor.RESULT_END_OF_INPUT, result);
+            if (result == Extractor.RESULT_SEEK) {
+                input.setPosition((int) positionHolder.position);
+            }
+        }
+        Assert.assertEquals(hitCount + 1, indexCache.getHitCount());
+        Assert.assertTrue(output.seekMap.isSeekable());
+    }
+
+    @Test
+    public void cancel_givenPendingItems_stopsWork() throws Exception {
+        aviPreparser.preparse(Arrays.asList(BLOCKED_URI, PENDING_URI));
+        Assert.assertTrue(blocked.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        aviPreparser.cancel();
+        Assert.assertTrue(interrupted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // The executor runs in order, so once this is done the canceled items are too
+        aviPreparser.preparse(Collections.singletonList(URI));
+        awaitEntryCount(1);
+        Thread.sleep(100L);
+        Assert.assertEquals(1, indexCache.getEntryCount());
+    }
+
+    @Test
+    public void release_givenRunningItem_stopsWork() throws Exception {
+        aviPreparser.preparse(Arrays.asList(BLOCKED_URI, PENDING_URI));
+        Assert.assertTrue(blocked.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        aviPreparser.release();
+        Assert.assertTrue(interrupted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        Thread.sleep(100L);
+        Assert.assertEquals(0, indexCache.getEntryCount());
+    }
+}
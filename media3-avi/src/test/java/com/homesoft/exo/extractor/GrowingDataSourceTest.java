@@ -0,0 +1,49 @@
+package com.homesoft.exo.extractor;
+
+import android.net.Uri;
+
+import androidx.media3.datasource.DataSpec;
+import androidx.media3.test.utils.FakeDataSource;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+
+@RunWith(AndroidJUnit4.class)
+public class GrowingDataSourceTest {
+    private static final long POLL_MS = 200L;
+    private static final Uri URI = Uri.parse("file:///recording.avi");
+
+    private static GrowingDataSource getDataSource() {
+        final FakeDataSource fakeDataSource = new FakeDataSource();
+        fakeDataSource.getDataSet().newDefaultData().appendReadData(1024);
+        return new GrowingDataSource(fakeDataSource, POLL_MS);
+    }
+
+    /**
+     * @return the milliseconds open() took
+     */
+    private static long open(GrowingDataSource dataSource, long position) throws IOException {
+        final long start = System.nanoTime();
+        dataSource.open(new DataSpec.Builder().setUri(URI).setPosition(position).build());
+        dataSource.close();
+        return (System.nanoTime() - start) / 1_000_000L;
+    }
+
+    @Test
+    public void open_givenReopenAtSamePosition_waitsForPoll() throws IOException {
+        final GrowingDataSource dataSource = getDataSource();
+        Assert.assertTrue(open(dataSource, 512) < POLL_MS);
+        Assert.assertTrue(open(dataSource, 512) >= POLL_MS);
+    }
+
+    @Test
+    public void open_givenNewPosition_doesNotWait() throws IOException {
+        final GrowingDataSource dataSource = getDataSource();
+        Assert.assertTrue(open(dataSource, 0) < POLL_MS);
+        Assert.assertTrue(open(dataSource, 512) < POLL_MS);
+    }
+}
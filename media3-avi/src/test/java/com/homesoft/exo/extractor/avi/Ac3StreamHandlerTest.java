@@ -0,0 +1,85 @@
+package com.homesoft.exo.extractor.avi;
+
+import androidx.media3.common.C;
+import androidx.media3.common.Format;
+import androidx.media3.common.MimeTypes;
+import androidx.media3.test.utils.FakeExtractorInput;
+import androidx.media3.test.utils.FakeTrackOutput;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+@RunWith(AndroidJUnit4.class)
+public class Ac3StreamHandlerTest {
+  private static final int SAMPLE_RATE = 48000;
+  // 48kHz, 384kbps
+  private static final int FRAME_SIZE = 1536;
+  private static final long FRAME_US = 1536 * C.MICROS_PER_SECOND / SAMPLE_RATE;
+  private FakeTrackOutput fakeTrackOutput;
+  private Ac3StreamHandler ac3StreamHandler;
+
+  static byte[] getAc3Frame(byte fill) {
+    final byte[] frame = new byte[FRAME_SIZE];
+    java.util.Arrays.fill(frame, fill);
+    frame[0] = 0x0b;
+    frame[1] = 0x77;
+    frame[4] = 0x1c; // fscod = 0 (48kHz), frmsizecod = 28
+    frame[5] = 8 << 3; // bsid = 8
+    return frame;
+  }
+
+  @Before
+  public void before() {
+    final Format.Builder builder = new Format.Builder().setSampleMimeType(MimeTypes.AUDIO_AC3)
+        .setChannelCount(6).setSampleRate(SAMPLE_RATE);
+    fakeTrackOutput = new FakeTrackOutput(false);
+    fakeTrackOutput.format(builder.build());
+    ac3StreamHandler = new Ac3StreamHandler(0, C.MICROS_PER_SECOND, fakeTrackOutput,
+        SAMPLE_RATE, builder);
+  }
+
+  @Test
+  public void read_givenFramesSplitAcrossChunks() throws IOException {
+    final byte[] frame0 = getAc3Frame((byte)1);
+    final byte[] frame1 = getAc3Frame((byte)2);
+    final ByteBuffer byteBuffer = ByteBuffer.allocate(FRAME_SIZE * 2);
+    byteBuffer.put(frame0);
+    byteBuffer.put(frame1);
+    final FakeExtractorInput input = new FakeExtractorInput.Builder()
+        .setData(byteBuffer.array()).build();
+
+    final int chunk0 = FRAME_SIZE + FRAME_SIZE / 2;
+    ac3StreamHandler.setRead(0L, chunk0);
+    while (!ac3StreamHandler.read(input));
+    Assert.assertEquals(1, fakeTrackOutput.getSampleCount());
+    Assert.assertArrayEquals(frame0, fakeTrackOutput.getSampleData(0));
+
+    ac3StreamHandler.setRead(chunk0, FRAME_SIZE * 2 - chunk0);
+    while (!ac3StreamHandler.read(input));
+    Assert.assertEquals(2, fakeTrackOutput.getSampleCount());
+    Assert.assertArrayEquals(frame1, fakeTrackOutput.getSampleData(1));
+    Assert.assertEquals(FRAME_US, fakeTrackOutput.getSampleTimeUs(1));
+    Assert.assertEquals(FRAME_US * 2, ac3StreamHandler.getTimeUs());
+  }
+
+  @Test
+  public void read_givenEac3_updatesMimeType() throws IOException {
+    final byte[] frame = getAc3Frame((byte)0);
+    // E-AC3, frmsiz = 767 words
+    frame[2] = 0x2;
+    frame[3] = (byte)0xff;
+    frame[4] = 0x30; // fscod = 0, numblkscod = 3 (6 blocks)
+    frame[5] = (byte)(16 << 3); // bsid = 16
+    final FakeExtractorInput input = new FakeExtractorInput.Builder().setData(frame).build();
+    ac3StreamHandler.setRead(0L, frame.length);
+    while (!ac3StreamHandler.read(input));
+    Assert.assertEquals(MimeTypes.AUDIO_E_AC3, fakeTrackOutput.lastFormat.sampleMimeType);
+    Assert.assertEquals(1, fakeTrackOutput.getSampleCount());
+  }
+}
@@ -0,0 +1,125 @@
+package com.homesoft.exo.extractor.avi;
+
+import androidx.media3.common.C;
+import androidx.media3.common.Format;
+import androidx.media3.common.MimeTypes;
+import androidx.media3.extractor.AacUtil;
+import androidx.media3.test.utils.FakeExtractorInput;
+import androidx.media3.test.utils.FakeTrackOutput;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+@RunWith(AndroidJUnit4.class)
+public class AdtsStreamHandlerTest {
+  private static final int SAMPLE_RATE = 48000;
+  private static final int SAMPLE_RATE_INDEX = 3;
+  private static final int PAYLOAD_SIZE = 200;
+
+  static byte[] getAdtsFrame(byte fill) {
+    return getAdtsFrame(fill, PAYLOAD_SIZE);
+  }
+
+  static byte[] getAdtsFrame(byte fill, int payloadSize) {
+    final int frameSize = 7 + payloadSize;
+    final byte[] frame = new byte[frameSize];
+    Arrays.fill(frame, fill);
+    frame[0] = (byte)0xff;
+    frame[1] = (byte)0xf1; // MPEG-4, no CRC
+    // AAC LC(1), sample rate index, channel config 2
+    frame[2] = (byte)((1 << 6) | (SAMPLE_RATE_INDEX << 2));
+    frame[3] = (byte)((2 << 6) | (frameSize >> 11));
+    frame[4] = (byte)(frameSize >> 3);
+    frame[5] = (byte)((frameSize & 0x7) << 5 | 0x1f);
+    frame[6] = (byte)0xfc; // 1 raw data block
+    return frame;
+  }
+
+  @Test
+  public void read_givenTwoFrames() throws IOException {
+    final Format.Builder builder = new Format.Builder().setSampleMimeType(MimeTypes.AUDIO_AAC)
+        .setChannelCount(2).setSampleRate(SAMPLE_RATE);
+    final FakeTrackOutput fakeTrackOutput = new FakeTrackOutput(false);
+    fakeTrackOutput.format(builder.build());
+    final AdtsStreamHandler adtsStreamHandler = new AdtsStreamHandler(0, C.MICROS_PER_SECOND,
+        fakeTrackOutput, SAMPLE_RATE, builder);
+    final byte[] frame = getAdtsFrame((byte)1);
+    final ByteBuffer byteBuffer = ByteBuffer.allocate(frame.length * 2);
+    byteBuffer.put(frame);
+    byteBuffer.put(frame);
+    final FakeExtractorInput input = new FakeExtractorInput.Builder()
+        .setData(byteBuffer.array()).build();
+
+    adtsStreamHandler.setRead(0L, byteBuffer.capacity());
+    while (!adtsStreamHandler.read(input));
+    Assert.assertEquals(2, fakeTrackOutput.getSampleCount());
+    Assert.assertArrayEquals(Arrays.copyOfRange(frame, 7, frame.length),
+        fakeTrackOutput.getSampleData(0));
+    Assert.assertEquals(1024 * C.MICROS_PER_SECOND / SAMPLE_RATE,
+        fakeTrackOutput.getSampleTimeUs(1));
+    Assert.assertArrayEquals(AacUtil.buildAudioSpecificConfig(2, SAMPLE_RATE_INDEX, 2),
+        fakeTrackOutput.lastFormat.initializationData.get(0));
+  }
+
+  @Test
+  public void read_givenMultipleRawDataBlocks_dropsFrame() throws IOException {
+    final Format.Builder builder = new Format.Builder().setSampleMimeType(MimeTypes.AUDIO_AAC)
+        .setChannelCount(2).setSampleRate(SAMPLE_RATE);
+    final FakeTrackOutput fakeTrackOutput = new FakeTrackOutput(false);
+    fakeTrackOutput.format(builder.build());
+    final AdtsStreamHandler adtsStreamHandler = new AdtsStreamHandler(0, C.MICROS_PER_SECOND,
+        fakeTrackOutput, SAMPLE_RATE, builder);
+    final byte[] multiBlockFrame = getAdtsFrame((byte)2);
+    multiBlockFrame[6] = (byte)0xfd; // 2 raw data blocks
+    final byte[] frame = getAdtsFrame((byte)1);
+    final ByteBuffer byteBuffer = ByteBuffer.allocate(frame.length * 2);
+    byteBuffer.put(multiBlockFrame);
+    byteBuffer.put(frame);
+    final FakeExtractorInput input = new FakeExtractorInput.Builder()
+        .setData(byteBuffer.array()).build();
+
+    adtsStreamHandler.setRead(0L, byteBuffer.capacity());
+    while (!adtsStreamHandler.read(input));
+    Assert.assertEquals(1, fakeTrackOutput.getSampleCount());
+    Assert.assertArrayEquals(Arrays.copyOfRange(frame, 7, frame.length),
+        fakeTrackOutput.getSampleData(0));
+    // The clock still ran for the dropped frame
+    Assert.assertEquals(2048 * C.MICROS_PER_SECOND / SAMPLE_RATE,
+        fakeTrackOutput.getSampleTimeUs(0));
+  }
+
+  @Test
+  public void read_givenFramesShorterThanReadAhead() throws IOException {
+    final Format.Builder builder = new Format.Builder().setSampleMimeType(MimeTypes.AUDIO_AAC)
+        .setChannelCount(2).setSampleRate(SAMPLE_RATE);
+    final FakeTrackOutput fakeTrackOutput = new FakeTrackOutput(false);
+    fakeTrackOutput.format(builder.build());
+    final AdtsStreamHandler adtsStreamHandler = new AdtsStreamHandler(0, C.MICROS_PER_SECOND,
+        fakeTrackOutput, SAMPLE_RATE, builder);
+    // 13 byte frames, i.e. silence
+    final byte[] frame1 = getAdtsFrame((byte)1, 6);
+    final byte[] frame2 = getAdtsFrame((byte)2, 6);
+    final ByteBuffer byteBuffer = ByteBuffer.allocate(1 + frame1.length + frame2.length);
+    // Not a header, so the search reads ahead past the end of the first frame
+    byteBuffer.put((byte)0);
+    byteBuffer.put(frame1);
+    byteBuffer.put(frame2);
+    final FakeExtractorInput input = new FakeExtractorInput.Builder()
+        .setData(byteBuffer.array()).build();
+
+    adtsStreamHandler.setRead(0L, byteBuffer.capacity());
+    while (!adtsStreamHandler.read(input));
+    Assert.assertEquals(2, fakeTrackOutput.getSampleCount());
+    Assert.assertArrayEquals(Arrays.copyOfRange(frame1, 7, frame1.length),
+        fakeTrackOutput.getSampleData(0));
+    Assert.assertArrayEquals(Arrays.copyOfRange(frame2, 7, frame2.length),
+        fakeTrackOutput.getSampleData(1));
+    Assert.assertEquals(0, adtsStreamHandler.getFrameRemaining());
+  }
+}
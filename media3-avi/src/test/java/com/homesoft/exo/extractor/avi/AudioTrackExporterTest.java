@@ -0,0 +1,46 @@
+package com.homesoft.exo.extractor.avi;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class AudioTrackExporterTest {
+    @Test
+    public void getWavHeader_givenPcm() {
+        final ByteBuffer waveFormat = AviExtractor.allocate(16);
+        waveFormat.putShort((short)1); // PCM
+        waveFormat.putShort((short)2);
+        waveFormat.putInt(44100);
+        waveFormat.putInt(44100 * 4);
+        waveFormat.putShort((short)4);
+        waveFormat.putShort((short)16);
+        waveFormat.flip();
+        final ByteBuffer header = AudioTrackExporter.getWavHeader(waveFormat, 1000);
+        final int fmtSize = waveFormat.remaining();
+        Assert.assertEquals(12 + 8 + fmtSize + 8, header.remaining());
+        Assert.assertEquals(AviExtractor.RIFF, header.getInt(0));
+        Assert.assertEquals(header.remaining() - 8 + 1000, header.getInt(4));
+        Assert.assertEquals(fmtSize, header.getInt(16));
+        // The fmt is the strf
+        Assert.assertEquals(1, header.getShort(20));
+        Assert.assertEquals(2, header.getShort(22));
+        Assert.assertEquals(44100, header.getInt(24));
+        Assert.assertEquals(1000, header.getInt(header.remaining() - 4));
+    }
+
+    @Test
+    public void setAdtsHeader_givenAacLc() {
+        final ByteBuffer header = ByteBuffer.allocate(7);
+        // AAC LC, 44.1kHz, stereo
+        AudioTrackExporter.setAdtsHeader(header, 2, 4, 2, 371);
+        Assert.assertEquals(7, header.remaining());
+        Assert.assertEquals((byte)0xff, header.get(0));
+        Assert.assertEquals((byte)0xf1, header.get(1));
+        Assert.assertEquals(1, (header.get(2) >> 6) & 0x3);
+        Assert.assertEquals(4, (header.get(2) >> 2) & 0xf);
+        final int frameLength = (header.get(3) & 0x3) << 11 | (header.get(4) & 0xff) << 3 |
+                (header.get(5) & 0xe0) >> 5;
+        Assert.assertEquals(371 + 7, frameLength);
+    }
+}
@@ -26,6 +26,7 @@ import androidx.media3.common.MimeTypes;
 import androidx.media3.extractor.Extractor;
 import androidx.media3.extractor.ExtractorInput;
 import androidx.media3.extractor.PositionHolder;
+import androidx.media3.extractor.SeekPoint;
 import androidx.media3.test.utils.FakeExtractorInput;
 import androidx.media3.test.utils.FakeExtractorOutput;
 import androidx.media3.test.utils.FakeTrackOutput;
@@ -37,7 +38,9 @@ import org.junit.runner.RunWith;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.function.Predicate;
 
 @RunWith(AndroidJUnit4.class)
@@ -248,6 +251,27 @@ public class AviExtractorTest {
     Assert.assertNull(aviExtractor.buildStreamHandler(streamList, 0));
   }
 
+  @Test
+  public void parseStream_givenBadAdpcmBlockAlign_dropsTrack() {
+    final AviExtractor aviExtractor = new AviExtractor();
+    final FakeExtractorOutput fakeExtractorOutput = new FakeExtractorOutput();
+    aviExtractor.init(fakeExtractorOutput);
+    final ByteBuffer byteBuffer = AviExtractor.allocate(18);
+    byteBuffer.putShort((short)AudioFormat.WAVE_FORMAT_IMA_ADPCM);
+    byteBuffer.putShort((short)1);
+    byteBuffer.putInt(8000);
+    byteBuffer.putInt(4000);
+    byteBuffer.putShort((short)6); // Not a multiple of 4 bytes per channel
+    byteBuffer.putShort((short)4);
+    byteBuffer.putShort((short)0);
+    byteBuffer.clear();
+    final ListBox streamList = new ListBox(1024L, 128, ListBox.TYPE_STRL, new ArrayDeque<>());
+    streamList.add(DataHelper.getAudioStreamHeader());
+    streamList.add(new StreamFormatBox(byteBuffer));
+    Assert.assertNull(aviExtractor.buildStreamHandler(streamList, 0));
+    Assert.assertEquals(0, fakeExtractorOutput.numberOfTracks);
+  }
+
   static void readUntil(AviExtractor aviExtractor, FakeExtractorInput input, Predicate<AviExtractor> predicate) throws IOException {
     final PositionHolder positionHolder = new PositionHolder();
     do {
@@ -294,6 +318,194 @@ public class AviExtractorTest {
     Assert.assertEquals(streamHandler.getDurationUs(), streamHeaderBox.getDurationUs());
   }
 
+  @Test
+  public void read_givenLiveStream() throws IOException {
+    final byte[] data = DataHelper.getRecording(10);
+    // Endless RIFF, like an IP camera
+    ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).putInt(4, 0);
+
+    final AviExtractor aviExtractor = new AviExtractor();
+    final FakeExtractorOutput fakeExtractorOutput = new FakeExtractorOutput();
+    aviExtractor.init(fakeExtractorOutput);
+    final FakeExtractorInput input = new FakeExtractorInput.Builder().setData(data)
+        .setSimulateUnknownLength(true).build();
+    readUntil(aviExtractor, input, (extractor)->false);
+
+    Assert.assertTrue(aviExtractor.isLive());
+    Assert.assertFalse(fakeExtractorOutput.seekMap.isSeekable());
+    final FakeTrackOutput videoOutput = fakeExtractorOutput.trackOutputs.get(0);
+    Assert.assertEquals(10, videoOutput.getSampleCount());
+    Assert.assertEquals(9 * C.MICROS_PER_SECOND / 24, videoOutput.getSampleTimeUs(9));
+    final FakeTrackOutput audioOutput = fakeExtractorOutput.trackOutputs.get(1);
+    Assert.assertEquals(10, audioOutput.getSampleCount());
+    Assert.assertEquals(9 * 2000 * C.MICROS_PER_SECOND / 48000, audioOutput.getSampleTimeUs(9));
+  }
+
+  @Test
+  public void read_givenGrowingFile() throws IOException {
+    final byte[] data = DataHelper.getRecording(120);
+    final AviExtractor aviExtractor = new AviExtractor();
+    aviExtractor.setGrowing(true);
+    final FakeExtractorOutput fakeExtractorOutput = new FakeExtractorOutput();
+    aviExtractor.init(fakeExtractorOutput);
+
+    // Half written, ends mid chunk
+    final FakeExtractorInput partial = new FakeExtractorInput.Builder()
+        .setData(Arrays.copyOf(data, data.length / 2)).build();
+    readUntil(aviExtractor, partial, (extractor)->extractor.seekMap != null);
+    final long partialDurationUs = fakeExtractorOutput.seekMap.getDurationUs();
+    Assert.assertTrue(fakeExtractorOutput.seekMap.isSeekable());
+    Assert.assertTrue(partialDurationUs > 0L && partialDurationUs < 5 * C.MICROS_PER_SECOND);
+
+    // The recording continues, the index picks up where it left off
+    final FakeExtractorInput input = new FakeExtractorInput.Builder().setData(data).build();
+    readUntil(aviExtractor, input,
+        (extractor)->extractor.seekMap.getDurationUs() == 5 * C.MICROS_PER_SECOND);
+    final GrowingSeekMap growingSeekMap = (GrowingSeekMap) fakeExtractorOutput.seekMap;
+    Assert.assertEquals(3, growingSeekMap.getCount());
+
+    final FakeTrackOutput videoOutput = fakeExtractorOutput.trackOutputs.get(0);
+    final FakeTrackOutput audioOutput = fakeExtractorOutput.trackOutputs.get(1);
+    final int videoSamples = videoOutput.getSampleCount();
+    final int audioSamples = audioOutput.getSampleCount();
+    final SeekPoint seekPoint = growingSeekMap.getSeekPoints(4 * C.MICROS_PER_SECOND).first;
+    Assert.assertEquals(4 * C.MICROS_PER_SECOND, seekPoint.timeUs);
+    aviExtractor.seek(seekPoint.position, seekPoint.timeUs);
+    readUntil(aviExtractor, input, (extractor)->videoOutput.getSampleCount() > videoSamples &&
+        audioOutput.getSampleCount() > audioSamples);
+    Assert.assertEquals(seekPoint.timeUs, videoOutput.getSampleTimeUs(videoSamples));
+    Assert.assertEquals(seekPoint.timeUs, audioOutput.getSampleTimeUs(audioSamples));
+  }
+
+  @Test
+  public void read_givenProgressiveStart() throws IOException {
+    final byte[] data = DataHelper.getRecording(360);
+    // Hide the OpenDML indexes, so only the idx1 at the end is left
+    final ByteBuffer byteBuffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; byteBuffer.getInt(i) != AviExtractor.MOVI; i++) {
+      if (byteBuffer.getInt(i) == IndexBox.INDX) {
+        byteBuffer.putInt(i, AviExtractor.JUNK);
+      }
+    }
+    final AviExtractor aviExtractor = new AviExtractor();
+    aviExtractor.setProgressiveStart(true);
+    final FakeExtractorOutput fakeExtractorOutput = new FakeExtractorOutput();
+    aviExtractor.init(fakeExtractorOutput);
+    final FakeExtractorInput input = new FakeExtractorInput.Builder().setData(data).build();
+    readUntil(aviExtractor, input, (extractor)-> fakeExtractorOutput.trackOutputs.size() > 0 &&
+        fakeExtractorOutput.trackOutputs.get(0).getSampleCount() > 0);
+    // Playing before the index
+    Assert.assertFalse(fakeExtractorOutput.seekMap.isSeekable());
+    Assert.assertNull(aviExtractor.seekMap);
+
+    readUntil(aviExtractor, input, (extractor)->extractor.seekMap != null);
+    Assert.assertTrue(fakeExtractorOutput.seekMap.isSeekable());
+    final FakeTrackOutput videoOutput = fakeExtractorOutput.trackOutputs.get(0);
+    Assert.assertEquals(240, videoOutput.getSampleCount());
+
+    readUntil(aviExtractor, input, (extractor)->false);
+    // Continued after the index, without repeating the start
+    Assert.assertEquals(360, videoOutput.getSampleCount());
+    Assert.assertEquals(360, fakeExtractorOutput.trackOutputs.get(1).getSampleCount());
+    Assert.assertEquals(10 * C.MICROS_PER_SECOND, videoOutput.getSampleTimeUs(240), 1000);
+  }
+
+  @Test
+  public void read_givenPagedIndex() throws IOException {
+    // A RIFF-AVIX with an ix## per stream every few frames
+    final byte[] data = DataHelper.getRecording(240, 64 * 1024);
+    final AviExtractor aviExtractor = new AviExtractor();
+    final FakeExtractorOutput fakeExtractorOutput = new FakeExtractorOutput();
+    aviExtractor.init(fakeExtractorOutput);
+    final FakeExtractorInput input = new FakeExtractorInput.Builder().setData(data).build();
+    readUntil(aviExtractor, input, (extractor)->extractor.seekMap != null);
+    // Published from the super indexes, before reading any ix##
+    final IndexPages indexPages = aviExtractor.getIndexPages();
+    Assert.assertNotNull(indexPages);
+    Assert.assertTrue(indexPages.getPageCount() > aviExtractor.pagedIndexMinPages);
+    Assert.assertEquals(0, indexPages.getResidentCount());
+    Assert.assertTrue(input.getPosition() <= aviExtractor.moviList.get(0).getStart());
+    Assert.assertTrue(fakeExtractorOutput.seekMap instanceof PagedSeekMap);
+    Assert.assertEquals(10 * C.MICROS_PER_SECOND, fakeExtractorOutput.seekMap.getDurationUs());
+
+    readUntil(aviExtractor, input, (extractor)->false);
+    final FakeTrackOutput videoOutput = fakeExtractorOutput.trackOutputs.get(0);
+    final FakeTrackOutput audioOutput = fakeExtractorOutput.trackOutputs.get(1);
+    Assert.assertEquals(240, videoOutput.getSampleCount());
+    Assert.assertEquals(240, audioOutput.getSampleCount());
+    Assert.assertEquals(C.BUFFER_FLAG_KEY_FRAME, videoOutput.getSampleFlags(239));
+    Assert.assertEquals(239 * C.MICROS_PER_SECOND / 24, videoOutput.getSampleTimeUs(239));
+    Assert.assertTrue(indexPages.getResidentCount() <= IndexPages.MAX_RESIDENT_PAGES + 4);
+
+    final long seekUs = 7_500_000L;
+    final SeekPoint seekPoint = fakeExtractorOutput.seekMap.getSeekPoints(seekUs).first;
+    aviExtractor.seek(seekPoint.position, seekPoint.timeUs);
+    readUntil(aviExtractor, input, (extractor)->videoOutput.getSampleCount() > 240 &&
+        audioOutput.getSampleCount() > 240);
+    Assert.assertEquals(seekUs, videoOutput.getSampleTimeUs(240));
+    Assert.assertEquals(seekUs, audioOutput.getSampleTimeUs(240));
+  }
+
+  @Test
+  public void read_givenIndexCache() throws IOException {
+    final byte[] data = DataHelper.getRecording(120);
+    final AviIndexCache indexCache = new AviIndexCache(AviIndexCache.DEFAULT_MAX_BYTES);
+    final AviExtractor firstExtractor = new AviExtractor();
+    firstExtractor.setIndexCache(indexCache, "file:///recording.avi");
+    final FakeExtractorOutput firstOutput = new FakeExtractorOutput();
+    firstExtractor.init(firstOutput);
+    readUntil(firstExtractor, new FakeExtractorInput.Builder().setData(data).build(),
+        (extractor)->false);
+    Assert.assertEquals(1, indexCache.getMissCount());
+    Assert.assertEquals(1, indexCache.getEntryCount());
+
+    final AviExtractor aviExtractor = new AviExtractor();
+    aviExtractor.setIndexCache(indexCache, "file:///recording.avi");
+    final FakeExtractorOutput fakeExtractorOutput = new FakeExtractorOutput();
+    aviExtractor.init(fakeExtractorOutput);
+    final FakeExtractorInput input = new FakeExtractorInput.Builder().setData(data).build();
+    readUntil(aviExtractor, input, (extractor)->extractor.seekMap != null);
+    // Published straight after the hdrl
+    Assert.assertEquals(1, indexCache.getHitCount());
+    Assert.assertTrue(input.getPosition() <= aviExtractor.getFirstChunkPosition());
+    Assert.assertEquals(firstOutput.seekMap.getDurationUs(),
+        fakeExtractorOutput.seekMap.getDurationUs());
+
+    readUntil(aviExtractor, input, (extractor)->false);
+    for (int t = 0; t < 2; t++) {
+      final FakeTrackOutput expected = firstOutput.trackOutputs.get(t);
+      final FakeTrackOutput actual = fakeExtractorOutput.trackOutputs.get(t);
+      Assert.assertEquals(120, actual.getSampleCount());
+      Assert.assertEquals(expected.getSampleTimeUs(119), actual.getSampleTimeUs(119));
+    }
+    final long seekUs = 3 * C.MICROS_PER_SECOND;
+    final SeekPoint seekPoint = fakeExtractorOutput.seekMap.getSeekPoints(seekUs).first;
+    Assert.assertEquals(firstOutput.seekMap.getSeekPoints(seekUs).first, seekPoint);
+  }
+
+  @Test
+  public void read_givenDisabledTrack() throws IOException {
+    final byte[] data = DataHelper.getRecording(48);
+    final AviExtractor aviExtractor = new AviExtractor();
+    aviExtractor.setTrackEnabled(1, false);
+    final FakeExtractorOutput fakeExtractorOutput = new FakeExtractorOutput();
+    aviExtractor.init(fakeExtractorOutput);
+    final FakeExtractorInput input = new FakeExtractorInput.Builder().setData(data).build();
+    readUntil(aviExtractor, input, (extractor)-> fakeExtractorOutput.trackOutputs.size() > 0 &&
+        fakeExtractorOutput.trackOutputs.get(0).getSampleCount() == 24);
+    final FakeTrackOutput audioOutput = fakeExtractorOutput.trackOutputs.get(1);
+    Assert.assertEquals(0, audioOutput.getSampleCount());
+
+    aviExtractor.setTrackEnabled(1, true);
+    readUntil(aviExtractor, input, (extractor)->false);
+    Assert.assertEquals(48, fakeExtractorOutput.trackOutputs.get(0).getSampleCount());
+    final int audioSamples = audioOutput.getSampleCount();
+    Assert.assertTrue(audioSamples > 0 && audioSamples < 48);
+    // The clock kept running while the chunks were skipped
+    Assert.assertEquals((48 - audioSamples) * C.MICROS_PER_SECOND / 24,
+        audioOutput.getSampleTimeUs(0), 1000);
+  }
+
   @Test
   public void unboundIntArray_add_givenExceedsCapacity() {
     final ChunkIndex chunkIndex = new ChunkIndex();
@@ -0,0 +1,115 @@
+package com.homesoft.exo.extractor.avi;
+
+import androidx.media3.common.MimeTypes;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+@RunWith(AndroidJUnit4.class)
+public class AviIndexRepairTest {
+    /**
+     * Write the chunks without finishing, like a recorder that crashed.
+     * The last video chunk is cut short.
+     * @param flushFrame flush the index before this frame, so the declared sizes end early
+     */
+    private static void writeCrashedAvi(File file, int frames, long maxRiffSize, int flushFrame) throws IOException {
+        final ByteBuffer aviHeader = AviExtractor.allocate(AviHeaderBox.LEN);
+        aviHeader.putInt(0, (int)DataHelper.VIDEO_US);
+        final ByteBuffer chunk = AviExtractor.allocate(BoxReader.CHUNK_HEADER_SIZE + DataHelper.VIDEO_SIZE);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            final FileChannel fileChannel = randomAccessFile.getChannel();
+            final AviWriter aviWriter = new AviWriter(fileChannel, aviHeader,
+                    AviWriterTest.getStreams(), maxRiffSize);
+            long end = 0L;
+            for (int f = 0; f <= frames; f++) {
+                if (f == flushFrame) {
+                    aviWriter.flushIndex();
+                }
+                final long videoPosition = aviWriter.addChunk(0, DataHelper.VIDEO_SIZE,
+                        f % AviWriterTest.KEY_FRAME_RATE == 0);
+                chunk.clear();
+                chunk.putInt(DataHelper.VIDEO_CHUNK_ID);
+                chunk.putInt(DataHelper.VIDEO_SIZE);
+                chunk.clear();
+                if (f == frames) {
+                    // Partial chunk
+                    chunk.limit(BoxReader.CHUNK_HEADER_SIZE + DataHelper.VIDEO_SIZE / 2);
+                }
+                fileChannel.write(chunk, videoPosition);
+                end = videoPosition + chunk.limit();
+                if (f < frames) {
+                    final long audioPosition = aviWriter.addChunk(1, DataHelper.AUDIO_SIZE, true);
+                    chunk.clear();
+                    chunk.putInt(AviWriterTest.AUDIO_CHUNK_ID);
+                    chunk.putInt(DataHelper.AUDIO_SIZE);
+                    chunk.position(0);
+                    chunk.limit(BoxReader.CHUNK_HEADER_SIZE + DataHelper.AUDIO_SIZE);
+                    fileChannel.write(chunk, audioPosition);
+                }
+            }
+            fileChannel.truncate(end);
+        }
+    }
+
+    private static void assertRepair(int frames, long maxRiffSize, int flushFrame) throws IOException {
+        final File file = File.createTempFile("crash", ".avi");
+        try {
+            writeCrashedAvi(file, frames, maxRiffSize, flushFrame);
+            final AviIndexRepair aviIndexRepair = new AviIndexRepair(file);
+            Assert.assertEquals(frames * 2, aviIndexRepair.repair());
+            final AviIndex aviIndex = AviIndex.read(file);
+            Assert.assertTrue(aviIndex.getAviHeader().hasIndex());
+            final AviIndex.Stream video = aviIndex.getStream(0);
+            Assert.assertEquals(frames, video.getChunkIndex().getCount());
+            Assert.assertEquals(frames, video.getStreamHeader().getLength());
+            Assert.assertEquals(frames, aviIndex.getStream(1).getChunkIndex().getCount());
+            Assert.assertEquals(file.length(), aviIndex.getLength());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void repair_givenCrashedRiff() throws IOException {
+        assertRepair(24, AviWriter.MAX_RIFF_SIZE, -1);
+    }
+
+    @Test
+    public void repair_givenCrashedAvix() throws IOException {
+        assertRepair(48, 48 * 1024, -1);
+    }
+
+    @Test
+    public void repair_givenChunksAfterFlush() throws IOException {
+        assertRepair(24, AviWriter.MAX_RIFF_SIZE, 12);
+    }
+
+    @Test
+    public void repair_givenChunksAfterAvixFlush() throws IOException {
+        assertRepair(48, 48 * 1024, 40);
+    }
+
+    @Test
+    public void isKeyFrame_givenH264() {
+        final ByteBuffer idr = ByteBuffer.wrap(new byte[] {0, 0, 0, 1, 0x09, 0x10, 0, 0, 1, 0x65});
+        Assert.assertTrue(AviIndexRepair.isKeyFrame(MimeTypes.VIDEO_H264, idr));
+        final ByteBuffer slice = ByteBuffer.wrap(new byte[] {0, 0, 0, 1, 0x41, (byte)0x9a});
+        Assert.assertFalse(AviIndexRepair.isKeyFrame(MimeTypes.VIDEO_H264, slice));
+    }
+
+    @Test
+    public void isKeyFrame_givenMp4v() {
+        final ByteBuffer iVop = ByteBuffer.wrap(new byte[] {0, 0, 1, (byte)0xb6, 0x10});
+        Assert.assertTrue(AviIndexRepair.isKeyFrame(MimeTypes.VIDEO_MP4V, iVop));
+        final ByteBuffer pVop = ByteBuffer.wrap(new byte[] {0, 0, 1, (byte)0xb6, 0x50});
+        Assert.assertFalse(AviIndexRepair.isKeyFrame(MimeTypes.VIDEO_MP4V, pVop));
+    }
+}
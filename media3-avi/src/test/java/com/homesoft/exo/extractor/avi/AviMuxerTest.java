@@ -0,0 +1,140 @@
+package com.homesoft.exo.extractor.avi;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+@RunWith(AndroidJUnit4.class)
+public class AviMuxerTest {
+    private static final int SAMPLES_PER_FRAME = 2000;
+    private static final int AUDIO_SIZE = SAMPLES_PER_FRAME * 4;
+
+    private final ByteBuffer video = ByteBuffer.allocate(DataHelper.VIDEO_SIZE);
+    private final ByteBuffer audio = ByteBuffer.allocate(AUDIO_SIZE);
+
+    private static AviMuxer createAviMuxer(File file, long maxRiffSize) throws IOException {
+        final AviMuxer aviMuxer = new AviMuxer(file, maxRiffSize);
+        aviMuxer.setFlushIntervalMs(0L);
+        Assert.assertEquals(0, aviMuxer.addMjpegStream(1280, 720, 24, 1));
+        Assert.assertEquals(1, aviMuxer.addPcmStream(48000, 2, 16));
+        return aviMuxer;
+    }
+
+    /**
+     * Write frames of video and audio, flushing the index every 12 frames
+     */
+    private void writeFrames(AviMuxer aviMuxer, int frames) throws IOException {
+        for (int f = 0; f < frames; f++) {
+            video.clear();
+            aviMuxer.writeChunk(0, video, true);
+            audio.clear();
+            aviMuxer.writeChunk(1, audio, true);
+            if (f % 12 == 11) {
+                aviMuxer.flush();
+            }
+        }
+    }
+
+    private static void assertFrames(File file, int frames) throws IOException {
+        final AviIndex aviIndex = AviIndex.read(file);
+        final AviIndex.Stream videoStream = aviIndex.getStream(0);
+        Assert.assertEquals(frames, videoStream.getChunkIndex().getCount());
+        Assert.assertEquals(frames, videoStream.getChunkIndex().getKeyFrameCount());
+        Assert.assertEquals(frames, videoStream.getStreamHeader().getLength());
+        final AviIndex.Stream audioStream = aviIndex.getStream(1);
+        Assert.assertEquals(frames, audioStream.getChunkIndex().getCount());
+        Assert.assertEquals(frames * SAMPLES_PER_FRAME, audioStream.getStreamHeader().getLength());
+    }
+
+    private void assertClose(int frames, long maxRiffSize) throws IOException {
+        final File file = File.createTempFile("muxer", ".avi");
+        try {
+            try (AviMuxer aviMuxer = createAviMuxer(file, maxRiffSize)) {
+                writeFrames(aviMuxer, frames);
+            }
+            assertFrames(file, frames);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void close_givenRiff() throws IOException {
+        assertClose(40, AviWriter.MAX_RIFF_SIZE);
+    }
+
+    @Test
+    public void close_givenAvix() throws IOException {
+        assertClose(40, 64 * 1024);
+    }
+
+    @Test
+    public void flush_givenUnfinished() throws IOException {
+        final File file = File.createTempFile("muxer", ".avi");
+        final File copy = File.createTempFile("copy", ".avi");
+        try (AviMuxer aviMuxer = createAviMuxer(file, AviWriter.MAX_RIFF_SIZE)) {
+            writeFrames(aviMuxer, 30);
+            // Larger than the write buffer, so it goes straight to the file after the flush
+            aviMuxer.writeChunk(0, ByteBuffer.allocate(1024 * 1024 + 1), true);
+            Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            assertFrames(copy, 24);
+        } finally {
+            file.delete();
+            copy.delete();
+        }
+    }
+
+    @Test
+    public void repair_givenChunksAfterFlush() throws IOException {
+        final File file = File.createTempFile("muxer", ".avi");
+        final File copy = File.createTempFile("copy", ".avi");
+        try (AviMuxer aviMuxer = createAviMuxer(file, AviWriter.MAX_RIFF_SIZE)) {
+            writeFrames(aviMuxer, 30);
+            // Pushes the 6 buffered frames and itself to the file, never closed like after a crash
+            aviMuxer.writeChunk(0, ByteBuffer.allocate(1024 * 1024 + 1), true);
+            Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Assert.assertEquals(61, new AviIndexRepair(copy).repair());
+            final AviIndex aviIndex = AviIndex.read(copy);
+            Assert.assertEquals(31, aviIndex.getStream(0).getChunkIndex().getCount());
+            Assert.assertEquals(30, aviIndex.getStream(1).getChunkIndex().getCount());
+        } finally {
+            file.delete();
+            copy.delete();
+        }
+    }
+
+    @Test
+    public void flush_givenMoreFlushesThanSuperIndexEntries() throws IOException {
+        final File file = File.createTempFile("muxer", ".avi");
+        final int frames = AviWriter.SUPER_INDEX_ENTRIES * 2;
+        try {
+            try (AviMuxer aviMuxer = createAviMuxer(file, AviWriter.MAX_RIFF_SIZE)) {
+                for (int f = 0; f < frames; f++) {
+                    aviMuxer.writeChunk(0, ByteBuffer.allocate(16), true);
+                    aviMuxer.writeChunk(1, ByteBuffer.allocate(16), true);
+                    aviMuxer.flush();
+                }
+                final File copy = File.createTempFile("copy", ".avi");
+                try {
+                    Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    Assert.assertEquals(frames, AviIndex.read(copy).getStream(0).getChunkIndex().getCount());
+                } finally {
+                    copy.delete();
+                }
+            }
+            final AviIndex aviIndex = AviIndex.read(file);
+            Assert.assertEquals(frames, aviIndex.getStream(0).getChunkIndex().getCount());
+            Assert.assertEquals(frames, aviIndex.getStream(1).getChunkIndex().getCount());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.homesoft.exo.extractor.avi;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class AviTrimmerTest {
+    private static final int FRAMES = 48;
+    // 16 bit stereo at 44.1kHz
+    private static final int AUDIO_BYTES_PER_SEC = 44100 * 4;
+    // One video frame of audio per chunk
+    private static final int AUDIO_CHUNK_SIZE = AUDIO_BYTES_PER_SEC / DataHelper.FPS;
+    // Half a second
+    private static final int PRELOAD_CHUNKS = 12;
+
+    /**
+     * Write the video with PCM audio, the audio is trimmed by time so it has to be timed right
+     * @param preloadChunks audio chunks written ahead of the video, like most muxers do
+     */
+    private static File createAvi(int preloadChunks) throws IOException {
+        final File file = File.createTempFile("test", ".avi");
+        final ByteBuffer aviHeader = AviExtractor.allocate(AviHeaderBox.LEN);
+        aviHeader.putInt(0, (int)DataHelper.VIDEO_US);
+        final ByteBuffer audioHeader = DataHelper.getStreamHeader(StreamHeaderBox.AUDS, 4,
+                AUDIO_BYTES_PER_SEC, 0).getByteBuffer();
+        audioHeader.putInt(44, 4); // dwSampleSize
+        final AviWriter.Stream[] streams = {
+                new AviWriter.Stream(DataHelper.VIDEO_CHUNK_ID,
+                        DataHelper.getVidsStreamHeader().getByteBuffer(),
+                        DataHelper.getVideoStreamFormat().getByteBuffer()),
+                new AviWriter.Stream(AviWriterTest.AUDIO_CHUNK_ID, audioHeader,
+                        AviWriterTest.getPcmStreamFormat())
+        };
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            final FileChannel fileChannel = randomAccessFile.getChannel();
+            final AviWriter aviWriter = new AviWriter(fileChannel, aviHeader, streams,
+                    AviWriter.MAX_RIFF_SIZE);
+            for (int a = 0; a < preloadChunks; a++) {
+                DataHelper.writeChunk(fileChannel, aviWriter.addChunk(1, AUDIO_CHUNK_SIZE, true),
+                        AviWriterTest.AUDIO_CHUNK_ID, AUDIO_CHUNK_SIZE, a);
+            }
+            for (int f = 0; f < FRAMES; f++) {
+                DataHelper.writeChunk(fileChannel, aviWriter.addChunk(0, DataHelper.VIDEO_SIZE,
+                        f % AviWriterTest.KEY_FRAME_RATE == 0), DataHelper.VIDEO_CHUNK_ID,
+                        DataHelper.VIDEO_SIZE, f);
+                if (f + preloadChunks < FRAMES) {
+                    DataHelper.writeChunk(fileChannel,
+                            aviWriter.addChunk(1, AUDIO_CHUNK_SIZE, true),
+                            AviWriterTest.AUDIO_CHUNK_ID, AUDIO_CHUNK_SIZE, f + preloadChunks);
+                }
+            }
+            aviWriter.finish();
+        }
+        return file;
+    }
+
+    private static int readChunkTag(File file, AviIndex.Stream stream, int chunk) throws IOException {
+        final ByteBuffer byteBuffer = AviExtractor.allocate(4);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            randomAccessFile.getChannel().read(byteBuffer, stream.getDataPosition(chunk));
+        }
+        return byteBuffer.getInt(0);
+    }
+
+    private static long getFrameUs(AviIndex aviIndex, int frame) {
+        return aviIndex.getStream(0).getChunkTimeUs(frame);
+    }
+
+    @Test
+    public void trim_givenMidKeyFrames() throws IOException {
+        final File file = createAvi(0);
+        final File output = File.createTempFile("trim", ".avi");
+        try (AviTrimmer aviTrimmer = new AviTrimmer(file)) {
+            final AviIndex aviIndex = AviIndex.read(file);
+            // Expands to key frames 6 and 24
+            aviTrimmer.trim(getFrameUs(aviIndex, 8), getFrameUs(aviIndex, 20), output);
+            final AviIndex trimmed = AviIndex.read(output);
+            Assert.assertEquals(18, trimmed.getStream(0).getChunkIndex().getCount());
+            Assert.assertEquals(3, trimmed.getStream(0).getChunkIndex().getKeyFrameCount());
+            Assert.assertEquals(18, trimmed.getStream(0).getStreamHeader().getLength());
+            Assert.assertEquals(18, trimmed.getStream(1).getChunkIndex().getCount());
+        } finally {
+            file.delete();
+            output.delete();
+        }
+    }
+
+    @Test
+    public void trim_givenAudioPreload_cutsAudioAtVideoTime() throws IOException {
+        final File file = createAvi(PRELOAD_CHUNKS);
+        final File output = File.createTempFile("trim", ".avi");
+        try (AviTrimmer aviTrimmer = new AviTrimmer(file)) {
+            final AviIndex aviIndex = AviIndex.read(file);
+            // Expands to key frames 6 and 24
+            aviTrimmer.trim(getFrameUs(aviIndex, 8), getFrameUs(aviIndex, 20), output);
+            final AviIndex trimmed = AviIndex.read(output);
+            final AviIndex.Stream video = trimmed.getStream(0);
+            final AviIndex.Stream audio = trimmed.getStream(1);
+            Assert.assertEquals(18, video.getChunkIndex().getCount());
+            Assert.assertEquals(6, readChunkTag(output, video, 0));
+            // The audio of frames 6 to 23, not the audio chunks stored after frame 6
+            Assert.assertEquals(18, audio.getChunkIndex().getCount());
+            Assert.assertEquals(6, readChunkTag(output, audio, 0));
+            Assert.assertEquals(23, readChunkTag(output, audio, 17));
+            // Still preloaded
+            Assert.assertTrue(audio.getChunkIndex().getChunkPosition(0) <
+                    video.getChunkIndex().getChunkPosition(0));
+        } finally {
+            file.delete();
+            output.delete();
+        }
+    }
+
+    @Test
+    public void split_givenPartDuration() throws IOException {
+        final File file = createAvi(0);
+        final File directory = file.getParentFile();
+        List<File> parts = null;
+        try (AviTrimmer aviTrimmer = new AviTrimmer(file)) {
+            final AviIndex aviIndex = AviIndex.read(file);
+            parts = aviTrimmer.split(getFrameUs(aviIndex, 12), directory);
+            Assert.assertEquals(FRAMES / 12, parts.size());
+            int frames = 0;
+            for (File part : parts) {
+                final AviIndex partIndex = AviIndex.read(part);
+                Assert.assertTrue(partIndex.getStream(0).getChunkIndex().keyFrames.get(0));
+                frames += partIndex.getStream(0).getChunkIndex().getCount();
+            }
+            Assert.assertEquals(FRAMES, frames);
+        } finally {
+            file.delete();
+            if (parts != null) {
+                for (File part : parts) {
+                    part.delete();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.homesoft.exo.extractor.avi;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+@RunWith(AndroidJUnit4.class)
+public class AviWriterTest {
+    static final int KEY_FRAME_RATE = 6;
+    static final int AUDIO_CHUNK_ID = StreamHandler.getChunkIdLower(DataHelper.AUDIO_ID) |
+            StreamHandler.TYPE_AUDIO;
+
+    static ByteBuffer getPcmStreamFormat() {
+        final ByteBuffer byteBuffer = AviExtractor.allocate(18);
+        byteBuffer.putShort((short)1); // PCM
+        byteBuffer.putShort((short)2);
+        byteBuffer.putInt(44100);
+        byteBuffer.putInt(44100 * 4);
+        byteBuffer.putShort((short)4);
+        byteBuffer.putShort((short)16);
+        byteBuffer.putShort((short)0);
+        byteBuffer.clear();
+        return byteBuffer;
+    }
+
+    static AviWriter.Stream[] getStreams() {
+        return new AviWriter.Stream[] {
+                new AviWriter.Stream(DataHelper.VIDEO_CHUNK_ID,
+                        DataHelper.getVidsStreamHeader().getByteBuffer(),
+                        DataHelper.getVideoStreamFormat().getByteBuffer()),
+                new AviWriter.Stream(AUDIO_CHUNK_ID,
+                        DataHelper.getAudioStreamHeader().getByteBuffer(), getPcmStreamFormat())
+        };
+    }
+
+    /**
+     * Write a video frame followed by an audio chunk
+     */
+    static void writeAvi(File file, int frames, long maxRiffSize) throws IOException {
+        final ByteBuffer aviHeader = AviExtractor.allocate(AviHeaderBox.LEN);
+        aviHeader.putInt(0, (int)DataHelper.VIDEO_US);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            final FileChannel fileChannel = randomAccessFile.getChannel();
+            final AviWriter aviWriter = new AviWriter(fileChannel, aviHeader, getStreams(),
+                    maxRiffSize);
+            for (int f = 0; f < frames; f++) {
+                DataHelper.writeChunk(fileChannel, aviWriter.addChunk(0, DataHelper.VIDEO_SIZE,
+                        f % KEY_FRAME_RATE == 0), DataHelper.VIDEO_CHUNK_ID, DataHelper.VIDEO_SIZE,
+                        f);
+                DataHelper.writeChunk(fileChannel,
+                        aviWriter.addChunk(1, DataHelper.AUDIO_SIZE + 1, true), AUDIO_CHUNK_ID,
+                        DataHelper.AUDIO_SIZE + 1, f);
+            }
+            aviWriter.finish();
+        }
+    }
+
+    private static void assertChunkIds(File file, AviIndex.Stream stream) throws IOException {
+        final ByteBuffer byteBuffer = AviExtractor.allocate(4);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            final ChunkIndex chunkIndex = stream.getChunkIndex();
+            for (int i = 0; i < chunkIndex.getCount(); i++) {
+                byteBuffer.clear();
+                randomAccessFile.getChannel().read(byteBuffer, chunkIndex.getChunkPosition(i));
+                Assert.assertEquals(stream.chunkId, byteBuffer.getInt(0));
+            }
+        }
+    }
+
+    private static void assertRoundTrip(int frames, long maxRiffSize) throws IOException {
+        final File file = File.createTempFile("test", ".avi");
+        try {
+            writeAvi(file, frames, maxRiffSize);
+            final AviIndex aviIndex = AviIndex.read(file);
+            Assert.assertEquals(2, aviIndex.getStreamCount());
+            final AviIndex.Stream video = aviIndex.getStream(0);
+            Assert.assertEquals(frames, video.getChunkIndex().getCount());
+            Assert.assertEquals((frames + KEY_FRAME_RATE - 1) / KEY_FRAME_RATE,
+                    video.getChunkIndex().getKeyFrameCount());
+            Assert.assertEquals(frames, video.getStreamHeader().getLength());
+            final AviIndex.Stream audio = aviIndex.getStream(1);
+            Assert.assertEquals(frames, audio.getChunkIndex().getCount());
+            Assert.assertEquals(DataHelper.AUDIO_SIZE + 1, audio.getChunkIndex().getChunkSize(0));
+            assertChunkIds(file, video);
+            assertChunkIds(file, audio);
+            Assert.assertEquals(file.length(), aviIndex.getLength());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void roundTrip_givenOneRiff() throws IOException {
+        assertRoundTrip(24, AviWriter.MAX_RIFF_SIZE);
+    }
+
+    @Test
+    public void roundTrip_givenAvix() throws IOException {
+        // About 10 frames per RIFF
+        assertRoundTrip(48, 48 * 1024);
+    }
+}
@@ -25,9 +25,12 @@ import androidx.media3.test.utils.FakeTrackOutput;
 import androidx.media3.test.utils.TestUtil;
 import androidx.test.core.app.ApplicationProvider;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Deque;
@@ -226,4 +229,43 @@ public class DataHelper {
       }
     }
   }
+
+  public static byte[] getRecording(int frames) throws IOException {
+    return getRecording(frames, AviWriter.MAX_RIFF_SIZE);
+  }
+
+  /**
+   * Record 24fps MJPEG and 48KHz stereo PCM (2000 samples per frame)
+   */
+  public static byte[] getRecording(int frames, long maxRiffSize) throws IOException {
+    final File file = File.createTempFile("recording", ".avi");
+    try {
+      try (AviMuxer aviMuxer = new AviMuxer(file, maxRiffSize)) {
+        aviMuxer.setFlushIntervalMs(0L);
+        aviMuxer.addMjpegStream(640, 480, 24, 1);
+        aviMuxer.addPcmStream(48000, 2, 16);
+        for (int f = 0; f < frames; f++) {
+          aviMuxer.writeChunk(0, ByteBuffer.allocate(1000), true);
+          aviMuxer.writeChunk(1, ByteBuffer.allocate(8000), true);
+        }
+      }
+      return Files.readAllBytes(file.toPath());
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Write a chunk for an {@link AviWriter} test
+   * @param tag written at the start of the payload, i.e. the chunk number
+   */
+  public static void writeChunk(FileChannel fileChannel, long position, int chunkId, int size,
+                                int tag) throws IOException {
+    final ByteBuffer byteBuffer = AviExtractor.allocate(CHUNK_HEADER_SIZE + size);
+    byteBuffer.putInt(chunkId);
+    byteBuffer.putInt(size);
+    byteBuffer.putInt(tag);
+    byteBuffer.clear();
+    fileChannel.write(byteBuffer, position);
+  }
 }
@@ -0,0 +1,47 @@
+package com.homesoft.exo.extractor.avi;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class MjpegFrameExporterTest {
+    private static final byte[] APP0 = {(byte)0xff, (byte)0xe0, 0, 4, 'A', 'V'};
+    private static final byte[] SOS = {(byte)0xff, (byte)0xda, 0, 2};
+
+    private static ByteBuffer jpeg(byte[]... segments) {
+        final ByteBuffer byteBuffer = ByteBuffer.allocate(256);
+        byteBuffer.put((byte)0xff).put((byte)0xd8);
+        for (byte[] segment : segments) {
+            byteBuffer.put(segment);
+        }
+        byteBuffer.flip();
+        return byteBuffer;
+    }
+
+    @Test
+    public void standardDht_length() {
+        final byte[] dht = MjpegFrameExporter.STANDARD_DHT;
+        final int length = ((dht[2] & 0xff) << 8) | (dht[3] & 0xff);
+        Assert.assertEquals(dht.length - 2, length);
+    }
+
+    @Test
+    public void getDhtInsertOffset_givenNoDht() {
+        final ByteBuffer byteBuffer = jpeg(APP0, SOS);
+        Assert.assertEquals(2 + APP0.length, MjpegFrameExporter.getDhtInsertOffset(byteBuffer));
+    }
+
+    @Test
+    public void getDhtInsertOffset_givenDht() {
+        final byte[] dht = {(byte)0xff, (byte)0xc4, 0, 2};
+        final ByteBuffer byteBuffer = jpeg(APP0, dht, SOS);
+        Assert.assertEquals(-1, MjpegFrameExporter.getDhtInsertOffset(byteBuffer));
+    }
+
+    @Test
+    public void getDhtInsertOffset_givenNotJpeg() {
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(new byte[] {0, 0, 0, 1});
+        Assert.assertEquals(-1, MjpegFrameExporter.getDhtInsertOffset(byteBuffer));
+    }
+}
@@ -0,0 +1,48 @@
+package com.homesoft.exo.extractor.avi;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class Mp4RemuxerTest {
+    private static final byte[] SPS = {0x67, 0x42, 0x00, 0x1e};
+    private static final byte[] PPS = {0x68, (byte)0xce, 0x38, (byte)0x80};
+    private static final byte[] IDR = {0x65, (byte)0x88, (byte)0x84, 0x00};
+
+    private static byte[] annexB(byte[]... nals) {
+        int size = 0;
+        for (byte[] nal : nals) {
+            size += nal.length + 4;
+        }
+        final byte[] sample = new byte[size];
+        int position = 0;
+        for (byte[] nal : nals) {
+            sample[position + 3] = 1;
+            System.arraycopy(nal, 0, sample, position + 4, nal.length);
+            position += nal.length + 4;
+        }
+        return sample;
+    }
+
+    private static void assertNal(byte[] expected, byte[] actual) {
+        Assert.assertEquals(expected.length + 4, actual.length);
+        Assert.assertEquals(1, actual[3]);
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(expected[i], actual[i + 4]);
+        }
+    }
+
+    @Test
+    public void getAvcParameterSets_givenKeyFrame() {
+        final byte[] sample = annexB(SPS, PPS, IDR);
+        final byte[][] parameterSets = Mp4Remuxer.getAvcParameterSets(sample, sample.length);
+        Assert.assertNotNull(parameterSets);
+        assertNal(SPS, parameterSets[0]);
+        assertNal(PPS, parameterSets[1]);
+    }
+
+    @Test
+    public void getAvcParameterSets_givenNoPps() {
+        final byte[] sample = annexB(SPS, IDR);
+        Assert.assertNull(Mp4Remuxer.getAvcParameterSets(sample, sample.length));
+    }
+}
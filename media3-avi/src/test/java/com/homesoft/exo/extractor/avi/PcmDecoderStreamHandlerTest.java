@@ -0,0 +1,44 @@
+package com.homesoft.exo.extractor.avi;
+
+import androidx.media3.common.C;
+import androidx.media3.test.utils.FakeExtractorInput;
+import androidx.media3.test.utils.FakeTrackOutput;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+
+@RunWith(AndroidJUnit4.class)
+public class PcmDecoderStreamHandlerTest {
+
+  private static byte[] mulaw(int... values) {
+    final byte[] pcm = new byte[values.length * 2];
+    for (int i = 0; i < values.length; i++) {
+      PcmDecoder.putShort(pcm, i * 2, PcmDecoder.G711.MULAW[values[i]]);
+    }
+    return pcm;
+  }
+
+  @Test
+  public void read_givenG711FrameSpanningChunks_carriesItOver() throws IOException {
+    final FakeTrackOutput fakeTrackOutput = new FakeTrackOutput(false);
+    // Stereo, so a frame is 2 bytes
+    final PcmDecoderStreamHandler streamHandler = new PcmDecoderStreamHandler(0,
+        C.MICROS_PER_SECOND, fakeTrackOutput,
+        new PcmDecoder.G711(2, 2, PcmDecoder.G711.MULAW));
+    final FakeExtractorInput input = new FakeExtractorInput.Builder()
+        .setData(new byte[]{(byte)0xff, 0x10, 0x00, 0x20}).build();
+
+    streamHandler.setRead(0L, 3);
+    while (!streamHandler.read(input));
+    streamHandler.setRead(3L, 1);
+    while (!streamHandler.read(input));
+
+    Assert.assertEquals(2, fakeTrackOutput.getSampleCount());
+    Assert.assertArrayEquals(mulaw(0xff, 0x10), fakeTrackOutput.getSampleData(0));
+    Assert.assertArrayEquals(mulaw(0x00, 0x20), fakeTrackOutput.getSampleData(1));
+  }
+}
@@ -0,0 +1,42 @@
+package com.homesoft.exo.extractor.avi;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PcmDecoderTest {
+
+  @Test
+  public void g711_givenKnownValues() {
+    Assert.assertEquals(0, PcmDecoder.G711.MULAW[0xff]);
+    Assert.assertEquals(-32124, PcmDecoder.G711.MULAW[0x00]);
+    Assert.assertEquals(8, PcmDecoder.G711.ALAW[0xd5]);
+    Assert.assertEquals(-8, PcmDecoder.G711.ALAW[0x55]);
+  }
+
+  @Test
+  public void imaAdpcm_givenMonoBlock() {
+    final PcmDecoder.ImaAdpcm decoder = new PcmDecoder.ImaAdpcm(1, 8);
+    Assert.assertEquals(9, decoder.framesPerBlock);
+    // predictor = 100, stepIndex = 0, then nibble 7 followed by 0s
+    final byte[] in = {100, 0, 0, 0, 0x07, 0, 0, 0};
+    final byte[] out = new byte[decoder.getOutputSize()];
+    Assert.assertEquals(18, decoder.decode(in, in.length, out));
+    Assert.assertEquals(100, PcmDecoder.getShort(out, 0));
+    // step 7: 0 + 1 + 3 + 7
+    Assert.assertEquals(111, PcmDecoder.getShort(out, 2));
+  }
+
+  @Test
+  public void msAdpcm_givenMonoBlock() {
+    final PcmDecoder.MsAdpcm decoder = new PcmDecoder.MsAdpcm(1, 8, null);
+    Assert.assertEquals(4, decoder.framesPerBlock);
+    // predictor = 0 (256, 0), delta = 16, sample1 = 100, sample2 = 50, then nibbles 1, 0
+    final byte[] in = {0, 16, 0, 100, 0, 50, 0, 0x10};
+    final byte[] out = new byte[decoder.getOutputSize()];
+    Assert.assertEquals(8, decoder.decode(in, in.length, out));
+    Assert.assertEquals(50, PcmDecoder.getShort(out, 0));
+    Assert.assertEquals(100, PcmDecoder.getShort(out, 2));
+    Assert.assertEquals(116, PcmDecoder.getShort(out, 4));
+    Assert.assertEquals(116, PcmDecoder.getShort(out, 6));
+  }
+}
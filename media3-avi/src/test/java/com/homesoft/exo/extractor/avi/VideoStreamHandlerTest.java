@@ -0,0 +1,91 @@
+package com.homesoft.exo.extractor.avi;
+
+import androidx.media3.common.C;
+import androidx.media3.common.MimeTypes;
+import androidx.media3.test.utils.FakeExtractorInput;
+import androidx.media3.test.utils.FakeTrackOutput;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+
+@RunWith(AndroidJUnit4.class)
+public class VideoStreamHandlerTest {
+    private static final int CHUNK_SIZE = 16;
+
+    /**
+     * A growing file, the chunk index is built as the file is read
+     */
+    private static VideoStreamHandler getGrowingHandler(String deltaMimeType) {
+        final VideoStreamHandler videoStreamHandler = DataHelper.getVideoChunkHandler(10);
+        videoStreamHandler.chunkClock = true;
+        videoStreamHandler.setDeltaMimeType(deltaMimeType);
+        final ChunkIndex chunkIndex = videoStreamHandler.getChunkIndex();
+        for (int i = 0; i < 4; i++) {
+            chunkIndex.add(getChunkPosition(i), CHUNK_SIZE, i % 2 == 0);
+        }
+        return videoStreamHandler;
+    }
+
+    private static long getChunkPosition(int chunk) {
+        return 1024 + chunk * (CHUNK_SIZE + 8L);
+    }
+
+    private static boolean isKeyFrame(VideoStreamHandler videoStreamHandler, int chunk) {
+        // The read starts after the chunk header
+        videoStreamHandler.setRead(getChunkPosition(chunk) + 8, CHUNK_SIZE);
+        return videoStreamHandler.isKeyFrame();
+    }
+
+    @Test
+    public void isKeyFrame_givenGrowingDeltaFrames_usesIndexedKeyFlags() {
+        final VideoStreamHandler videoStreamHandler = getGrowingHandler(MimeTypes.VIDEO_H264);
+        Assert.assertTrue(isKeyFrame(videoStreamHandler, 0));
+        Assert.assertFalse(isKeyFrame(videoStreamHandler, 1));
+        Assert.assertTrue(isKeyFrame(videoStreamHandler, 2));
+        Assert.assertFalse(isKeyFrame(videoStreamHandler, 3));
+    }
+
+    @Test
+    public void isKeyFrame_givenGrowingIntraOnly_allKeyFrames() {
+        final VideoStreamHandler videoStreamHandler = getGrowingHandler(null);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(isKeyFrame(videoStreamHandler, i));
+        }
+    }
+
+    @Test
+    public void isKeyFrame_givenEmptyKeyFramePage_noKeyFrames() {
+        final VideoStreamHandler videoStreamHandler = getGrowingHandler(MimeTypes.VIDEO_H264);
+        videoStreamHandler.setKeyFramePositions(new long[0]);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertFalse(isKeyFrame(videoStreamHandler, i));
+        }
+        videoStreamHandler.setKeyFramePositions(new long[] {getChunkPosition(2)});
+        Assert.assertFalse(isKeyFrame(videoStreamHandler, 0));
+        Assert.assertTrue(isKeyFrame(videoStreamHandler, 2));
+    }
+
+    @Test
+    public void read_givenProgressiveStartDeltaFrames_peeksKeyFlags() throws IOException {
+        final VideoStreamHandler videoStreamHandler = DataHelper.getVideoChunkHandler(10);
+        videoStreamHandler.chunkClock = true;
+        videoStreamHandler.setDeltaMimeType(MimeTypes.VIDEO_MP4V);
+        // No index yet, an I-VOP followed by a P-VOP
+        final byte[] data = new byte[CHUNK_SIZE * 2];
+        System.arraycopy(new byte[] {0, 0, 1, (byte)0xb6, 0x10}, 0, data, 0, 5);
+        System.arraycopy(new byte[] {0, 0, 1, (byte)0xb6, 0x50}, 0, data, CHUNK_SIZE, 5);
+        final FakeExtractorInput input = new FakeExtractorInput.Builder().setData(data).build();
+        for (int i = 0; i < 2; i++) {
+            videoStreamHandler.setRead(input.getPosition(), CHUNK_SIZE);
+            Assert.assertTrue(videoStreamHandler.read(input));
+        }
+        final FakeTrackOutput trackOutput = (FakeTrackOutput) videoStreamHandler.trackOutput;
+        Assert.assertEquals(2, trackOutput.getSampleCount());
+        Assert.assertEquals(C.BUFFER_FLAG_KEY_FRAME, trackOutput.getSampleFlags(0));
+        Assert.assertEquals(0, trackOutput.getSampleFlags(1));
+    }
+}
@@ -0,0 +1,299 @@
+package com.homesoft.exo.video;
+
+import android.graphics.Rect;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.media3.common.C;
+import androidx.media3.common.Format;
+import androidx.media3.common.MimeTypes;
+import androidx.media3.decoder.DecoderException;
+import androidx.media3.decoder.DecoderInputBuffer;
+import androidx.media3.decoder.VideoDecoderOutputBuffer;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+@RunWith(AndroidJUnit4.class)
+public class BitmapFactoryDecoderTest {
+    private static final Format FORMAT = new Format.Builder()
+            .setSampleMimeType(MimeTypes.VIDEO_MJPEG).setWidth(1280).setHeight(720).build();
+    private static final int BUFFERS = 4;
+
+    private MjpegDecodeScheduler scheduler;
+    private TestDecoder decoder;
+
+    /**
+     * Records the decodes instead of running BitmapFactory
+     */
+    private static class TestDecoder extends BitmapFactoryDecoder {
+        final ArrayList<Long> decodedTimesUs = new ArrayList<>();
+        @Nullable
+        DecoderException exception;
+
+        TestDecoder(@NonNull MjpegDecodeScheduler.Client client) {
+            super(BUFFERS, client, new BitmapPool(0L));
+        }
+
+        @Nullable
+        @Override
+        protected DecoderException decode(@NonNull DecoderInputBuffer inputBuffer,
+                                          @NonNull BitmapDecoderOutputBuffer outputBuffer) {
+            outputBuffer.init(inputBuffer.timeUs, C.VIDEO_OUTPUT_MODE_NONE, null);
+            decodedTimesUs.add(inputBuffer.timeUs);
+            return exception;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        // No threads, the tests run the decodes with poll()
+        scheduler = new MjpegDecodeScheduler(0, 0L);
+        decoder = new TestDecoder(scheduler.createClient(MjpegDecodeScheduler.PRIORITY_DEFAULT));
+    }
+
+    @After
+    public void tearDown() {
+        decoder.release();
+        scheduler.release();
+    }
+
+    private void queueFrame(long timeUs, int content) throws DecoderException {
+        queueFrame(decoder, timeUs, content);
+    }
+
+    private static void queueFrame(@NonNull BitmapFactoryDecoder decoder, long timeUs, int content)
+            throws DecoderException {
+        final DecoderInputBuffer inputBuffer = decoder.dequeueInputBuffer();
+        Assert.assertNotNull(inputBuffer);
+        inputBuffer.ensureSpaceForWrite(4);
+        inputBuffer.data.putInt(content);
+        inputBuffer.flip();
+        inputBuffer.timeUs = timeUs;
+        decoder.queueInputBuffer(inputBuffer);
+    }
+
+    /**
+     * @return the decodes in the order they were queued to the scheduler
+     */
+    private ArrayList<Runnable> pollDecodes() {
+        final ArrayList<Runnable> runnables = new ArrayList<>();
+        Runnable runnable;
+        while ((runnable = scheduler.poll()) != null) {
+            runnables.add(runnable);
+        }
+        return runnables;
+    }
+
+    private void runDecodes() {
+        Runnable runnable;
+        while ((runnable = scheduler.poll()) != null) {
+            runnable.run();
+        }
+    }
+
+    /**
+     * @return the time of the next frame to draw, the skipped ones are released
+     */
+    private long dequeueFrameTimeUs() throws DecoderException {
+        final BitmapDecoderOutputBuffer outputBuffer = decoder.dequeueOutputBuffer();
+        Assert.assertNotNull(outputBuffer);
+        final long timeUs = outputBuffer.timeUs;
+        outputBuffer.release();
+        return timeUs;
+    }
+
+    private static VideoDecoderOutputBuffer decode(Rect decodeRect, int targetWidth, int targetHeight) {
+        final int width = decodeRect == null ? FORMAT.width : decodeRect.width();
+        final int height = decodeRect == null ? FORMAT.height : decodeRect.height();
+        final int sampleSize = BitmapFactoryDecoder.getSampleSize(width, height, targetWidth, targetHeight);
+        final VideoDecoderOutputBuffer outputBuffer = new BitmapDecoderOutputBuffer(buffer -> {});
+        // What BitmapFactory returns for the sample size
+        BitmapFactoryDecoder.setOutputSize(outputBuffer, decodeRect, FORMAT,
+                width / sampleSize, height / sampleSize);
+        return outputBuffer;
+    }
+
+    @Test
+    public void setOutputSize_givenFullFrame_reportsVideoSizeOnBothPaths() {
+        final VideoDecoderOutputBuffer fullSize = decode(null, 0, 0);
+        Assert.assertEquals(1280, fullSize.width);
+        Assert.assertEquals(720, fullSize.height);
+
+        final VideoDecoderOutputBuffer downSampled = decode(null, 320, 180);
+        Assert.assertEquals(1280, downSampled.width);
+        Assert.assertEquals(720, downSampled.height);
+    }
+
+    @Test
+    public void setOutputSize_givenCrop_reportsCropSizeOnBothPaths() {
+        final Rect decodeRect = BitmapFactoryDecoder.getDecodeRect(new Rect(640, 360, 1280, 720), FORMAT);
+        Assert.assertNotNull(decodeRect);
+
+        final VideoDecoderOutputBuffer fullSize = decode(decodeRect, 0, 0);
+        Assert.assertEquals(640, fullSize.width);
+        Assert.assertEquals(360, fullSize.height);
+
+        Assert.assertEquals(4, BitmapFactoryDecoder.getSampleSize(640, 360, 160, 90));
+        final VideoDecoderOutputBuffer downSampled = decode(decodeRect, 160, 90);
+        Assert.assertEquals(640, downSampled.width);
+        Assert.assertEquals(360, downSampled.height);
+    }
+
+    @Test
+    public void setOutputSize_givenNoFormatSize_reportsBitmapSize() {
+        final VideoDecoderOutputBuffer outputBuffer = new BitmapDecoderOutputBuffer(buffer -> {});
+        BitmapFactoryDecoder.setOutputSize(outputBuffer, null,
+                new Format.Builder().setSampleMimeType(MimeTypes.VIDEO_MJPEG).build(), 320, 240);
+        Assert.assertEquals(320, outputBuffer.width);
+        Assert.assertEquals(240, outputBuffer.height);
+    }
+
+    @Test
+    public void isInBitmapSize_givenRegion_onlyExactRegionSize() {
+        final Rect decodeRect = new Rect(0, 0, 641, 359);
+        Assert.assertTrue(BitmapFactoryDecoder.isInBitmapSize(641, 359, decodeRect, 1));
+        // Rounded up like BitmapRegionDecoder
+        Assert.assertTrue(BitmapFactoryDecoder.isInBitmapSize(161, 90, decodeRect, 4));
+        // The size of the previous crop
+        Assert.assertFalse(BitmapFactoryDecoder.isInBitmapSize(320, 180, decodeRect, 4));
+        Assert.assertFalse(BitmapFactoryDecoder.isInBitmapSize(1280, 720, decodeRect, 1));
+        // BitmapFactory reconfigures a large enough inBitmap for a full frame
+        Assert.assertTrue(BitmapFactoryDecoder.isInBitmapSize(1280, 720, null, 2));
+    }
+
+    @Test
+    public void onOutputChanged_givenDuplicateOfShownFrame_drawsItOnNewSurface() throws DecoderException {
+        queueFrame(0L, 1);
+        runDecodes();
+        Assert.assertEquals(0L, dequeueFrameTimeUs());
+
+        // The same picture as the shown frame, queued before and after the surface change
+        queueFrame(40_000L, 1);
+        decoder.onOutputChanged();
+        queueFrame(80_000L, 1);
+        queueFrame(120_000L, 1);
+        runDecodes();
+        Assert.assertEquals(40_000L, dequeueFrameTimeUs());
+        Assert.assertEquals(80_000L, dequeueFrameTimeUs());
+        // A duplicate of a frame drawn on the new surface is still skipped
+        Assert.assertNull(decoder.dequeueOutputBuffer());
+        Assert.assertEquals(3, decoder.decodedTimesUs.size());
+    }
+
+    @Test
+    public void dequeueOutputBuffer_givenDecodesFinishOutOfOrder_returnsQueueOrder() throws DecoderException {
+        for (int i = 0; i < BUFFERS; i++) {
+            queueFrame(i * 40_000L, i);
+        }
+        final ArrayList<Runnable> decodes = pollDecodes();
+        Assert.assertEquals(BUFFERS, decodes.size());
+        decodes.get(BUFFERS - 1).run();
+        // The first frame is still in flight
+        Assert.assertNull(decoder.dequeueOutputBuffer());
+        for (int i = BUFFERS - 2; i >= 0; i--) {
+            decodes.get(i).run();
+        }
+        for (int i = 0; i < BUFFERS; i++) {
+            Assert.assertEquals(i * 40_000L, dequeueFrameTimeUs());
+        }
+        Assert.assertNull(decoder.dequeueOutputBuffer());
+    }
+
+    @Test
+    public void flush_givenFramesInFlight_releasesThemWithoutDecoding() throws DecoderException {
+        for (int i = 0; i < BUFFERS; i++) {
+            queueFrame(i * 40_000L, i);
+        }
+        final ArrayList<Runnable> decodes = pollDecodes();
+        decoder.flush();
+        for (Runnable runnable : decodes) {
+            runnable.run();
+        }
+        Assert.assertTrue(decoder.decodedTimesUs.isEmpty());
+        Assert.assertNull(decoder.dequeueOutputBuffer());
+
+        // All the frames and output buffers are back
+        for (int i = 0; i < BUFFERS; i++) {
+            queueFrame(1_000_000L + i * 40_000L, i);
+        }
+        runDecodes();
+        for (int i = 0; i < BUFFERS; i++) {
+            Assert.assertEquals(1_000_000L + i * 40_000L, dequeueFrameTimeUs());
+        }
+    }
+
+    @Test
+    public void dequeueOutputBuffer_givenDecodeException_throwsIt() throws DecoderException {
+        final DecoderException exception = new DecoderException("Corrupt frame");
+        decoder.exception = exception;
+        queueFrame(0L, 1);
+        runDecodes();
+        try {
+            decoder.dequeueOutputBuffer();
+            Assert.fail();
+        } catch (DecoderException e) {
+            Assert.assertSame(exception, e);
+        }
+        try {
+            decoder.dequeueInputBuffer();
+            Assert.fail();
+        } catch (DecoderException e) {
+            Assert.assertSame(exception, e);
+        }
+    }
+
+    @Test
+    public void queueInputBuffer_givenDuplicateFrames_skipsTheirDecode() throws DecoderException {
+        queueFrame(0L, 1);
+        queueFrame(40_000L, 1);
+        queueFrame(80_000L, 1);
+        queueFrame(120_000L, 2);
+        runDecodes();
+        Assert.assertEquals(0L, dequeueFrameTimeUs());
+        final BitmapDecoderOutputBuffer outputBuffer = decoder.dequeueOutputBuffer();
+        Assert.assertNotNull(outputBuffer);
+        Assert.assertEquals(120_000L, outputBuffer.timeUs);
+        Assert.assertEquals(2, outputBuffer.skippedOutputBufferCount);
+        outputBuffer.release();
+
+        Assert.assertEquals(2, decoder.decodedTimesUs.size());
+        Assert.assertEquals(2, decoder.getDuplicateFrameCount());
+        Assert.assertEquals(4, decoder.getStats().getInputFrames());
+        Assert.assertEquals(4, decoder.getStats().getAverageInputBytes());
+    }
+
+    @Test
+    public void decode_givenLateFrames_skipsTheDecode() throws DecoderException {
+        // The real decode, the late check comes before BitmapFactory
+        final BitmapFactoryDecoder lateDecoder = new BitmapFactoryDecoder(BUFFERS,
+                scheduler.createClient(MjpegDecodeScheduler.PRIORITY_DEFAULT), new BitmapPool(0L));
+        try {
+            lateDecoder.setOutputMode(C.VIDEO_OUTPUT_MODE_SURFACE_YUV);
+            lateDecoder.setPlaybackClock(10_000_000L, SystemClock.elapsedRealtimeNanos() / 1000);
+            for (int i = 0; i < BitmapFactoryDecoder.MAX_CONSECUTIVE_LATE_FRAMES; i++) {
+                queueFrame(lateDecoder, i * 40_000L, i);
+            }
+            runDecodes();
+            Assert.assertNull(lateDecoder.dequeueOutputBuffer());
+
+            final MjpegDecoderStats stats = lateDecoder.getStats();
+            Assert.assertEquals(BitmapFactoryDecoder.MAX_CONSECUTIVE_LATE_FRAMES,
+                    lateDecoder.getLateFrameCount());
+            Assert.assertEquals(BitmapFactoryDecoder.MAX_CONSECUTIVE_LATE_FRAMES,
+                    stats.getInputFrames());
+            Assert.assertEquals(0, stats.getDecodedFrames());
+            Assert.assertEquals(0, stats.getSkipCount(MjpegDecoderStats.SKIP_DUPLICATE));
+        } finally {
+            lateDecoder.release();
+        }
+    }
+}
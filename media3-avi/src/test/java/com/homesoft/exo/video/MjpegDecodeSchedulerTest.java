@@ -0,0 +1,112 @@
+package com.homesoft.exo.video;
+
+import android.graphics.Bitmap;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+@RunWith(AndroidJUnit4.class)
+public class MjpegDecodeSchedulerTest {
+    private final ArrayList<String> ran = new ArrayList<>();
+    private MjpegDecodeScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        // No threads, the tests run the tasks with poll()
+        scheduler = new MjpegDecodeScheduler(0, 1024 * 1024);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.release();
+    }
+
+    private void execute(MjpegDecodeScheduler.Client client, String name, int tasks) {
+        for (int i = 0; i < tasks; i++) {
+            client.execute(() -> ran.add(name));
+        }
+    }
+
+    private void runTasks(int tasks) {
+        for (int i = 0; i < tasks; i++) {
+            final Runnable runnable = scheduler.poll();
+            Assert.assertNotNull(runnable);
+            runnable.run();
+        }
+    }
+
+    @Test
+    public void poll_givenPriorities_servesHigherFirst() {
+        final MjpegDecodeScheduler.Client low = scheduler.createClient(0);
+        final MjpegDecodeScheduler.Client high = scheduler.createClient(1);
+        execute(low, "low", 1);
+        execute(high, "high", 1);
+        runTasks(2);
+        Assert.assertEquals("high", ran.get(0));
+        Assert.assertEquals("low", ran.get(1));
+        Assert.assertNull(scheduler.poll());
+    }
+
+    @Test
+    public void poll_givenSamePriority_servesRoundRobin() {
+        final MjpegDecodeScheduler.Client a = scheduler.createClient(0);
+        final MjpegDecodeScheduler.Client b = scheduler.createClient(0);
+        execute(a, "a", 2);
+        execute(b, "b", 2);
+        runTasks(4);
+        Assert.assertEquals("a", ran.get(0));
+        Assert.assertEquals("b", ran.get(1));
+        Assert.assertEquals("a", ran.get(2));
+        Assert.assertEquals("b", ran.get(3));
+    }
+
+    @Test
+    public void poll_givenBusyHigherPriority_agesLowerPriority() {
+        final MjpegDecodeScheduler.Client low = scheduler.createClient(0);
+        final MjpegDecodeScheduler.Client high = scheduler.createClient(1);
+        execute(low, "low", 1);
+        execute(high, "high", MjpegDecodeScheduler.AGING_PASSES * 4);
+        runTasks(MjpegDecodeScheduler.AGING_PASSES + 1);
+        Assert.assertTrue(ran.contains("low"));
+    }
+
+    @Test
+    public void release_givenQueuedTasks_dropsTasksOfClient() {
+        final MjpegDecodeScheduler.Client released = scheduler.createClient(1);
+        final MjpegDecodeScheduler.Client other = scheduler.createClient(0);
+        execute(released, "released", 2);
+        execute(other, "other", 1);
+        released.release();
+        execute(released, "released", 1);
+        runTasks(1);
+        Assert.assertEquals("other", ran.get(0));
+        Assert.assertNull(scheduler.poll());
+    }
+
+    @Test
+    public void offer_givenOutstandingBitmaps_chargesBudget() {
+        final Bitmap first = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888);
+        final Bitmap second = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888);
+        final int bytes = first.getAllocationByteCount();
+        final BitmapPool bitmapPool = new BitmapPool(bytes * 3L / 2);
+        bitmapPool.track(first);
+        Assert.assertEquals(bytes, bitmapPool.getOutstandingBytes());
+        // Only room for one Bitmap and the first is still on screen
+        Assert.assertFalse(bitmapPool.offer(second));
+
+        Assert.assertTrue(bitmapPool.offer(first));
+        Assert.assertEquals(0, bitmapPool.getOutstandingBytes());
+        Assert.assertEquals(bytes, bitmapPool.getPooledBytes());
+
+        Assert.assertSame(first, bitmapPool.get(64, 64, Bitmap.Config.ARGB_8888));
+        Assert.assertEquals(bytes, bitmapPool.getOutstandingBytes());
+        Assert.assertEquals(0, bitmapPool.getPooledBytes());
+    }
+}